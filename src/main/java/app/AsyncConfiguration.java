@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ ******************************************************************************/
+package app;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+/**
+ * Asynchronous processing of the requests by Spring MVC.
+ * <p>
+ * The response bodies, as the JSON slides read from the cube band by band
+ * while they are written, are written on the bounded pool
+ * {@link CubeExecutors.Pool#STREAM} instead of an unbounded executor, within
+ * <code>request_timeout_seconds</code>.
+ *
+ * @author vincent.cephirins
+ */
+@Configuration
+public class AsyncConfiguration extends WebMvcConfigurerAdapter {
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(CubeExecutors.getStreamExecutor());
+        configurer.setDefaultTimeout(CubeExecutors.getTimeoutMillis());
+    }
+}
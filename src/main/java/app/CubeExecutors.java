@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ ******************************************************************************/
+package app;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import org.apache.logging.log4j.ThreadContext;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import common.exceptions.CubeExplorerException;
+import common.exceptions.Messages;
+
+/**
+ * Bounded executors of the requests reading the cubes, so that the servlet
+ * threads are not held by the reads.
+ * <p>
+ * The requests on the metadata of the cubes and those on their data have
+ * their own pool, so that the light requests are not queued behind the heavy
+ * ones. A pool has a queue of <code>executor_queue_depth</code> requests; a
+ * request is answered 503 with a Retry-After header when the queue is full,
+ * or when it is not answered within <code>request_timeout_seconds</code>.
+ * A request timed out is removed from the queue. A request being executed is
+ * not interrupted, since an interrupted read closes the channels of the cube
+ * shared with the other requests; its response is dropped, and closed when its
+ * body is {@link AutoCloseable}, as a body streamed from a cube.
+ * <p>
+ * Identical requests received while one of them is executed share its
+ * response instead of being executed again: the first one is executed, the
+ * following ones wait for its response without taking a thread of the pool.
+ * They are identified by a key of the version of the file and of the
+ * parameters of the request. The flights are in a ConcurrentHashMap, whose
+ * bins are locked separately, so that different keys do not contend. A request
+ * whose response can not be written several times (see {@link #setNotShared})
+ * lets the following ones execute on their own.
+ * <p>
+ * The response bodies are written by Spring MVC on a pool of their own (see
+ * {@link AsyncConfiguration}), so that the JSON slides read from the cube
+ * while they are streamed are bounded as well.
+ *
+ * @author vincent.cephirins
+ */
+public class CubeExecutors {
+
+    // Initialize logger (see conf/log4j2.xml).
+    private static final Logger LOGGER = LoggerFactory.getLogger(CubeExecutors.class);
+
+    /**
+     * Pools of the requests
+     */
+    public enum Pool {
+        /**
+         * Header and statistics of the cubes
+         */
+        METADATA("cube-metadata", "executor_metadata_threads", 2),
+        /**
+         * Slides, spectra and maps of the cubes
+         */
+        DATA("cube-data", "executor_data_threads", Runtime.getRuntime().availableProcessors()),
+        /**
+         * Response bodies streamed from the cubes, written once their request is executed
+         */
+        STREAM("cube-stream", "executor_stream_threads", Runtime.getRuntime().availableProcessors());
+
+        private final String name;
+        private final String property;
+        private final int defaultThreads;
+
+        Pool(String name, String property, int defaultThreads) {
+            this.name = name;
+            this.property = property;
+            this.defaultThreads = defaultThreads;
+        }
+    }
+
+    private static final Map<Pool, ThreadPoolExecutor> EXECUTORS = new EnumMap<>(Pool.class);
+
+    // Responses being computed, by key of the requests
+    private static final Map<String, CompletableFuture<Object>> FLIGHTS = new ConcurrentHashMap<>();
+
+    // Set by a request whose response is not shared
+    private static final ThreadLocal<Boolean> NOT_SHARED = new ThreadLocal<>();
+
+    private CubeExecutors() {
+    }
+
+    /**
+     * Execute a request on a pool.
+     *
+     * @param pool pool of the request
+     * @param name name of the request, for the logs
+     * @param task the request
+     * @param error response of an error, from a builder of its status and the JSON message
+     * @return the result of the request
+     */
+    public static <R> DeferredResult<R> submit(Pool pool, String name, Callable<R> task,
+        BiFunction<ResponseEntity.BodyBuilder, JSONObject, R> error) {
+        return submit(pool, name, null, task, error);
+    }
+
+    /**
+     * Execute a request on a pool, or share the response of an identical
+     * request being executed.
+     *
+     * @param pool pool of the request
+     * @param name name of the request, for the logs
+     * @param key key of the identical requests, null to always execute the request
+     * @param task the request
+     * @param error response of an error, from a builder of its status and the JSON message
+     * @return the result of the request
+     */
+    @SuppressWarnings("unchecked")
+    public static <R> DeferredResult<R> submit(Pool pool, String name, String key, Callable<R> task,
+        BiFunction<ResponseEntity.BodyBuilder, JSONObject, R> error) {
+        // Log level of the request, read on the thread of the request
+        String logLevel = MDC.get(LogLevelFilter.KEY);
+        long timeout = Long.parseLong(getProperty("request_timeout_seconds", "120"));
+        // 0 disables the timeout of the servlet container
+        DeferredResult<R> result = new DeferredResult<>(TimeUnit.SECONDS.toMillis(Math.max(0, timeout)));
+        if (key == null) {
+            return execute(pool, name, null, null, task, error, result, logLevel);
+        }
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = FLIGHTS.putIfAbsent(key, flight);
+        if (leader == null) {
+            return execute(pool, name, key, flight, task, error, result, logLevel);
+        }
+
+        LOGGER.debug("{} : shares the response of {}", name, key);
+        result.onTimeout(() -> {
+            LOGGER.error("{} : timeout after {} s", name, timeout);
+            result.setResult(getTimeout(error));
+        });
+        leader.thenAccept(response -> {
+            if (response != null) {
+                result.setResult((R) response);
+                return;
+            }
+            // Not shared: executed on its own
+            execute(pool, name, null, null, task, error, result, logLevel);
+        });
+        return result;
+    }
+
+    /**
+     * @return executor of the response bodies, bounded as the pools of the requests
+     */
+    public static AsyncTaskExecutor getStreamExecutor() {
+        return new ConcurrentTaskExecutor(getExecutor(Pool.STREAM));
+    }
+
+    /**
+     * @return timeout of the requests in milliseconds, 0 for none
+     */
+    public static long getTimeoutMillis() {
+        long timeout = Long.parseLong(getProperty("request_timeout_seconds", "120"));
+        return TimeUnit.SECONDS.toMillis(Math.max(0, timeout));
+    }
+
+    /**
+     * Mark the response of the request being executed as not shared, as a
+     * response streamed from the cube.
+     */
+    public static void setNotShared() {
+        NOT_SHARED.set(Boolean.TRUE);
+    }
+
+    /**
+     * End a flight, the identical requests then get its response.
+     *
+     * @param response shared response, null to let them execute on their own
+     */
+    private static void land(String key, CompletableFuture<Object> flight, Object response) {
+        if (flight != null) {
+            FLIGHTS.remove(key, flight);
+            flight.complete(response);
+        }
+    }
+
+    /**
+     * Execute a request on a pool, its response being set in result.
+     *
+     * @param logLevel log level of the request, null for the configured one
+     */
+    private static <R> DeferredResult<R> execute(Pool pool, String name, String key, CompletableFuture<Object> flight,
+        Callable<R> task, BiFunction<ResponseEntity.BodyBuilder, JSONObject, R> error, DeferredResult<R> result,
+        String logLevel) {
+        long timeout = Long.parseLong(getProperty("request_timeout_seconds", "120"));
+        String retryAfter = getProperty("executor_retry_after_seconds", "5");
+
+        Future<?> future;
+        try {
+            future = getExecutor(pool).submit(() -> {
+                if (result.isSetOrExpired()) {
+                    land(key, flight, null);
+                    return;
+                }
+                if (logLevel != null) {
+                    MDC.put(LogLevelFilter.KEY, logLevel);
+                    ThreadContext.put(LogLevelFilter.KEY, logLevel);
+                }
+                R response = null;
+                try {
+                    response = task.call();
+                }
+                catch (Throwable t) {
+                    // Errors too, an out of memory one included
+                    LOGGER.error("{} : {}", name, t.getMessage());
+                    response = error.apply(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR),
+                        getMessage(HttpStatus.INTERNAL_SERVER_ERROR, t.getMessage()));
+                }
+                finally {
+                    MDC.remove(LogLevelFilter.KEY);
+                    ThreadContext.remove(LogLevelFilter.KEY);
+                    // Always landed, the identical requests would wait for it forever
+                    land(key, flight, (NOT_SHARED.get() == null) ? response : null);
+                    NOT_SHARED.remove();
+                }
+                if (!result.setResult(response)) {
+                    LOGGER.debug("{} : response dropped", name);
+                    close(response);
+                }
+            });
+        }
+        catch (RejectedExecutionException ree) {
+            LOGGER.error("{} : {} queue full", name, pool.name);
+            R busy = error.apply(
+                ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, retryAfter),
+                getMessage(HttpStatus.SERVICE_UNAVAILABLE, Messages.getMessage("message.executor.busy")));
+            land(key, flight, busy);
+            result.setResult(busy);
+            return result;
+        }
+
+        result.onTimeout(() -> {
+            LOGGER.error("{} : timeout after {} s", name, timeout);
+            if (future.cancel(false)) {
+                land(key, flight, null);
+            }
+            getExecutor(pool).purge();
+            result.setResult(getTimeout(error));
+        });
+        return result;
+    }
+
+    /**
+     * @return the response of a request not answered in time
+     */
+    private static <R> R getTimeout(BiFunction<ResponseEntity.BodyBuilder, JSONObject, R> error) {
+        String retryAfter = getProperty("executor_retry_after_seconds", "5");
+        return error.apply(
+            ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, retryAfter),
+            getMessage(HttpStatus.SERVICE_UNAVAILABLE, Messages.getMessage("message.executor.timeout")));
+    }
+
+    /**
+     * Free the resources held by a response never written.
+     */
+    private static void close(Object response) {
+        Object body = (response instanceof ResponseEntity) ? ((ResponseEntity<?>) response).getBody() : response;
+        if (body instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) body).close();
+            }
+            catch (Exception e) {
+                LOGGER.error("{}", e.getMessage());
+            }
+        }
+    }
+
+    private static JSONObject getMessage(HttpStatus status, String message) {
+        JSONObject response = new JSONObject();
+        response.put("message", message);
+        response.put("status", status.name());
+        return response;
+    }
+
+    private static String getProperty(String key, String defaultValue) {
+        try {
+            return CubeExplorer.getProperty(key, defaultValue);
+        }
+        catch (CubeExplorerException ce) {
+            LOGGER.error("{} : {}", key, ce.getMessage());
+            return defaultValue;
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor(Pool pool) {
+        ThreadPoolExecutor executor = EXECUTORS.get(pool);
+        if (executor == null) {
+            int threads = Integer.parseInt(getProperty(pool.property, String.valueOf(pool.defaultThreads)));
+            int queueDepth = Integer.parseInt(getProperty("executor_queue_depth", "32"));
+            executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueDepth)), runnable -> {
+                    Thread thread = new Thread(runnable, pool.name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            executor.allowCoreThreadTimeOut(true);
+            EXECUTORS.put(pool, executor);
+        }
+        return executor;
+    }
+}
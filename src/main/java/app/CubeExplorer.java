@@ -11,6 +11,7 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -22,7 +23,6 @@ import org.json.JSONObject;
 import com.sun.jersey.api.NotFoundException;
 
 import common.exceptions.CubeExplorerException;
-import common.exceptions.LoggerException;
 import common.exceptions.Messages;
 import common.exceptions.SimpleException;
 import fr.cnes.cubeExplorer.resources.AbstractDataCube;
@@ -45,7 +45,9 @@ public class CubeExplorer {
 
 	// Initialise un logger (voir conf/log4j2.xml).
 	private static final Logger LOGGER = LogManager.getLogger("cubeExplorer");
-	static private Properties properties = null;
+	static private volatile Properties properties = null;
+	static private File propertiesFile = null;
+	static private volatile long propertiesModified = 0;
 	private AbstractDataCube cube = null;
 
 	/**
@@ -56,7 +58,7 @@ public class CubeExplorer {
 	 * @throws DataCubeException
 	 *             si une erreur intervient.
 	 */
-	public CubeExplorer(String filename) throws LoggerException {
+	public CubeExplorer(String filename) throws CubeExplorerException {
 		// Identification du type du fichier
 		if (filename.endsWith(".fits")) {
 			this.cube = new FitsCube(this, filename);
@@ -103,70 +105,130 @@ public class CubeExplorer {
 	}
 
 	static public String getProperty(String key, String defaultValue) throws CubeExplorerException {
-		String value = null;
+		String value = getProperties().getProperty(key);
+		if (value == null) {
+			if (defaultValue == null) {
+				LOGGER.error("property not found {}", key);
+				throw new NotFoundException("property " + key);
+			} else
+				value = defaultValue;
+		}
+		return value;
+	}
 
-		if (properties == null) {
-			InputStream input = null;
-			OutputStream output = null;
-			String messageFile = null;
+	/**
+	 * Return the properties of the application.
+	 * <p>
+	 * They are loaded once into a snapshot which is never modified. A daemon
+	 * thread replaces the snapshot when the file changes, checked every
+	 * <code>properties_reload_seconds</code> (0 to disable).
+	 * 
+	 * @return the properties
+	 * @throws CubeExplorerException
+	 */
+	static private Properties getProperties() throws CubeExplorerException {
+		Properties snapshot = properties;
+		if (snapshot == null) {
+			synchronized (CubeExplorer.class) {
+				if (properties == null) {
+					properties = loadProperties();
+					startReload(Long.parseLong(properties.getProperty("properties_reload_seconds", "30")));
+				}
+				snapshot = properties;
+			}
+		}
+		return snapshot;
+	}
 
-			try {
-				properties = new Properties();
+	/**
+	 * Reload the properties and the messages, the previous properties are kept
+	 * if the file can not be read.
+	 */
+	static public synchronized void reloadProperties() {
+		try {
+			properties = loadProperties();
+			Messages.reload("conf/messages",
+					new Locale(properties.getProperty("lang", Locale.getDefault().toString())));
+			LOGGER.info("Properties {} reloaded", propertiesFile);
+		} catch (CubeExplorerException ce) {
+			LOGGER.error("Properties not reloaded : {}", ce.getMessage());
+		}
+	}
 
-				// Récupère le path de l'application
-				URI classPath = CubeExplorer.class.getProtectionDomain().getCodeSource().getLocation().toURI();
+	static private void startReload(long seconds) {
+		if (seconds <= 0) {
+			return;
+		}
+		Thread reloader = new Thread(() -> {
+			try {
+				while (true) {
+					TimeUnit.SECONDS.sleep(seconds);
+					if (propertiesFile.lastModified() != propertiesModified) {
+						reloadProperties();
+					}
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}, "properties-reload");
+		reloader.setDaemon(true);
+		reloader.start();
+	}
 
-				// Extrait le fichier de conf par défaut si celui-ci n'existe
-				// pas
-				File filePath = new File(classPath.getPath(), "cubeExplorer.properties");
+	static private Properties loadProperties() throws CubeExplorerException {
+		Properties loaded = new Properties();
+		InputStream input = null;
+		OutputStream output = null;
+		String messageFile = null;
 
-				if (!filePath.exists()) {
-					// Get de la ressource
-					messageFile = "conf/cubeExplorer.properties";
-					input = CubeExplorer.class.getClassLoader().getResourceAsStream(messageFile);
+		try {
+			// Récupère le path de l'application
+			URI classPath = CubeExplorer.class.getProtectionDomain().getCodeSource().getLocation().toURI();
 
-					// Copie du fichier en local
-					messageFile = filePath.getAbsolutePath();
-					output = new FileOutputStream(filePath);
+			// Extrait le fichier de conf par défaut si celui-ci n'existe
+			// pas
+			File filePath = new File(classPath.getPath(), "cubeExplorer.properties");
 
-					// On utilise une lecture bufférisé :
-					byte[] buf = new byte[4096];
-					int len = 0;
-					while ((len = input.read(buf)) > 0) {
-						output.write(buf, 0, len);
-					}
-				}
+			if (!filePath.exists()) {
+				// Get de la ressource
+				messageFile = "conf/cubeExplorer.properties";
+				input = CubeExplorer.class.getClassLoader().getResourceAsStream(messageFile);
 
+				// Copie du fichier en local
 				messageFile = filePath.getAbsolutePath();
-				properties.load(new FileInputStream(filePath));
-			} catch (Exception e) {
-				properties = null;
-				LOGGER.error("exception.unavailableResource {}", messageFile);
-				throw new CubeExplorerException(e, "exception.unavailableResource", messageFile);
-			} finally {
-				try {
-					if (input != null)
-						input.close();
-					if (output != null) {
-						output.close();
-						output = null;
-					}
-				} catch (Exception e) {
-					LOGGER.error("exception.libre {}", e.getMessage());
-					throw new CubeExplorerException(e, "exception.libre");
+				output = new FileOutputStream(filePath);
+
+				// On utilise une lecture bufférisé :
+				byte[] buf = new byte[4096];
+				int len = 0;
+				while ((len = input.read(buf)) > 0) {
+					output.write(buf, 0, len);
 				}
 			}
-		}
 
-		value = properties.getProperty(key);
-		if (value == null) {
-			if (defaultValue == null) {
-				LOGGER.error("property not found {}", key);
-				throw new NotFoundException("property " + key);
-			} else
-				value = defaultValue;
+			messageFile = filePath.getAbsolutePath();
+			propertiesModified = filePath.lastModified();
+			propertiesFile = filePath;
+			try (InputStream file = new FileInputStream(filePath)) {
+				loaded.load(file);
+			}
+		} catch (Exception e) {
+			LOGGER.error("exception.unavailableResource {}", messageFile);
+			throw new CubeExplorerException(e, "exception.unavailableResource", messageFile);
+		} finally {
+			try {
+				if (input != null)
+					input.close();
+				if (output != null) {
+					output.close();
+					output = null;
+				}
+			} catch (Exception e) {
+				LOGGER.error("exception.libre {}", e.getMessage());
+				throw new CubeExplorerException(e, "exception.libre");
+			}
 		}
-		return value;
+		return loaded;
 	}
 
 	/**
@@ -0,0 +1,51 @@
+package app;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.ThreadContext;
+import org.slf4j.MDC;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Log level of a request.
+ * <p>
+ * The <code>logLevel</code> parameter of a request is put in the MDC of slf4j
+ * and the ThreadContext of log4j under the key <code>logLevel</code>, for the
+ * time of the request. The DynamicThresholdFilter of conf/logback-spring.xml
+ * and conf/log4j2.xml then log the events of that request from this level,
+ * without changing the level of the loggers for the other requests.
+ */
+@Component
+public class LogLevelFilter extends OncePerRequestFilter {
+
+    public static final String KEY = "logLevel";
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+        throws ServletException, IOException {
+        String logLevel = request.getParameter(KEY);
+        Level level = (logLevel == null) ? null : Level.getLevel(logLevel.toUpperCase());
+
+        if (level == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        MDC.put(KEY, level.name());
+        ThreadContext.put(KEY, level.name());
+        try {
+            chain.doFilter(request, response);
+        }
+        finally {
+            MDC.remove(KEY);
+            ThreadContext.remove(KEY);
+        }
+    }
+}
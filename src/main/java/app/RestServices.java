@@ -1,10 +1,12 @@
 package app;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -12,35 +14,57 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.annotation.PostConstruct;
 import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.QueryParam;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.apache.logging.log4j.Level;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.core.config.Configurator;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.fasterxml.jackson.annotation.JsonValue;
 
+import common.enums.Aggregation;
+import common.enums.Binning;
+import common.enums.Colormap;
+import common.enums.Encoding;
+import common.enums.Stretch;
 import common.exceptions.CubeExplorerException;
 import common.exceptions.Messages;
 import common.exceptions.SimpleException;
 import fr.cnes.cubeExplorer.resources.AbstractDataCube;
-import fr.cnes.cubeExplorer.resources.GeoJsonResponse;;
+import fr.cnes.cubeExplorer.resources.BinaryResponse;
+import fr.cnes.cubeExplorer.resources.CubeCache;
+import fr.cnes.cubeExplorer.resources.CubeStatistics;
+import fr.cnes.cubeExplorer.resources.GeoJsonResponse;
+import fr.cnes.cubeExplorer.resources.GeoJsonSlideWriter;
+import fr.cnes.cubeExplorer.resources.PlaneCache;
+import fr.cnes.cubeExplorer.resources.QuantizedValues;
+import fr.cnes.cubeExplorer.resources.SlidePrefetcher;
+import fr.cnes.cubeExplorer.resources.SlidePyramid;
+import fr.cnes.cubeExplorer.resources.SlideRenderer;
+import fr.cnes.cubeExplorer.resources.SpectrumRegion;
+import fr.cnes.cubeExplorer.resources.WorkspaceIndex;
 
 @CrossOrigin(origins = "*")
 @RestController
@@ -52,34 +76,36 @@ public class RestServices {
     // Initialize logger (see conf/log4j2.xml).
     final Logger LOGREST = LoggerFactory.getLogger(RestServices.class);
 
-    String workspace = null;
-
     /**
      * @return the workspace
+     * @throws CubeExplorerException
      */
-    public String getWorkspace() {
-        return workspace;
+    public String getWorkspace() throws CubeExplorerException {
+        return CubeExplorer.getProperty("workspace", ".");
     }
-    
 
-    private void initService(String logLevel) throws CubeExplorerException {
-        // Log level
-        if (logLevel != null && Level.getLevel((logLevel = logLevel.toUpperCase())) != null) {
-            Configurator.setAllLevels(LogManager.getRootLogger().getName(), Level.getLevel(logLevel));
-            LOGREST.info("LEVEL : {}", logLevel);
-        }
+    /**
+     * Load the messages and index the workspace at startup. The log level is
+     * set by request (see {@link LogLevelFilter}).
+     */
+    @PostConstruct
+    public void initService() {
+        try {
+            Locale lang = new Locale(CubeExplorer.getProperty("lang", Locale.getDefault().toString()));
 
-        // Properties
-        workspace = CubeExplorer.getProperty("workspace", ".");
-        LOGREST.info("initService - Set Workspace : {}", workspace);
-        Locale lang = new Locale(CubeExplorer.getProperty("lang", Locale.getDefault().toString()));
+            // loading application messages
+            Messages.load("conf/messages", lang);
 
-        // loading application messages
-        Messages.load("conf/messages", lang);
+            WorkspaceIndex.getInstance();
+        }
+        catch (CubeExplorerException ce) {
+            // Loaded on the first request
+            LOGREST.error("initService : {}", ce.getMessage());
+        }
     }
 
     @RequestMapping(value = "/listFiles", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getListFiles(@QueryParam("logLlevel") String logLevel) {
+    public ResponseEntity<String> getListFiles() {
        
 
         JSONObject response = new JSONObject();
@@ -88,12 +114,7 @@ public class RestServices {
         
        
         try {
-        	LOGREST.info("Call getListFiles({}, {})",logLevel);
-        	logLevel = (logLevel==null)?"INFO":logLevel;
-        	LOGREST.info("getListFiles - logLevel ({})",logLevel);
-        	initService(logLevel);            
-
-        	LOGREST.info("getListFiles - logLevel ({})",logLevel);
+        	LOGREST.info("Call getListFiles()");
             files = getAllFiles();
             LOGREST.info("files ({})",files.length());
             response.put("public_files", files.get(0));
@@ -111,159 +132,798 @@ public class RestServices {
         return new ResponseEntity<String>(response.toString(), status);
     }
 
-    private JSONArray getAllFiles() {
+    /**
+     * Get the counters of the plane cache
+     *
+     * @return Size, hits, misses, evictions and rejections of the plane cache (see {@link PlaneCache})
+     */
+    @RequestMapping(value = "/cache", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getCache() {
+        JSONObject response = new JSONObject();
+        HttpStatus status = HttpStatus.OK;
+
+        try {
+            LOGREST.info("Call getCache()");
+            response.put("planes", PlaneCache.getInstance().getStatistics());
+        }
+        catch (Exception e) {
+            status = HttpStatus.INTERNAL_SERVER_ERROR;
+            String message = e.getMessage();
+            response.put("message", message);
+            LOGREST.error("getCache : {}", message);
+        }
+
+        response.put("status", status.name());
+        return new ResponseEntity<String>(response.toString(), status);
+    }
+
+    private JSONArray getAllFiles() throws CubeExplorerException {
     	JSONArray response = new JSONArray();
-    	File dir = null;
-        dir = new File(workspace+"/public/");
-
-        // create new filter
-        // Filter to fits or netCdf files
-        FilenameFilter filter = new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".fits") || name.endsWith(".nc");
-            }
-        };
-    	 // array of files and directory
-        List<String> dirList = new ArrayList<String>(Arrays.asList(dir.list(filter)));     
-        response.put(0,  dirList.toArray());
-        dir = new File(workspace+"/private/");
-        List<String> dirList2 = new ArrayList<String>(Arrays.asList(dir.list(filter)));          
-        response.put(1,  dirList2.toArray());
+    	WorkspaceIndex index = WorkspaceIndex.getInstance();
+        response.put(0, index.getPublicFiles());
+        response.put(1, index.getPrivateFiles());
     	return response;
     }
     
-    @RequestMapping(value = "/header", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getHeader(@QueryParam("entry") String entry, @QueryParam("metadata") String metadata,
-        @QueryParam("logLevel") String logLevel) {
+    /**
+     * Return the path of an entry, searched first in the public workspace.
+     * 
+     * @param entry Name of the file
+     * @return path of the file
+     * @throws CubeExplorerException
+     */
+    private String getEntryPath(String entry) throws CubeExplorerException {
+        return WorkspaceIndex.getInstance().getPath(entry);
+    }
 
-        JSONObject response = new JSONObject();
-        HttpStatus status = HttpStatus.OK;
+    /**
+     * Return true if a binary response is requested, with format=bin or an
+     * Accept header preferring application/octet-stream to application/json.
+     * 
+     * @param format format parameter
+     * @param accept Accept header
+     * @return true for a binary response
+     */
+    private boolean isBinary(String format, String accept) {
+        if (format != null) {
+            return "bin".equals(format);
+        }
+        if (accept == null) {
+            return false;
+        }
+        List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.includes(MediaType.APPLICATION_JSON)) {
+                return false;
+            }
+            if (mediaType.equals(MediaType.APPLICATION_OCTET_STREAM)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        GeoJsonResponse geoJsonSlide = null;
-        AbstractDataCube adc = null;
+    /**
+     * Return a strong ETag of a response, built from the path, size and
+     * modification date of the file and the parameters of the request.
+     *
+     * @param file datacube file
+     * @param params parameters of the request
+     * @return quoted ETag, or null if the file does not exist
+     */
+    private String getETag(File file, Object... params) {
+        if (!file.isFile()) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(file.getAbsolutePath());
+        key.append('|').append(file.length()).append('|').append(file.lastModified());
+        for (Object param : params) {
+            key.append('|').append(param);
+        }
+        return "\"" + UUID.nameUUIDFromBytes(key.toString().getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
 
+    /**
+     * Return the key of the identical requests sharing their response (see
+     * {@link CubeExecutors}), from the version of the file and the parameters
+     * of the request.
+     *
+     * @param entry entry of the request
+     * @param params operation and parameters of the request
+     * @return the key, null if the entry is not found
+     */
+    private String getFlightKey(String entry, Object... params) {
+        if (entry == null) {
+            return null;
+        }
         try {
-        	logLevel = (logLevel==null)?"INFO":logLevel;
-            initService(logLevel);
-            LOGREST.info("Call getHeader({}, {}, {})", entry, metadata);
+            return getETag(new File(getEntryPath(entry)), params);
+        }
+        catch (CubeExplorerException ce) {
+            return null;
+        }
+    }
 
-            if (entry == null) {
-                SimpleException se = new SimpleException("exception.parameterMissing", "entry");
-                LOGREST.info("exception.rest.header.syntax {}", se.getMessage());
-                throw new CubeExplorerException(se, "exception.rest.header.syntax");
-            }           
-           
-            File dir = new File(workspace+"/public/");
-             FilenameFilter filter = new FilenameFilter() {
-	            @Override
-	            public boolean accept(File dir, String name) {
-	                return name.endsWith(".fits") || name.endsWith(".nc");
-	            }
-             };
-			List<String> dirList = new ArrayList<String>(Arrays.asList(dir.list(filter)));  
-			CubeExplorer ce;
-           if(dirList.contains(entry)) {
-            	// read file
-                ce = new CubeExplorer(workspace + "/public/" + entry);
-            }else {
-            	ce = new CubeExplorer(workspace + "/private/" + entry);
+    /**
+     * Return true if an If-None-Match header matches the ETag of the response.
+     *
+     * @param ifNoneMatch If-None-Match header
+     * @param eTag ETag of the response
+     * @return true for a 304 response
+     */
+    private boolean isNotModified(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null || eTag == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(eTag) || tag.equals("W/" + eTag)) {
+                return true;
             }
+        }
+        return false;
+    }
+
+    /**
+     * Add the validators and the Cache-Control header of a cube response,
+     * cache_control for the public workspace and cache_control_private for the
+     * private one, not to be kept by shared caches.
+     *
+     * @param builder response
+     * @param file datacube file
+     * @param eTag ETag of the response, null for none
+     * @return the builder
+     */
+    private ResponseEntity.BodyBuilder cacheHeaders(ResponseEntity.BodyBuilder builder, File file, String eTag) {
+        if (eTag != null) {
+            String cacheControl;
+            try {
+                cacheControl = WorkspaceIndex.getInstance().isPublic(file)
+                    ? CubeExplorer.getProperty("cache_control", "no-cache")
+                    : CubeExplorer.getProperty("cache_control_private", "private, no-cache");
+            }
+            catch (CubeExplorerException ce) {
+                cacheControl = "private, no-cache";
+            }
+            builder.eTag(eTag).lastModified(file.lastModified()).header(HttpHeaders.CACHE_CONTROL, cacheControl);
+        }
+        return builder;
+    }
+
+    @RequestMapping(value = "/header", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<String>> getHeader(@QueryParam("entry") String entry,
+        @QueryParam("metadata") String metadata,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String key = getFlightKey(entry, "header", metadata, ifNoneMatch);
+        return CubeExecutors.submit(CubeExecutors.Pool.METADATA, "getHeader", key, () -> {
+            JSONObject response = new JSONObject();
+            HttpStatus status = HttpStatus.OK;
+
+            GeoJsonResponse geoJsonSlide = null;
+            AbstractDataCube adc = null;
+            CubeCache.Handle handle = null;
+            File file = null;
+            String eTag = null;
+
+            try {
+                LOGREST.info("Call getHeader({}, {}, {})", entry, metadata);
+
+                if (entry == null) {
+                    SimpleException se = new SimpleException("exception.parameterMissing", "entry");
+                    LOGREST.info("exception.rest.header.syntax {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.header.syntax");
+                }           
+           
+                // Validators of the response, checked before opening the cube
+                file = new File(getEntryPath(entry));
+                // The header holds the statistics of the cube once computed
+                eTag = getETag(file, "header", metadata, CubeStatistics.getStatisticsFile(file.getPath()).exists());
+                if (isNotModified(ifNoneMatch, eTag)) {
+                    return cacheHeaders(ResponseEntity.status(HttpStatus.NOT_MODIFIED), file, eTag).build();
+                }
+
+                LOGREST.info("Call getCube()");
+                handle = CubeCache.getInstance().acquire(file.getPath());
+                adc = handle.getCube();
             
-            LOGREST.info("Call getCube()");
-            adc = ce.getCube();
-            
-            JSONObject properties = adc.getHeader(metadata);
-            properties.put("fileType", adc.getType().toString());
+                JSONObject properties = adc.getHeader(metadata);
+                properties.put("fileType", adc.getType().toString());
 
-            // Format json response
-            geoJsonSlide = new GeoJsonResponse(0, 0, properties);
-            response.put("response", geoJsonSlide.getGeoJson());
+                // Format json response
+                geoJsonSlide = new GeoJsonResponse(0, 0, properties);
+                response.put("response", geoJsonSlide.getGeoJson());
+            }
+            catch (SimpleException se) {
+                status = HttpStatus.BAD_REQUEST;
+                ArrayList<String> listMessage = se.getMessages();
+                String message="";
+                for (String s : listMessage)
+                {
+                	message += s + " ";
+                }
+                response.put("message", message);
+                LOGREST.error("getHeader : {}", message);
+            }
+            catch (Exception e) {
+                status = HttpStatus.INTERNAL_SERVER_ERROR;
+                String message = e.getMessage();
+                response.put("message", message);
+                LOGREST.error("getHeader : {}", message);
+            }
+            finally {
+                if (handle != null) handle.release();
+            }
 
-            adc.close();
-        }
-        catch (SimpleException se) {
-            status = HttpStatus.BAD_REQUEST;
-            ArrayList<String> listMessage = se.getMessages();
-            String message="";
-            for (String s : listMessage)
-            {
-            	message += s + " ";
+            response.put("status", status.name());
+            return cacheHeaders(ResponseEntity.status(status), file, (status == HttpStatus.OK) ? eTag : null)
+                .body(response.toString());
+        }, (builder, error) -> builder.contentType(MediaType.APPLICATION_JSON).body(error.toString()));
+    }
+ 
+    /**
+     * A reduced encoding is quantized between the limits of the statistics of
+     * the cube once computed, which changes the response.
+     *
+     * @return whether the statistics of the cube are computed, null without encoding
+     */
+    private Boolean getStatisticsState(File file, Encoding encoding) throws CubeExplorerException {
+        return (encoding == null) ? null : CubeStatistics.getStatisticsFile(file.getPath()).exists();
+    }
+
+    /**
+     * Read a slide, or a window of it, at a level of the pyramid.
+     *
+     * @param header receives the dims [rows, columns] of the values, the level and the window
+     * @return float[] or double[] of the values, row by row
+     * @throws CubeExplorerException
+     */
+    private Object readSlideValues(AbstractDataCube fc, int posZ, int level, Binning binning, Integer x0, Integer y0,
+        Integer width, Integer height, JSONObject header) throws CubeExplorerException {
+        if (x0 != null || y0 != null || width != null || height != null) {
+            SlidePyramid pyramid = fc.getPyramid();
+            int posX = (x0 == null) ? 0 : x0;
+            int posY = (y0 == null) ? 0 : y0;
+            int nbColumns = (width == null) ? pyramid.getDimX(level) - posX : width;
+            int nbRows = (height == null) ? pyramid.getDimY(level) - posY : height;
+            header.put("dims", new JSONArray().put(nbRows).put(nbColumns));
+            if (level > 0) {
+                header.put("level", level);
+                header.put("binning", binning.toString());
             }
-            response.put("message", message);
-            LOGREST.error("getHeader : {}", message);
+            header.put("x0", posX);
+            header.put("y0", posY);
+            if (level == 0) {
+                // Read from the slide if kept in the plane cache
+                return pyramid.readRegion(posZ, level, binning, posX, posY, nbColumns, nbRows);
+            }
+            return readCachedSlide(fc, posZ, level, binning, posX, posY, nbColumns, nbRows);
         }
-        catch (Exception e) {
-            status = HttpStatus.INTERNAL_SERVER_ERROR;
-            String message = e.getMessage();
-            response.put("message", message);
-            LOGREST.error("getHeader : {}", message);
+        if (level == 0) {
+            JSONObject dimensions = fc.getHeader().getDimensions();
+            header.put("dims", new JSONArray().put(dimensions.getInt("dimY")).put(dimensions.getInt("dimX")));
+            return fc.getCachedSlideValues(posZ);
         }
-        finally {
-            if (adc != null) adc.close();
+        SlidePyramid pyramid = fc.getPyramid();
+        header.put("dims", new JSONArray().put(pyramid.getDimY(level)).put(pyramid.getDimX(level)));
+        header.put("level", level);
+        header.put("binning", binning.toString());
+        return readCachedSlide(fc, posZ, level, binning, 0, 0, pyramid.getDimX(level), pyramid.getDimY(level));
+    }
+
+    /**
+     * Read a window of a slide of the pyramid, kept in the plane cache for the next requests
+     *
+     * @return float[] or double[] of the values, row by row
+     * @throws CubeExplorerException
+     */
+    private Object readCachedSlide(AbstractDataCube fc, int posZ, int level, Binning binning, int posX, int posY,
+        int width, int height) throws CubeExplorerException {
+        PlaneCache cache = PlaneCache.getInstance();
+        PlaneCache.Key key = PlaneCache.Key.slide(fc, posZ, level, binning, posX, posY, width, height);
+        Object values = cache.get(key);
+        if (values == null) {
+            SlidePyramid pyramid = fc.getPyramid();
+            boolean whole = posX == 0 && posY == 0 && width == pyramid.getDimX(level)
+                && height == pyramid.getDimY(level);
+            values = whole ? pyramid.readSlide(posZ, level, binning)
+                : pyramid.readRegion(posZ, level, binning, posX, posY, width, height);
+            cache.put(key, values);
         }
+        return values;
+    }
 
-        response.put("status", status.name());
-        return new ResponseEntity<String>(response.toString(), status);
+    /**
+     * Slide streamed from a cube. The cube is released once the slide is
+     * written, or when the response is dropped without being written (see
+     * {@link CubeExecutors}).
+     */
+    private static class SlideBody implements StreamingResponseBody, AutoCloseable {
+        private final GeoJsonSlideWriter writer;
+        private final CubeCache.Handle handle;
+
+        private SlideBody(GeoJsonSlideWriter writer, CubeCache.Handle handle) {
+            this.writer = writer;
+            this.handle = handle;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try {
+                writer.write(out);
+            }
+            finally {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            handle.release();
+        }
     }
- 
+
     /**
      * Get a slide from Fits File
      * 
      * @param entry Name of Fits file
      * @param metadata Pattern of metadata to retrieve
      * @param posZ Deep of slide from datacube
+     * @param level Level of the slide, binned by 2^level pixels (see {@link SlidePyramid})
+     * @param maxSize Maximum size of the slide, when level is not given
+     * @param binning Operator of the bins: mean (default), min or max
+     * @param x0 First column of a window of the slide, at its level
+     * @param y0 First row of a window of the slide, at its level
+     * @param width Number of columns of the window, up to the last one when not given
+     * @param height Number of rows of the window, up to the last one when not given
+     * @param encoding f16, u16 or u8 to reduce the values (see {@link QuantizedValues}), quantized between
+     *            the limits of the slide in the statistics of the cube, else those of the values
+     * @param format bin for a binary response (see {@link BinaryResponse})
+     * @param request request, whose client is followed to read ahead its next slides (see {@link SlidePrefetcher})
+     * @param accept Accept header, application/octet-stream for a binary response
      * @return A slide
      * @throws SimpleException
      */
-    @RequestMapping(value = "/slide", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getSlide(@QueryParam("entry") String entry, @QueryParam("metadata") String metadata,
-        @QueryParam("posZ") int posZ, @QueryParam("logLevel") String logLevel) {
+    @RequestMapping(value = "/slide", method = RequestMethod.GET, produces = { MediaType.APPLICATION_JSON_VALUE,
+        MediaType.APPLICATION_OCTET_STREAM_VALUE })
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> getSlide(@QueryParam("entry") String entry,
+        @QueryParam("metadata") String metadata, @QueryParam("posZ") int posZ, @QueryParam("level") Integer level, @QueryParam("maxSize") Integer maxSize,
+        @QueryParam("binning") String binning, @QueryParam("x0") Integer x0, @QueryParam("y0") Integer y0,
+        @QueryParam("width") Integer width, @QueryParam("height") Integer height,
+        @QueryParam("encoding") String encoding, @QueryParam("format") String format, HttpServletRequest request,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        // Read on the servlet thread
+        String client = request.getRemoteAddr();
+        String key = getFlightKey(entry, "slide", metadata, posZ, level, maxSize, binning, x0, y0, width, height,
+            encoding, format, accept, ifNoneMatch);
+        return CubeExecutors.submit(CubeExecutors.Pool.DATA, "getSlide", key, () -> {
+            JSONObject response = new JSONObject();
+            HttpStatus status = HttpStatus.OK;
+            byte[] binaryResponse = null;
+            byte[] jsonResponse = null;
+
+            GeoJsonSlideWriter slideWriter = null;
+            AbstractDataCube fc = null;
+            CubeCache.Handle handle = null;
+            File file = null;
+            String eTag = null;
+
+            try {
+                LOGREST.info("Call getFitsSlide({}, {}, {})", entry, metadata, posZ);
+
+
+                if (entry == null) {
+                    SimpleException se = new SimpleException("exception.parameterMissing", "entry");
+                    LOGREST.error("getSlide : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.slide.syntax");
+                }
+
+                Binning binningOperator = (binning == null) ? Binning.MEAN : Binning.fromName(binning);
+                if (binningOperator == null) {
+                    SimpleException se = new SimpleException("exception.invalidValue", binning);
+                    LOGREST.error("getSlide : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.slide.syntax");
+                }
+                Encoding slideEncoding = (encoding == null) ? null : Encoding.fromName(encoding);
+                if (encoding != null && slideEncoding == null) {
+                    SimpleException se = new SimpleException("exception.invalidValue", encoding);
+                    LOGREST.error("getSlide : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.slide.syntax");
+                }
+
+                boolean binary = isBinary(format, accept);
+
+                // Validators of the response, checked before opening the cube
+                file = new File(getEntryPath(entry));
+                eTag = getETag(file, "slide", metadata, posZ, level, maxSize, binningOperator, x0, y0, width, height,
+                    binary, slideEncoding, getStatisticsState(file, slideEncoding));
+                if (isNotModified(ifNoneMatch, eTag)) {
+                    return cacheHeaders(ResponseEntity.status(HttpStatus.NOT_MODIFIED), file, eTag)
+                        .varyBy(HttpHeaders.ACCEPT).build();
+                }
+
+                handle = CubeCache.getInstance().acquire(file.getPath());
+                fc = handle.getCube();
+
+                int slideLevel = 0;
+                if (level != null) {
+                    slideLevel = level;
+                }
+                else if (maxSize != null) {
+                    slideLevel = fc.getPyramid().getLevel(maxSize);
+                }
+
+                if (binary) {
+                    JSONObject header = new JSONObject();
+                    header.put("fileType", fc.getType().toString());
+                    header.put("posZ", posZ);
+                    header.put("metadata", fc.selectMetadata(metadata));
+                    Object values = readSlideValues(fc, posZ, slideLevel, binningOperator, x0, y0, width, height, header);
+
+                    // Format binary response
+                    binaryResponse = (slideEncoding == null) ? new BinaryResponse(header, values).getBytes()
+                        : new BinaryResponse(header, new QuantizedValues(values, slideEncoding,
+                            fc.getStatisticsRange(posZ))).getBytes();
+                }
+                else {
+                    // Json response streamed row by row
+                    slideWriter = new GeoJsonSlideWriter(fc, posZ, metadata, slideLevel, binningOperator, x0, y0, width,
+                        height);
+                    if (slideEncoding != null) {
+                        slideWriter.setEncoding(slideEncoding, fc.getStatisticsRange(posZ));
+                    }
+                    if (slideWriter.getSize() <= Long.parseLong(CubeExplorer.getProperty("coalescing_max_values",
+                        "262144"))) {
+                        // Small slide written now, its response is shared by the identical requests
+                        GeoJsonSlideWriter writer = slideWriter;
+                        slideWriter = null;
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        writer.write(out);
+                        jsonResponse = out.toByteArray();
+                    }
+                }
+                if (slideLevel == 0) {
+                    SlidePrefetcher.getInstance().onSlide(client, file.getPath(), posZ,
+                        fc.getHeader().getDimensions().getInt("dimZ"));
+                }
+            }
+            catch (SimpleException se) {
+                status = HttpStatus.BAD_REQUEST;
+                ArrayList<String> listMessage = se.getMessages();
+                String message="";
+                for (String s : listMessage)
+                {
+                	message += s + " ";
+                }
+                response.put("message", message);
+                LOGREST.error("getSlide : {}", message); 
+                slideWriter = null;
+            }
+            catch (Exception e) {
+                status = HttpStatus.INTERNAL_SERVER_ERROR;            
+                response.put("message", e.getStackTrace());
+                LOGREST.error("getSlide : {}", e.getMessage()); 
+                // Error response instead of the slide
+                slideWriter = null;
+            }
+            finally {
+                // The cube of a streamed response is released once written
+                if (handle != null && slideWriter == null) handle.release();
+            }
+
+            if (slideWriter != null) {
+                StreamingResponseBody body = new SlideBody(slideWriter, handle);
+                // Written once
+                CubeExecutors.setNotShared();
+                return cacheHeaders(ResponseEntity.ok(), file, eTag).varyBy(HttpHeaders.ACCEPT)
+                    .contentType(MediaType.APPLICATION_JSON).body(body);
+            }
+            if (jsonResponse != null) {
+                byte[] bytes = jsonResponse;
+                return cacheHeaders(ResponseEntity.ok(), file, eTag).varyBy(HttpHeaders.ACCEPT)
+                    .contentType(MediaType.APPLICATION_JSON).body(out -> out.write(bytes));
+            }
+            if (binaryResponse != null) {
+                byte[] bytes = binaryResponse;
+                return cacheHeaders(ResponseEntity.ok(), file, eTag).varyBy(HttpHeaders.ACCEPT)
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM).body(out -> out.write(bytes));
+            }
+            response.put("status", status.name());
+            byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+            return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(out -> out.write(bytes));
+        }, (builder, error) -> builder.contentType(MediaType.APPLICATION_JSON)
+            .body(out -> out.write(error.toString().getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * Render a slide, or a window of it, as a PNG or WebP quick-look
+     * 
+     * @param entry Name of Fits file
+     * @param posZ Deep of slide from datacube
+     * @param level Level of the slide, binned by 2^level pixels (see {@link SlidePyramid})
+     * @param maxSize Maximum size of the slide, when level is not given
+     * @param binning Operator of the bins: mean (default), min or max
+     * @param x0 First column of a window of the slide, at its level
+     * @param y0 First row of a window of the slide, at its level
+     * @param width Number of columns of the window, up to the last one when not given
+     * @param height Number of rows of the window, up to the last one when not given
+     * @param stretch linear (default), log, sqrt or asinh
+     * @param limits Display limits: percentile (default) or zscale
+     * @param pmin Lower percentile, 0.5 by default
+     * @param pmax Upper percentile, 99.5 by default
+     * @param vmin Lower limit, replacing the computed one
+     * @param vmax Upper limit, replacing the computed one
+     * @param colormap gray (default), heat, jet, viridis or cool
+     * @param request request, /slide.png or /slide.webp
+     * @return The image, NaN values being transparent
+     * @throws SimpleException
+     */
+    @RequestMapping(value = { "/slide.png", "/slide.webp" }, method = RequestMethod.GET)
+    public DeferredResult<ResponseEntity<byte[]>> getSlideImage(@QueryParam("entry") String entry, @QueryParam("posZ") int posZ,
+        @QueryParam("level") Integer level, @QueryParam("maxSize") Integer maxSize,
+        @QueryParam("binning") String binning, @QueryParam("x0") Integer x0, @QueryParam("y0") Integer y0,
+        @QueryParam("width") Integer width, @QueryParam("height") Integer height,
+        @QueryParam("stretch") String stretch, @QueryParam("limits") String limits, @QueryParam("pmin") Double pmin,
+        @QueryParam("pmax") Double pmax, @QueryParam("vmin") Double vmin, @QueryParam("vmax") Double vmax,
+        @QueryParam("colormap") String colormap, HttpServletRequest request,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        // Read on the servlet thread
+        String format = request.getRequestURI().endsWith(".webp") ? "webp" : "png";
+        String client = request.getRemoteAddr();
+
+        return CubeExecutors.submit(CubeExecutors.Pool.DATA, "getSlideImage", () -> {
+            JSONObject response = new JSONObject();
+            HttpStatus status = HttpStatus.OK;
+            byte[] image = null;
+
+            CubeCache.Handle handle = null;
+            File file = null;
+            String eTag = null;
+
+            try {
+                LOGREST.info("Call getSlideImage({}, {}, {})", entry, posZ, format);
+
+                if (entry == null) {
+                    SimpleException se = new SimpleException("exception.parameterMissing", "entry");
+                    LOGREST.error("getSlideImage : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.slide.image.syntax");
+                }
+
+                Binning binningOperator = (binning == null) ? Binning.MEAN : Binning.fromName(binning);
+                Stretch stretchOperator = (stretch == null) ? Stretch.LINEAR : Stretch.fromName(stretch);
+                Colormap colors = (colormap == null) ? Colormap.GRAY : Colormap.fromName(colormap);
+                boolean zscale = "zscale".equalsIgnoreCase(limits);
+                String invalid = null;
+                if (binningOperator == null) {
+                    invalid = binning;
+                }
+                else if (stretchOperator == null) {
+                    invalid = stretch;
+                }
+                else if (colors == null) {
+                    invalid = colormap;
+                }
+                else if (limits != null && !zscale && !"percentile".equalsIgnoreCase(limits)) {
+                    invalid = limits;
+                }
+                else if (!SlideRenderer.isSupported(format)) {
+                    // No ImageIO writer of the format
+                    invalid = format;
+                }
+                if (invalid != null) {
+                    SimpleException se = new SimpleException("exception.invalidValue", invalid);
+                    LOGREST.error("getSlideImage : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.slide.image.syntax");
+                }
+
+                // Validators of the response, checked before opening the cube
+                file = new File(getEntryPath(entry));
+                eTag = getETag(file, "slide." + format, posZ, level, maxSize, binningOperator, x0, y0, width, height,
+                    stretchOperator, zscale, pmin, pmax, vmin, vmax, colors);
+                if (isNotModified(ifNoneMatch, eTag)) {
+                    return cacheHeaders(ResponseEntity.status(HttpStatus.NOT_MODIFIED), file, eTag).build();
+                }
+
+                handle = CubeCache.getInstance().acquire(file.getPath());
+                AbstractDataCube fc = handle.getCube();
+
+                int slideLevel = 0;
+                if (level != null) {
+                    slideLevel = level;
+                }
+                else if (maxSize != null) {
+                    slideLevel = fc.getPyramid().getLevel(maxSize);
+                }
+
+                JSONObject header = new JSONObject();
+                Object values = readSlideValues(fc, posZ, slideLevel, binningOperator, x0, y0, width, height, header);
+                JSONArray dims = header.getJSONArray("dims");
+
+                double[] bounds = zscale ? SlideRenderer.getZScaleLimits(values) : SlideRenderer.getPercentileLimits(
+                    values, (pmin == null) ? 0.5 : pmin, (pmax == null) ? 99.5 : pmax);
+                double low = (vmin == null) ? bounds[0] : vmin;
+                double high = (vmax == null) ? bounds[1] : vmax;
+
+                SlideRenderer renderer = new SlideRenderer(stretchOperator, colors);
+                image = SlideRenderer.write(renderer.render(values, dims.getInt(1), dims.getInt(0), low, high), format);
+                if (slideLevel == 0) {
+                    SlidePrefetcher.getInstance().onSlide(client, file.getPath(), posZ,
+                        fc.getHeader().getDimensions().getInt("dimZ"));
+                }
+            }
+            catch (SimpleException se) {
+                status = HttpStatus.BAD_REQUEST;
+                ArrayList<String> listMessage = se.getMessages();
+                String message="";
+                for (String s : listMessage)
+                {
+                	message += s + " ";
+                }
+                response.put("message", message);
+                LOGREST.error("getSlideImage : {}", message); 
+            }
+            catch (Exception e) {
+                status = HttpStatus.INTERNAL_SERVER_ERROR;
+                String message = e.getMessage();
+                response.put("message", message);
+                LOGREST.error("getSlideImage : {}", message); 
+            }
+            finally {
+                if (handle != null) handle.release();
+            }
+
+            if (image != null) {
+                return cacheHeaders(ResponseEntity.ok(), file, eTag).contentType(MediaType.parseMediaType("image/" + format))
+                    .body(image);
+            }
+            response.put("status", status.name());
+            return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON)
+                .body(response.toString().getBytes(StandardCharsets.UTF_8));
+        }, (builder, error) -> builder.contentType(MediaType.APPLICATION_JSON)
+            .body(error.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Stream the slides of a range of Z as Server-Sent Events (see {@link SlideStream})
+     * 
+     * @param entry Name of Fits file
+     * @param z0 First posZ, 0 by default
+     * @param z1 Last posZ, the last one by default, lower than z0 to play backward
+     * @param step Number of slides between two slides sent, 1 by default
+     * @param level Level of the slides, binned by 2^level pixels (see {@link SlidePyramid})
+     * @param maxSize Maximum size of the slides, when level is not given
+     * @param binning Operator of the bins: mean (default), min or max
+     * @param x0 First column of a window of the slides, at their level
+     * @param y0 First row of a window of the slides, at their level
+     * @param width Number of columns of the window, up to the last one when not given
+     * @param height Number of rows of the window, up to the last one when not given
+     * @param encoding json (default), png, f16, u16 or u8
+     * @param stretch linear (default), log, sqrt or asinh, for png
+     * @param colormap gray (default), heat, jet, viridis or cool, for png
+     * @param pmin Lower percentile of the first slide, 0.5 by default, for png and the reduced encodings
+     * @param pmax Upper percentile of the first slide, 99.5 by default, for png and the reduced encodings
+     * @param vmin Lower limit, replacing the computed one
+     * @param vmax Upper limit, replacing the computed one
+     * @param fps Slides per second, 10 by default, up to stream_max_fps
+     * @param window Slides sent ahead of the last one acknowledged, 0 (default) without acknowledgment
+     * @param lastEventId posZ of the last slide received, to resume a stream
+     * @return The events of the stream
+     */
+    @RequestMapping(value = "/slides/stream", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> getSlideStream(@QueryParam("entry") String entry, @QueryParam("z0") Integer z0,
+        @QueryParam("z1") Integer z1, @QueryParam("step") Integer step, @QueryParam("level") Integer level,
+        @QueryParam("maxSize") Integer maxSize, @QueryParam("binning") String binning, @QueryParam("x0") Integer x0,
+        @QueryParam("y0") Integer y0, @QueryParam("width") Integer width, @QueryParam("height") Integer height,
+        @QueryParam("encoding") String encoding, @QueryParam("stretch") String stretch,
+        @QueryParam("colormap") String colormap, @QueryParam("pmin") Double pmin, @QueryParam("pmax") Double pmax,
+        @QueryParam("vmin") Double vmin, @QueryParam("vmax") Double vmax, @QueryParam("fps") Double fps,
+        @QueryParam("window") Integer window,
+        @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
 
         JSONObject response = new JSONObject();
         HttpStatus status = HttpStatus.OK;
 
-        GeoJsonResponse geoJsonSlide = null;
-        AbstractDataCube fc = null;
+        SseEmitter emitter = null;
+        CubeCache.Handle handle = null;
 
         try {
-        	logLevel = (logLevel==null)?"INFO":logLevel;
-            initService(logLevel);
-            LOGREST.info("Call getFitsSlide({}, {}, {})", entry, metadata, posZ);
-
+            LOGREST.info("Call getSlideStream({}, {}, {}, {})", entry, z0, z1, step);
 
             if (entry == null) {
                 SimpleException se = new SimpleException("exception.parameterMissing", "entry");
-                LOGREST.error("getSlide : {}", se.getMessage());
-                throw new CubeExplorerException(se, "exception.rest.slide.syntax");
+                LOGREST.error("getSlideStream : {}", se.getMessage());
+                throw new CubeExplorerException(se, "exception.rest.slide.stream.syntax");
             }
 
-           
-            File dir = new File(workspace+"/public/");
-            FilenameFilter filter = new FilenameFilter() {
-	            @Override
-	            public boolean accept(File dir, String name) {
-	                return name.endsWith(".fits") || name.endsWith(".nc");
-	            }
-            };
-			List<String> dirList = new ArrayList<String>(Arrays.asList(dir.list(filter)));  
-            CubeExplorer ce;
-            if(dirList.contains(entry)) {
-             	// read file
-                 ce = new CubeExplorer(workspace + "/public/" + entry);
-             }else {
-             	ce = new CubeExplorer(workspace + "/private/" + entry);
-             }
-            fc = ce.getCube();
-
-            JSONObject properties = fc.getSlide(posZ, metadata);
-            properties.put("fileType", fc.getType().toString());
-
-            // Format json response
-            geoJsonSlide = new GeoJsonResponse(1, posZ, properties);
-            response.put("response", geoJsonSlide.getGeoJson());
-
-            fc.close();
+            String slideEncoding = (encoding == null) ? "json" : encoding.toLowerCase();
+            Binning binningOperator = (binning == null) ? Binning.MEAN : Binning.fromName(binning);
+            Stretch stretchOperator = (stretch == null) ? Stretch.LINEAR : Stretch.fromName(stretch);
+            Colormap colors = (colormap == null) ? Colormap.GRAY : Colormap.fromName(colormap);
+            double maxFps = Double.parseDouble(CubeExplorer.getProperty("stream_max_fps", "30"));
+            Object invalid = null;
+            if (!Arrays.asList("json", "png").contains(slideEncoding) && Encoding.fromName(slideEncoding) == null) {
+                invalid = encoding;
+            }
+            else if (binningOperator == null) {
+                invalid = binning;
+            }
+            else if (stretchOperator == null) {
+                invalid = stretch;
+            }
+            else if (colors == null) {
+                invalid = colormap;
+            }
+            else if (step != null && step == 0) {
+                invalid = step;
+            }
+            else if (fps != null && !(fps > 0)) {
+                invalid = fps;
+            }
+            else if (window != null && window < 0) {
+                invalid = window;
+            }
+            if (invalid != null) {
+                SimpleException se = new SimpleException("exception.invalidValue", invalid);
+                LOGREST.error("getSlideStream : {}", se.getMessage());
+                throw new CubeExplorerException(se, "exception.rest.slide.stream.syntax");
+            }
+
+            handle = CubeCache.getInstance().acquire(getEntryPath(entry));
+            AbstractDataCube fc = handle.getCube();
+
+            int dimZ = fc.getHeader().getDimensions().getInt("dimZ");
+            int firstZ = (z0 == null) ? 0 : z0;
+            int lastZ = (z1 == null) ? dimZ - 1 : z1;
+            if (firstZ < 0 || firstZ >= dimZ) {
+                // OutOfBound
+                throw new CubeExplorerException("exception.outOfBound", "z0", firstZ, 0, dimZ - 1);
+            }
+            if (lastZ < 0 || lastZ >= dimZ) {
+                // OutOfBound
+                throw new CubeExplorerException("exception.outOfBound", "z1", lastZ, 0, dimZ - 1);
+            }
+            int slideStep = (step == null) ? 1 : Math.abs(step);
+            if (lastEventId != null) {
+                // Reconnection: resume after the last slide received
+                int direction = (lastZ < firstZ) ? -1 : 1;
+                firstZ = Integer.parseInt(lastEventId.trim()) + direction * slideStep;
+                if (direction * (lastZ - firstZ) < 0) {
+                    return ResponseEntity.noContent().build();
+                }
+            }
+
+            int slideLevel = 0;
+            if (level != null) {
+                slideLevel = level;
+            }
+            else if (maxSize != null) {
+                slideLevel = fc.getPyramid().getLevel(maxSize);
+            }
+            int streamLevel = slideLevel;
+
+            SlideStream stream = new SlideStream(handle,
+                (posZ, header) -> readSlideValues(fc, posZ, streamLevel, binningOperator, x0, y0, width, height,
+                    header),
+                firstZ, lastZ, slideStep, slideEncoding, Math.min(maxFps, (fps == null) ? 10 : fps),
+                (window == null) ? 0 : window);
+            stream.setLimits(new SlideRenderer(stretchOperator, colors), (pmin == null) ? 0.5 : pmin,
+                (pmax == null) ? 99.5 : pmax, vmin, vmax);
+            try {
+                emitter = stream.start();
+                // The cube is released by the stream
+                handle = null;
+            }
+            catch (RejectedExecutionException ree) {
+                status = HttpStatus.SERVICE_UNAVAILABLE;
+                response.put("message", Messages.getMessage("message.stream.busy"));
+                LOGREST.error("getSlideStream : {} streams", CubeExplorer.getProperty("stream_max", "8"));
+            }
+        }
+        catch (NumberFormatException nfe) {
+            status = HttpStatus.BAD_REQUEST;
+            response.put("message", nfe.getMessage());
+            LOGREST.error("getSlideStream : {}", nfe.getMessage());
         }
         catch (SimpleException se) {
             status = HttpStatus.BAD_REQUEST;
@@ -274,83 +934,44 @@ public class RestServices {
             	message += s + " ";
             }
             response.put("message", message);
-            LOGREST.error("getSlide : {}", message); 
+            LOGREST.error("getSlideStream : {}", message); 
         }
         catch (Exception e) {
-            status = HttpStatus.INTERNAL_SERVER_ERROR;            
-            response.put("message", e.getStackTrace());
-            LOGREST.error("getSlide : {}", e.getMessage()); 
+            status = HttpStatus.INTERNAL_SERVER_ERROR;
+            String message = e.getMessage();
+            response.put("message", message);
+            LOGREST.error("getSlideStream : {}", message); 
         }
         finally {
-            if (fc != null) fc.close();
+            if (handle != null) handle.release();
         }
 
+        if (emitter != null) {
+            return ResponseEntity.ok().header(HttpHeaders.CACHE_CONTROL, "no-cache").body(emitter);
+        }
+        // The error is the failure event of the stream, its status stops the reconnections
         response.put("status", status.name());
-        return new ResponseEntity<String>(response.toString(), status);
+        return ResponseEntity.status(status).body(SlideStream.failure(response));
     }
 
     /**
-     * Get a spectre from a plot
+     * Acknowledge the slides received from a stream
      * 
-     * @param entry Name of Fits file
-     * @param metadata Pattern of metadata to retrieve
-     * @param posX Plot X from datacube
-     * @param posY Plot Y from datacube
-     * @return A slide
-     * @throws SimpleException
+     * @param id Id of the stream, from its open event
+     * @param frame Index of the last slide received, from 0
+     * @return status
      */
-    @RequestMapping(value = "/spectrum", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getSpectrum(@QueryParam("entry") String entry,
-        @QueryParam("metadata") String metadata, @QueryParam("posX") int posX, @QueryParam("posY") int posY,
-        @QueryParam("logLevel") String logLevel) {
+    @RequestMapping(value = "/slides/stream/ack", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> ackSlideStream(@QueryParam("id") String id, @QueryParam("frame") int frame) {
 
-        
         JSONObject response = new JSONObject();
         HttpStatus status = HttpStatus.OK;
 
-        GeoJsonResponse geoJsonSpectrum = null;
-        AbstractDataCube fc = null;
-
         try {
-        	logLevel = (logLevel==null)?"INFO":logLevel;
-            initService(logLevel);
-            // Initialize logger (voir conf/log4j2.xml).
-            LOGREST.info("Call getFitsSpectrum({}, {}, {}, {}, {})", entry, metadata, posX, posY);
-
-            if (entry == null) {
-                SimpleException se = new SimpleException("exception.parameterMissing", "entry");
-                LOGREST.error("getSpectrum : {}", se.getMessage()); 
-                throw new CubeExplorerException(se, "exception.rest.spectrum.syntax");
-            }
-                     
-            File dir = new File(workspace+"/public/");
-            FilenameFilter filter = new FilenameFilter() {
-	            @Override
-	            public boolean accept(File dir, String name) {
-	                return name.endsWith(".fits") || name.endsWith(".nc");
-	            }
-            };
-        	List<String> dirList = new ArrayList<String>(Arrays.asList(dir.list(filter)));  
-            CubeExplorer ce;
-            if(dirList.contains(entry)) {
-             	// read file
-                 ce = new CubeExplorer(workspace + "/public/" + entry);
-             }else {
-             	ce = new CubeExplorer(workspace + "/private/" + entry);
-             }
-            fc = ce.getCube();
-
-            JSONObject properties = fc.getSpectrum(posX, posY, metadata);
-            properties.put("fileType", fc.getType().toString());
-
-            // Format json response
-            geoJsonSpectrum = new GeoJsonResponse(posX, posY, properties);
-            response.put("response", geoJsonSpectrum.getGeoJson());
-
-            fc.close();
+            SlideStream.ack(id, frame);
         }
         catch (SimpleException se) {
-            status = HttpStatus.BAD_REQUEST;
+            status = HttpStatus.NOT_FOUND;
             ArrayList<String> listMessage = se.getMessages();
             String message="";
             for (String s : listMessage)
@@ -358,22 +979,647 @@ public class RestServices {
             	message += s + " ";
             }
             response.put("message", message);
-            LOGREST.error("getSpectrum : {}", message); 
-        }
-        catch (Exception e) {
-            status = HttpStatus.INTERNAL_SERVER_ERROR;
-            String message = e.getMessage();
-            response.put("message", message);
-            LOGREST.error("getSpectrum : {}", message); 
-        }
-        finally {
-            if (fc != null) fc.close();
+            LOGREST.error("ackSlideStream : {}", message); 
         }
 
         response.put("status", status.name());
-        return new ResponseEntity<String>(response.toString(), status);
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(response.toString());
+    }
+
+    /**
+     * Get a spectre from a plot
+     * 
+     * @param entry Name of Fits file
+     * @param metadata Pattern of metadata to retrieve
+     * @param posX Plot X from datacube
+     * @param posY Plot Y from datacube
+     * @param encoding f16, u16 or u8 to reduce the values (see {@link QuantizedValues}), quantized between
+     *            the limits of the cube in its statistics, else those of the values
+     * @param format bin for a binary response (see {@link BinaryResponse})
+     * @param accept Accept header, application/octet-stream for a binary response
+     * @return A slide
+     * @throws SimpleException
+     */
+    @RequestMapping(value = "/spectrum", method = RequestMethod.GET, produces = { MediaType.APPLICATION_JSON_VALUE,
+        MediaType.APPLICATION_OCTET_STREAM_VALUE })
+    public DeferredResult<ResponseEntity<?>> getSpectrum(@QueryParam("entry") String entry,
+        @QueryParam("metadata") String metadata, @QueryParam("posX") int posX, @QueryParam("posY") int posY,
+        @QueryParam("encoding") String encoding, @QueryParam("format") String format,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String key = getFlightKey(entry, "spectrum", metadata, posX, posY, encoding, format, accept, ifNoneMatch);
+        return CubeExecutors.submit(CubeExecutors.Pool.DATA, "getSpectrum", key, () -> {
+        
+            JSONObject response = new JSONObject();
+            HttpStatus status = HttpStatus.OK;
+            byte[] binaryResponse = null;
+
+            GeoJsonResponse geoJsonSpectrum = null;
+            AbstractDataCube fc = null;
+            CubeCache.Handle handle = null;
+            File file = null;
+            String eTag = null;
+
+            try {
+                // Initialize logger (voir conf/log4j2.xml).
+                LOGREST.info("Call getFitsSpectrum({}, {}, {}, {}, {})", entry, metadata, posX, posY);
+
+                if (entry == null) {
+                    SimpleException se = new SimpleException("exception.parameterMissing", "entry");
+                    LOGREST.error("getSpectrum : {}", se.getMessage()); 
+                    throw new CubeExplorerException(se, "exception.rest.spectrum.syntax");
+                }
+                Encoding spectrumEncoding = (encoding == null) ? null : Encoding.fromName(encoding);
+                if (encoding != null && spectrumEncoding == null) {
+                    SimpleException se = new SimpleException("exception.invalidValue", encoding);
+                    LOGREST.error("getSpectrum : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.spectrum.syntax");
+                }
+                boolean binary = isBinary(format, accept);
+
+                // Validators of the response, checked before opening the cube
+                file = new File(getEntryPath(entry));
+                eTag = getETag(file, "spectrum", metadata, posX, posY, binary, spectrumEncoding,
+                    getStatisticsState(file, spectrumEncoding));
+                if (isNotModified(ifNoneMatch, eTag)) {
+                    return cacheHeaders(ResponseEntity.status(HttpStatus.NOT_MODIFIED), file, eTag)
+                        .varyBy(HttpHeaders.ACCEPT).build();
+                }
+
+                handle = CubeCache.getInstance().acquire(file.getPath());
+                fc = handle.getCube();
+
+                if (binary) {
+                    float[] wavelength = fc.getWavelength();
+                    JSONObject header = new JSONObject();
+                    header.put("fileType", fc.getType().toString());
+                    header.put("posX", posX);
+                    header.put("posY", posY);
+                    header.put("dims", new JSONArray().put(wavelength.length));
+                    header.put("wavelength", wavelength);
+                    header.put("metadata", fc.selectMetadata(metadata));
+
+                    // Format binary response
+                    Object values = fc.getCachedSpectrumValues(posX, posY);
+                    binaryResponse = (spectrumEncoding == null) ? new BinaryResponse(header, values).getBytes()
+                        : new BinaryResponse(header, new QuantizedValues(values, spectrumEncoding,
+                            fc.getStatisticsRange(null))).getBytes();
+                }
+                else if (spectrumEncoding != null) {
+                    QuantizedValues values = new QuantizedValues(fc.getCachedSpectrumValues(posX, posY), spectrumEncoding,
+                        fc.getStatisticsRange(null));
+                    JSONObject spectrum = new JSONObject();
+                    spectrum.put("wavelength", fc.getWavelength());
+                    values.putProperties(spectrum);
+                    spectrum.put("data", values.getBase64());
+                    JSONObject properties = new JSONObject();
+                    properties.put("metadata", fc.selectMetadata(metadata));
+                    properties.put("spectrum", spectrum);
+                    properties.put("fileType", fc.getType().toString());
+
+                    // Format json response
+                    geoJsonSpectrum = new GeoJsonResponse(posX, posY, properties);
+                    response.put("response", geoJsonSpectrum.getGeoJson());
+                }
+                else {
+                    JSONObject properties = fc.getSpectrum(posX, posY, metadata);
+                    properties.put("fileType", fc.getType().toString());
+
+                    // Format json response
+                    geoJsonSpectrum = new GeoJsonResponse(posX, posY, properties);
+                    response.put("response", geoJsonSpectrum.getGeoJson());
+                }
+            }
+            catch (SimpleException se) {
+                status = HttpStatus.BAD_REQUEST;
+                ArrayList<String> listMessage = se.getMessages();
+                String message="";
+                for (String s : listMessage)
+                {
+                	message += s + " ";
+                }
+                response.put("message", message);
+                LOGREST.error("getSpectrum : {}", message); 
+            }
+            catch (Exception e) {
+                status = HttpStatus.INTERNAL_SERVER_ERROR;
+                String message = e.getMessage();
+                response.put("message", message);
+                LOGREST.error("getSpectrum : {}", message); 
+            }
+            finally {
+                if (handle != null) handle.release();
+            }
+
+            if (binaryResponse != null) {
+                return cacheHeaders(ResponseEntity.ok(), file, eTag).varyBy(HttpHeaders.ACCEPT)
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM).body(binaryResponse);
+            }
+            response.put("status", status.name());
+            return cacheHeaders(ResponseEntity.status(status), file, (status == HttpStatus.OK) ? eTag : null)
+                .varyBy(HttpHeaders.ACCEPT).contentType(MediaType.APPLICATION_JSON).body(response.toString());
+        }, (builder, error) -> builder.contentType(MediaType.APPLICATION_JSON).body(error.toString()));
     }
     
+    /**
+     * Get the spectrum of a region, a rectangle, a circle or a GeoJson polygon in pixel coordinates
+     * 
+     * @param entry Name of Fits file
+     * @param metadata Pattern of metadata to retrieve
+     * @param x0 First column of a rectangle
+     * @param y0 First row of a rectangle
+     * @param width Number of columns of a rectangle
+     * @param height Number of rows of a rectangle
+     * @param cx Column of the center of a circle
+     * @param cy Row of the center of a circle
+     * @param radius Radius of a circle, in pixels
+     * @param polygon GeoJson polygon
+     * @param aggregation Operator merging the pixels: mean (default), median, sum or weighted
+     * @param format bin for a binary response (see {@link BinaryResponse})
+     * @param accept Accept header, application/octet-stream for a binary response
+     * @return A spectrum
+     * @throws SimpleException
+     */
+    @RequestMapping(value = "/spectrum/region", method = RequestMethod.GET, produces = {
+        MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE })
+    public DeferredResult<ResponseEntity<?>> getRegionSpectrum(@QueryParam("entry") String entry,
+        @QueryParam("metadata") String metadata, @QueryParam("x0") Integer x0, @QueryParam("y0") Integer y0,
+        @QueryParam("width") Integer width, @QueryParam("height") Integer height, @QueryParam("cx") Double cx,
+        @QueryParam("cy") Double cy, @QueryParam("radius") Double radius, @QueryParam("polygon") String polygon,
+        @QueryParam("aggregation") String aggregation, @QueryParam("format") String format,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return CubeExecutors.submit(CubeExecutors.Pool.DATA, "getRegionSpectrum", () -> {
+            JSONObject response = new JSONObject();
+            HttpStatus status = HttpStatus.OK;
+            byte[] binaryResponse = null;
+
+            CubeCache.Handle handle = null;
+            File file = null;
+            String eTag = null;
+
+            try {
+                LOGREST.info("Call getRegionSpectrum({}, {}, {})", entry, metadata, aggregation);
+
+                if (entry == null) {
+                    SimpleException se = new SimpleException("exception.parameterMissing", "entry");
+                    LOGREST.error("getRegionSpectrum : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.spectrum.region.syntax");
+                }
+
+                Aggregation aggregationOperator = (aggregation == null) ? Aggregation.MEAN
+                    : Aggregation.fromName(aggregation);
+                if (aggregationOperator == null) {
+                    SimpleException se = new SimpleException("exception.invalidValue", aggregation);
+                    LOGREST.error("getRegionSpectrum : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.spectrum.region.syntax");
+                }
+
+                SpectrumRegion region;
+                try {
+                    if (polygon != null) {
+                        region = SpectrumRegion.polygon(polygon);
+                    }
+                    else if (cx != null && cy != null && radius != null) {
+                        region = SpectrumRegion.circle(cx, cy, radius);
+                    }
+                    else if (x0 != null && y0 != null && width != null && height != null) {
+                        region = SpectrumRegion.rectangle(x0, y0, width, height);
+                    }
+                    else {
+                        throw new SimpleException("exception.parameterMissing", "region");
+                    }
+                }
+                catch (SimpleException se) {
+                    LOGREST.error("getRegionSpectrum : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.spectrum.region.syntax");
+                }
+
+                boolean binary = isBinary(format, accept);
+
+                // Validators of the response, checked before opening the cube
+                file = new File(getEntryPath(entry));
+                eTag = getETag(file, "spectrum/region", metadata, region.getGeometry(), aggregationOperator, binary);
+                if (isNotModified(ifNoneMatch, eTag)) {
+                    return cacheHeaders(ResponseEntity.status(HttpStatus.NOT_MODIFIED), file, eTag)
+                        .varyBy(HttpHeaders.ACCEPT).build();
+                }
+
+                handle = CubeCache.getInstance().acquire(file.getPath());
+                AbstractDataCube fc = handle.getCube();
+
+                if (binary) {
+                    SpectrumRegion.Mask mask = fc.getRegionMask(region);
+                    double[] values = fc.getRegionSpectrumValues(mask, aggregationOperator);
+                    float[] wavelength = fc.getWavelength();
+                    JSONObject header = new JSONObject();
+                    header.put("fileType", fc.getType().toString());
+                    header.put("geometry", region.getGeometry());
+                    header.put("aggregation", aggregationOperator.toString());
+                    header.put("pixels", mask.getCount());
+                    header.put("area", mask.getArea());
+                    header.put("dims", new JSONArray().put(wavelength.length));
+                    header.put("wavelength", wavelength);
+                    header.put("metadata", fc.selectMetadata(metadata));
+
+                    // Format binary response
+                    binaryResponse = new BinaryResponse(header, values).getBytes();
+                }
+                else {
+                    JSONObject properties = fc.getRegionSpectrum(region, aggregationOperator, metadata);
+
+                    // Format json response
+                    response.put("response", new GeoJsonResponse(region.getGeometry(), properties).getGeoJson());
+                }
+            }
+            catch (SimpleException se) {
+                status = HttpStatus.BAD_REQUEST;
+                ArrayList<String> listMessage = se.getMessages();
+                String message="";
+                for (String s : listMessage)
+                {
+                	message += s + " ";
+                }
+                response.put("message", message);
+                LOGREST.error("getRegionSpectrum : {}", message); 
+            }
+            catch (Exception e) {
+                status = HttpStatus.INTERNAL_SERVER_ERROR;
+                String message = e.getMessage();
+                response.put("message", message);
+                LOGREST.error("getRegionSpectrum : {}", message); 
+            }
+            finally {
+                if (handle != null) handle.release();
+            }
+
+            if (binaryResponse != null) {
+                return cacheHeaders(ResponseEntity.ok(), file, eTag).varyBy(HttpHeaders.ACCEPT)
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM).body(binaryResponse);
+            }
+            response.put("status", status.name());
+            return cacheHeaders(ResponseEntity.status(status), file, (status == HttpStatus.OK) ? eTag : null)
+                .varyBy(HttpHeaders.ACCEPT).contentType(MediaType.APPLICATION_JSON).body(response.toString());
+        }, (builder, error) -> builder.contentType(MediaType.APPLICATION_JSON).body(error.toString()));
+    }
+
+    /**
+     * Get the spectra of several pixels of a datacube, read once
+     * 
+     * @param request entry, metadata pattern and [posX, posY] of the pixels
+     * @param format bin for a binary response (see {@link BinaryResponse})
+     * @param accept Accept header, application/octet-stream for a binary response
+     * @return A FeatureCollection of spectra, or a matrix of pixels x dimZ values
+     * @throws SimpleException
+     */
+    @RequestMapping(value = "/spectra", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE,
+        produces = { MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE })
+    public DeferredResult<ResponseEntity<?>> getSpectra(@RequestBody SpectraRequest request, @QueryParam("format") String format,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        return CubeExecutors.submit(CubeExecutors.Pool.DATA, "getSpectra", () -> {
+            JSONObject response = new JSONObject();
+            HttpStatus status = HttpStatus.OK;
+            byte[] binaryResponse = null;
+
+            CubeCache.Handle handle = null;
+
+            try {
+                LOGREST.info("Call getSpectra({}, {})", request.getEntry(), request.getMetadata());
+
+                if (request.getEntry() == null) {
+                    SimpleException se = new SimpleException("exception.parameterMissing", "entry");
+                    LOGREST.error("getSpectra : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.spectra.syntax");
+                }
+                int[][] pixels = request.getPixels();
+                if (pixels == null || pixels.length == 0) {
+                    SimpleException se = new SimpleException("exception.parameterMissing", "pixels");
+                    LOGREST.error("getSpectra : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.spectra.syntax");
+                }
+                int maxPixels = Integer.parseInt(CubeExplorer.getProperty("spectra_max_pixels", "10000"));
+                if (pixels.length > maxPixels) {
+                    SimpleException se = new SimpleException("exception.outOfBound", "pixels", pixels.length, 1, maxPixels);
+                    LOGREST.error("getSpectra : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.spectra.syntax");
+                }
+                for (int[] pixel : pixels) {
+                    if (pixel == null || pixel.length != 2) {
+                        SimpleException se = new SimpleException("exception.invalidValue", "pixels");
+                        LOGREST.error("getSpectra : {}", se.getMessage());
+                        throw new CubeExplorerException(se, "exception.rest.spectra.syntax");
+                    }
+                }
+
+                handle = CubeCache.getInstance().acquire(getEntryPath(request.getEntry()));
+                AbstractDataCube fc = handle.getCube();
+
+                Object[] spectra = fc.getSpectraValues(pixels);
+                float[] wavelength = fc.getWavelength();
+
+                if (isBinary(format, accept)) {
+                    JSONObject header = new JSONObject();
+                    header.put("fileType", fc.getType().toString());
+                    header.put("pixels", new JSONArray(pixels));
+                    header.put("dims", new JSONArray().put(pixels.length).put(wavelength.length));
+                    header.put("wavelength", wavelength);
+                    header.put("metadata", fc.selectMetadata(request.getMetadata()));
+
+                    // Matrix of the spectra, pixel by pixel
+                    Object values;
+                    if (spectra[0] instanceof float[]) {
+                        float[] matrix = new float[pixels.length * wavelength.length];
+                        for (int idx = 0; idx < spectra.length; idx++) {
+                            System.arraycopy(spectra[idx], 0, matrix, idx * wavelength.length, wavelength.length);
+                        }
+                        values = matrix;
+                    }
+                    else {
+                        double[] matrix = new double[pixels.length * wavelength.length];
+                        for (int idx = 0; idx < spectra.length; idx++) {
+                            System.arraycopy(spectra[idx], 0, matrix, idx * wavelength.length, wavelength.length);
+                        }
+                        values = matrix;
+                    }
+
+                    // Format binary response
+                    binaryResponse = new BinaryResponse(header, values).getBytes();
+                }
+                else {
+                    JSONArray features = new JSONArray();
+                    for (int idx = 0; idx < spectra.length; idx++) {
+                        JSONArray values = new JSONArray();
+                        for (int posZ = 0; posZ < wavelength.length; posZ++) {
+                            double value = (spectra[idx] instanceof float[]) ? ((float[]) spectra[idx])[posZ]
+                                : ((double[]) spectra[idx])[posZ];
+                            values.put(Double.isNaN(value) ? null : value);
+                        }
+                        JSONObject properties = new JSONObject();
+                        properties.put("spectrum", new JSONObject().put("value", values));
+                        features.put(new GeoJsonResponse(pixels[idx][0], pixels[idx][1], properties).getGeoJson()
+                            .getJSONObject("feature"));
+                    }
+
+                    // Properties shared by the spectra
+                    JSONObject properties = new JSONObject();
+                    properties.put("fileType", fc.getType().toString());
+                    properties.put("metadata", fc.selectMetadata(request.getMetadata()));
+                    properties.put("wavelength", wavelength);
+
+                    JSONObject collection = new JSONObject();
+                    collection.put("type", "FeatureCollection");
+                    collection.put("properties", properties);
+                    collection.put("features", features);
+                    response.put("response", collection);
+                }
+            }
+            catch (SimpleException se) {
+                status = HttpStatus.BAD_REQUEST;
+                ArrayList<String> listMessage = se.getMessages();
+                String message="";
+                for (String s : listMessage)
+                {
+                	message += s + " ";
+                }
+                response.put("message", message);
+                LOGREST.error("getSpectra : {}", message); 
+            }
+            catch (Exception e) {
+                status = HttpStatus.INTERNAL_SERVER_ERROR;
+                String message = e.getMessage();
+                response.put("message", message);
+                LOGREST.error("getSpectra : {}", message); 
+            }
+            finally {
+                if (handle != null) handle.release();
+            }
+
+            if (binaryResponse != null) {
+                return ResponseEntity.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(binaryResponse);
+            }
+            response.put("status", status.name());
+            return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(response.toString());
+        }, (builder, error) -> builder.contentType(MediaType.APPLICATION_JSON).body(error.toString()));
+    }
+
+    /**
+     * Get a moment map of a range of slides, in the shape of a slide
+     * 
+     * @param entry Name of Fits file
+     * @param metadata Pattern of metadata to retrieve
+     * @param moment 0 (default) integrated intensity, 1 mean wavelength, 2 dispersion
+     * @param z0 First slide, the first one when not given
+     * @param z1 Last slide, the last one when not given
+     * @param clip Values below are ignored
+     * @param format bin for a binary response (see {@link BinaryResponse})
+     * @param accept Accept header, application/octet-stream for a binary response
+     * @return A moment map
+     * @throws SimpleException
+     */
+    @RequestMapping(value = "/moment", method = RequestMethod.GET, produces = { MediaType.APPLICATION_JSON_VALUE,
+        MediaType.APPLICATION_OCTET_STREAM_VALUE })
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> getMoment(@QueryParam("entry") String entry,
+        @QueryParam("metadata") String metadata, @QueryParam("moment") Integer moment, @QueryParam("z0") Integer z0,
+        @QueryParam("z1") Integer z1, @QueryParam("clip") Double clip, @QueryParam("format") String format,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return CubeExecutors.submit(CubeExecutors.Pool.DATA, "getMoment", () -> {
+            JSONObject response = new JSONObject();
+            HttpStatus status = HttpStatus.OK;
+            byte[] binaryResponse = null;
+
+            GeoJsonSlideWriter slideWriter = null;
+            CubeCache.Handle handle = null;
+            File file = null;
+            String eTag = null;
+
+            try {
+                LOGREST.info("Call getMoment({}, {}, {}, {}, {})", entry, moment, z0, z1, clip);
+
+                if (entry == null) {
+                    SimpleException se = new SimpleException("exception.parameterMissing", "entry");
+                    LOGREST.error("getMoment : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.moment.syntax");
+                }
+
+                int order = (moment == null) ? 0 : moment;
+                if (order < 0 || order > 2) {
+                    SimpleException se = new SimpleException("exception.invalidValue", order);
+                    LOGREST.error("getMoment : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.moment.syntax");
+                }
+
+                boolean binary = isBinary(format, accept);
+
+                // Validators of the response, checked before opening the cube
+                file = new File(getEntryPath(entry));
+                eTag = getETag(file, "moment", metadata, order, z0, z1, clip, binary);
+                if (isNotModified(ifNoneMatch, eTag)) {
+                    return cacheHeaders(ResponseEntity.status(HttpStatus.NOT_MODIFIED), file, eTag)
+                        .varyBy(HttpHeaders.ACCEPT).build();
+                }
+
+                handle = CubeCache.getInstance().acquire(file.getPath());
+                AbstractDataCube fc = handle.getCube();
+
+                int firstZ = (z0 == null) ? 0 : z0;
+                int lastZ = (z1 == null) ? fc.getWavelength().length - 1 : z1;
+                double[] map = fc.getMoment(order, firstZ, lastZ, clip);
+
+                JSONObject properties = new JSONObject();
+                properties.put("moment", order);
+                properties.put("z0", firstZ);
+                properties.put("z1", lastZ);
+                if (clip != null) {
+                    properties.put("clip", clip);
+                }
+
+                if (binary) {
+                    JSONObject dimensions = fc.getHeader().getDimensions();
+                    JSONObject header = new JSONObject(properties.toString());
+                    header.put("fileType", fc.getType().toString());
+                    header.put("metadata", fc.selectMetadata(metadata));
+                    header.put("dims", new JSONArray().put(dimensions.getInt("dimY")).put(dimensions.getInt("dimX")));
+
+                    // Format binary response
+                    binaryResponse = new BinaryResponse(header, map).getBytes();
+                }
+                else {
+                    // Json response streamed row by row
+                    slideWriter = new GeoJsonSlideWriter(fc, firstZ, metadata, map, properties);
+                }
+            }
+            catch (SimpleException se) {
+                status = HttpStatus.BAD_REQUEST;
+                ArrayList<String> listMessage = se.getMessages();
+                String message="";
+                for (String s : listMessage)
+                {
+                	message += s + " ";
+                }
+                response.put("message", message);
+                LOGREST.error("getMoment : {}", message); 
+            }
+            catch (Exception e) {
+                status = HttpStatus.INTERNAL_SERVER_ERROR;
+                String message = e.getMessage();
+                response.put("message", message);
+                LOGREST.error("getMoment : {}", message); 
+            }
+            finally {
+                // The map is computed, the cube is no longer needed
+                if (handle != null) handle.release();
+            }
+
+            if (slideWriter != null) {
+                GeoJsonSlideWriter writer = slideWriter;
+                return cacheHeaders(ResponseEntity.ok(), file, eTag).varyBy(HttpHeaders.ACCEPT)
+                    .contentType(MediaType.APPLICATION_JSON).body(out -> writer.write(out));
+            }
+            if (binaryResponse != null) {
+                byte[] bytes = binaryResponse;
+                return cacheHeaders(ResponseEntity.ok(), file, eTag).varyBy(HttpHeaders.ACCEPT)
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM).body(out -> out.write(bytes));
+            }
+            response.put("status", status.name());
+            byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+            return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(out -> out.write(bytes));
+        }, (builder, error) -> builder.contentType(MediaType.APPLICATION_JSON)
+            .body(out -> out.write(error.toString().getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * Get the statistics of a datacube: count, NaN count, min, max, mean, sigma, percentiles and histogram
+     * 
+     * @param entry Name of Fits file
+     * @param posZ Plane of the statistics, all the planes when not given
+     * @return Statistics of the cube and of its planes, 202 while they are computed
+     * @throws SimpleException
+     */
+    @RequestMapping(value = "/stats", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<String>> getStats(@QueryParam("entry") String entry, @QueryParam("posZ") Integer posZ,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return CubeExecutors.submit(CubeExecutors.Pool.METADATA, "getStats", () -> {
+            JSONObject response = new JSONObject();
+            HttpStatus status = HttpStatus.OK;
+
+            CubeCache.Handle handle = null;
+            File file = null;
+            String eTag = null;
+
+            try {
+                LOGREST.info("Call getStats({}, {})", entry, posZ);
+
+                if (entry == null) {
+                    SimpleException se = new SimpleException("exception.parameterMissing", "entry");
+                    LOGREST.error("getStats : {}", se.getMessage());
+                    throw new CubeExplorerException(se, "exception.rest.stats.syntax");
+                }
+
+                // Validators of the response, checked before opening the cube
+                file = new File(getEntryPath(entry));
+                if (CubeStatistics.getStatisticsFile(file.getPath()).exists()) {
+                    eTag = getETag(file, "stats", posZ);
+                    if (isNotModified(ifNoneMatch, eTag)) {
+                        return cacheHeaders(ResponseEntity.status(HttpStatus.NOT_MODIFIED), file, eTag).build();
+                    }
+                }
+
+                handle = CubeCache.getInstance().acquire(file.getPath());
+                AbstractDataCube fc = handle.getCube();
+
+                JSONObject statistics = fc.getStatistics().getStatistics();
+                if (statistics == null) {
+                    // Computed in background
+                    status = HttpStatus.ACCEPTED;
+                    eTag = null;
+                    response.put("message", Messages.getMessage("message.stats.pending"));
+                }
+                else {
+                    JSONObject properties = new JSONObject();
+                    properties.put("fileType", fc.getType().toString());
+                    properties.put("cube", statistics.getJSONObject("cube"));
+                    JSONArray planes = statistics.getJSONArray("planes");
+                    if (posZ == null) {
+                        properties.put("planes", planes);
+                    }
+                    else if (posZ < 0 || posZ >= planes.length()) {
+                        // OutOfBound
+                        throw new CubeExplorerException("exception.outOfBound", "posZ", posZ, 0, planes.length() - 1);
+                    }
+                    else {
+                        properties.put("planes", new JSONArray().put(planes.get(posZ)));
+                    }
+                    response.put("response", properties);
+                }
+            }
+            catch (SimpleException se) {
+                status = HttpStatus.BAD_REQUEST;
+                ArrayList<String> listMessage = se.getMessages();
+                String message="";
+                for (String s : listMessage)
+                {
+                	message += s + " ";
+                }
+                response.put("message", message);
+                LOGREST.error("getStats : {}", message); 
+            }
+            catch (Exception e) {
+                status = HttpStatus.INTERNAL_SERVER_ERROR;
+                String message = e.getMessage();
+                response.put("message", message);
+                LOGREST.error("getStats : {}", message); 
+            }
+            finally {
+                if (handle != null) handle.release();
+            }
+
+            response.put("status", status.name());
+            return cacheHeaders(ResponseEntity.status(status), file, (status == HttpStatus.OK) ? eTag : null)
+                .contentType(MediaType.APPLICATION_JSON).body(response.toString());
+        }, (builder, error) -> builder.contentType(MediaType.APPLICATION_JSON).body(error.toString()));
+    }
+
     /**
      * User identification
      * 
@@ -390,12 +1636,8 @@ public class RestServices {
         Boolean identification = false;
         JSONObject response = new JSONObject();
         try {
-        	String logLevel = "INFO";
-        	 initService(logLevel);
              LOGREST.info("Call identification()");
 
-             workspace = CubeExplorer.getProperty("workspace", ".");
-             
              if(!CubeExplorer.getProperty("no_credential_needed", "false").equals("true")){
                 String usernameKnown = CubeExplorer.getProperty("username", null);
                 String passwordKnown = CubeExplorer.getProperty("password", null);
@@ -445,7 +1687,7 @@ public class RestServices {
         
         //get size width and height of raster
         try {
-			BufferedImage bimg = ImageIO.read(new File(workspace+"/"+entry));
+			BufferedImage bimg = ImageIO.read(new File(getWorkspace()+"/"+entry));
 			int width          = bimg.getWidth();
 			int height         = bimg.getHeight();
 			int[][] pixels = new int[width][height];
@@ -475,7 +1717,7 @@ public class RestServices {
 			
 			
 			
-		} catch (IOException e) {
+		} catch (IOException | CubeExplorerException e) {
             String message = e.getMessage();
             response.put("message", message);
             LOGREST.error("getSpectrum : {}", message); 
@@ -0,0 +1,410 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ ******************************************************************************/
+package app;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import common.exceptions.CubeExplorerException;
+import common.exceptions.SimpleException;
+import common.enums.Encoding;
+import fr.cnes.cubeExplorer.resources.CubeCache;
+import fr.cnes.cubeExplorer.resources.QuantizedValues;
+import fr.cnes.cubeExplorer.resources.SlideRenderer;
+
+/**
+ * Slides of a range of Z pushed as Server-Sent Events, for the animation of a
+ * cube.
+ * <p>
+ * The slides are read one after the other from the cube of a single handle,
+ * up to <code>stream_read_ahead</code> slides ahead of the one being sent, on
+ * the common pool. The events are sent by a thread of a pool of
+ * <code>stream_max</code> threads, not by the servlet threads; a stream is
+ * refused when all of them are busy.
+ * <p>
+ * Events:
+ * <ul>
+ * <li><code>open</code>: id of the stream and its parameters,</li>
+ * <li><code>slide</code>: a slide, the id of the event being its posZ, so
+ * that a reconnection resumes after the last slide received,</li>
+ * <li><code>end</code>: number of slides sent,</li>
+ * <li><code>failure</code>: message of the error ending the stream.</li>
+ * </ul>
+ * The slides are sent at most at <code>fps</code> slides per second. With a
+ * window, the client acknowledges the slides received (see {@link #ack}) and
+ * no more than <code>window</code> slides are sent ahead of the last one
+ * acknowledged.
+ *
+ * @author vincent.cephirins
+ */
+public class SlideStream {
+
+    // Initialize logger (see conf/log4j2.xml).
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlideStream.class);
+
+    // Maximum wait of an acknowledgment, in milliseconds
+    private static final long ACK_TIMEOUT = 60000;
+
+    // Streams being sent, by id
+    private static final Map<String, SlideStream> STREAMS = new ConcurrentHashMap<>();
+
+    private static ThreadPoolExecutor senders = null;
+
+    /**
+     * Reader of a slide of the stream.
+     */
+    public interface SlideReader {
+        /**
+         * @param posZ deep of the slide
+         * @param header receives the dims [rows, columns] of the values
+         * @return float[] or double[] of the values, row by row
+         * @throws CubeExplorerException
+         */
+        Object read(int posZ, JSONObject header) throws CubeExplorerException;
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final SseEmitter emitter = new SseEmitter(0L);
+    private final CubeCache.Handle handle;
+    private final SlideReader reader;
+    private final int firstZ;
+    private final int lastZ;
+    private final int step;
+    private final String encoding;
+    private final double fps;
+    private final int window;
+    private final int readAhead;
+
+    // Display limits of the png and reduced encodings, from the first slide when not given
+    private double low = Double.NaN;
+    private double high = Double.NaN;
+    private SlideRenderer renderer = null;
+    private double pmin = 0.5;
+    private double pmax = 99.5;
+
+    // Index of the last slide acknowledged
+    private int acknowledged = -1;
+    private volatile boolean closed = false;
+
+    /**
+     * @param handle cube of the stream, released at its end
+     * @param reader reader of the slides of the cube
+     * @param firstZ first posZ
+     * @param lastZ last posZ, lower than firstZ to play backward
+     * @param step number of slides between two slides sent
+     * @param encoding json (values), png (rendered image), f16, u16 or u8 (see {@link QuantizedValues})
+     * @param fps maximum number of slides per second
+     * @param window slides sent ahead of the last one acknowledged, 0 without acknowledgment
+     * @throws CubeExplorerException
+     */
+    public SlideStream(CubeCache.Handle handle, SlideReader reader, int firstZ, int lastZ, int step, String encoding,
+        double fps, int window) throws CubeExplorerException {
+        this.handle = handle;
+        this.reader = reader;
+        this.firstZ = firstZ;
+        this.lastZ = lastZ;
+        this.step = (lastZ < firstZ) ? -Math.abs(step) : Math.abs(step);
+        this.encoding = encoding;
+        this.fps = fps;
+        this.window = window;
+        this.readAhead = Math.max(0, Integer.parseInt(CubeExplorer.getProperty("stream_read_ahead", "2")));
+    }
+
+    /**
+     * Render the png and reduced encodings between these limits.
+     *
+     * @param renderer renderer of the png encoding
+     * @param pmin lower percentile of the first slide, when vmin is not given
+     * @param pmax upper percentile of the first slide, when vmax is not given
+     * @param vmin lower limit, null to compute it
+     * @param vmax upper limit, null to compute it
+     */
+    public void setLimits(SlideRenderer renderer, double pmin, double pmax, Double vmin, Double vmax) {
+        this.renderer = renderer;
+        this.pmin = pmin;
+        this.pmax = pmax;
+        this.low = (vmin == null) ? Double.NaN : vmin;
+        this.high = (vmax == null) ? Double.NaN : vmax;
+    }
+
+    /**
+     * @return id of the stream, to acknowledge its slides
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return number of slides of the stream
+     */
+    public int getFrames() {
+        return Math.max(0, (lastZ - firstZ) / step + 1);
+    }
+
+    /**
+     * Start sending the slides. Once started, the handle is released at the
+     * end of the stream.
+     *
+     * @return the emitter of the events
+     * @throws RejectedExecutionException if stream_max streams are being sent
+     * @throws CubeExplorerException
+     */
+    public SseEmitter start() throws CubeExplorerException {
+        emitter.onCompletion(this::close);
+        emitter.onTimeout(this::close);
+        ThreadPoolExecutor pool = getSenders();
+        STREAMS.put(id, this);
+        try {
+            pool.execute(this::run);
+        }
+        catch (RejectedExecutionException ree) {
+            STREAMS.remove(id);
+            throw ree;
+        }
+        return emitter;
+    }
+
+    /**
+     * Acknowledge the slides received by the client of a stream.
+     *
+     * @param id id of the stream
+     * @param frame index of the last slide received, from 0
+     * @throws SimpleException if the stream is not being sent
+     */
+    public static void ack(String id, int frame) throws SimpleException {
+        SlideStream stream = (id == null) ? null : STREAMS.get(id);
+        if (stream == null) {
+            throw new SimpleException("exception.notFound", id);
+        }
+        synchronized (stream) {
+            stream.acknowledged = Math.max(stream.acknowledged, frame);
+            stream.notifyAll();
+        }
+    }
+
+    /**
+     * An emitter sending a single failure event, for the errors detected
+     * before the stream starts.
+     *
+     * @param message message of the error
+     * @return the emitter
+     */
+    public static SseEmitter failure(JSONObject message) {
+        SseEmitter emitter = new SseEmitter(0L);
+        try {
+            emitter.send(SseEmitter.event().name("failure").data(message.toString(), MediaType.APPLICATION_JSON));
+            emitter.complete();
+        }
+        catch (IOException ioe) {
+            emitter.completeWithError(ioe);
+        }
+        return emitter;
+    }
+
+    private static synchronized ThreadPoolExecutor getSenders() throws CubeExplorerException {
+        if (senders == null) {
+            int maxStreams = Math.max(1, Integer.parseInt(CubeExplorer.getProperty("stream_max", "8")));
+            senders = new ThreadPoolExecutor(maxStreams, maxStreams, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "slide-stream");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            senders.allowCoreThreadTimeOut(true);
+        }
+        return senders;
+    }
+
+    private void close() {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void run() {
+        int frames = getFrames();
+        int sent = 0;
+        // Reads chained one after the other, readAhead of them ahead of the sent slide
+        Deque<CompletableFuture<JSONObject>> ahead = new ArrayDeque<>();
+        CompletableFuture<JSONObject> last = CompletableFuture.completedFuture(null);
+        int nextRead = 0;
+        long period = (fps > 0) ? (long) (1e9 / fps) : 0;
+        long start = System.nanoTime();
+
+        try {
+            JSONObject open = new JSONObject();
+            open.put("id", id);
+            open.put("z0", firstZ);
+            open.put("z1", lastZ);
+            open.put("step", step);
+            open.put("frames", frames);
+            open.put("encoding", encoding);
+            open.put("fps", fps);
+            open.put("window", window);
+            emitter.send(SseEmitter.event().name("open").data(open.toString(), MediaType.APPLICATION_JSON));
+
+            for (int frame = 0; frame < frames && !closed; frame++) {
+                while (nextRead < frames && nextRead <= frame + readAhead) {
+                    int posZ = firstZ + nextRead * step;
+                    last = last.thenApplyAsync(previous -> {
+                        try {
+                            return readSlide(posZ);
+                        }
+                        catch (CubeExplorerException ce) {
+                            throw new CompletionException(ce);
+                        }
+                    });
+                    ahead.add(last);
+                    nextRead++;
+                }
+                JSONObject slide = ahead.poll().get();
+
+                if (!waitAcknowledgment(frame)) {
+                    break;
+                }
+
+                // Steady rate: the slide is due at start + frame * period, late slides are not caught up
+                if (period > 0) {
+                    long delay = start + frame * period - System.nanoTime();
+                    if (delay > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    }
+                    else if (-delay > period) {
+                        start = System.nanoTime() - frame * period;
+                    }
+                }
+                emitter.send(SseEmitter.event().id(String.valueOf(slide.getInt("posZ"))).name("slide")
+                    .data(slide.toString(), MediaType.APPLICATION_JSON));
+                sent++;
+            }
+
+            if (!closed) {
+                emitter.send(SseEmitter.event().name("end").data(new JSONObject().put("frames", sent).toString(),
+                    MediaType.APPLICATION_JSON));
+                emitter.complete();
+            }
+        }
+        catch (IOException | IllegalStateException e) {
+            // Client gone
+            LOGGER.info("SlideStream {} : {}", id, e.getMessage());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            emitter.complete();
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            String message = (cause instanceof SimpleException)
+                ? String.join(" ", ((SimpleException) cause).getMessages()) : cause.getMessage();
+            LOGGER.error("SlideStream {} : {}", id, message);
+            try {
+                emitter.send(SseEmitter.event().name("failure").data(new JSONObject().put("message", message)
+                    .toString(), MediaType.APPLICATION_JSON));
+                emitter.complete();
+            }
+            catch (IOException ioe) {
+                emitter.completeWithError(ioe);
+            }
+        }
+        finally {
+            STREAMS.remove(id);
+            // The cube is released once the slides read ahead are read
+            last.handle((slide, error) -> null).join();
+            handle.release();
+        }
+    }
+
+    /**
+     * Wait until the slide may be sent, with a window of acknowledgments.
+     *
+     * @return false if the stream is closed or not acknowledged in time
+     */
+    private synchronized boolean waitAcknowledgment(int frame) throws InterruptedException {
+        if (window <= 0) {
+            return !closed;
+        }
+        long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+        while (!closed && frame > acknowledged + window) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                LOGGER.info("SlideStream {} : no acknowledgment after slide {}", id, acknowledged);
+                emitter.complete();
+                return false;
+            }
+            wait(wait);
+        }
+        return !closed;
+    }
+
+    /**
+     * Read and encode a slide.
+     */
+    private JSONObject readSlide(int posZ) throws CubeExplorerException {
+        JSONObject slide = new JSONObject();
+        slide.put("posZ", posZ);
+        Object values = reader.read(posZ, slide);
+        JSONArray dims = slide.getJSONArray("dims");
+        int height = dims.getInt(0);
+        int width = dims.getInt(1);
+
+        if ("json".equals(encoding)) {
+            JSONArray rows = new JSONArray();
+            for (int row = 0, idx = 0; row < height; row++) {
+                JSONArray columns = new JSONArray();
+                for (int column = 0; column < width; column++, idx++) {
+                    double value = getValue(values, idx);
+                    columns.put(Double.isNaN(value) ? JSONObject.NULL : value);
+                }
+                rows.put(columns);
+            }
+            slide.put("value", rows);
+            return slide;
+        }
+
+        // Same limits for all the slides of the stream, so that their colors compare
+        if (Double.isNaN(low) || Double.isNaN(high)) {
+            double[] bounds = SlideRenderer.getPercentileLimits(values, pmin, pmax);
+            low = Double.isNaN(low) ? bounds[0] : low;
+            high = Double.isNaN(high) ? bounds[1] : high;
+        }
+        slide.put("low", low);
+        slide.put("high", high);
+
+        if ("png".equals(encoding)) {
+            byte[] image = SlideRenderer.write(renderer.render(values, width, height, low, high), "png");
+            slide.put("image", Base64.getEncoder().encodeToString(image));
+            return slide;
+        }
+
+        QuantizedValues quantized = new QuantizedValues(values, Encoding.fromName(encoding),
+            new double[] { low, high });
+        quantized.putProperties(slide);
+        slide.put("data", quantized.getBase64());
+        return slide;
+    }
+
+    private static double getValue(Object values, int idx) {
+        return (values instanceof float[]) ? ((float[]) values)[idx] : ((double[]) values)[idx];
+    }
+}
@@ -0,0 +1,27 @@
+package app;
+
+public class SpectraRequest {
+	private String entry;
+	private String metadata;
+	private int[][] pixels;
+	 
+	 
+	public String getEntry() {
+		return entry;
+	}
+	public void setEntry(String entry) {
+		this.entry = entry;
+	}
+	public String getMetadata() {
+		return metadata;
+	}
+	public void setMetadata(String metadata) {
+		this.metadata = metadata;
+	}
+	public int[][] getPixels() {
+		return pixels;
+	}
+	public void setPixels(int[][] pixels) {
+		this.pixels = pixels;
+	}
+}
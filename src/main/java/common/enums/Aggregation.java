@@ -0,0 +1,59 @@
+/**
+ *
+ */
+package common.enums;
+
+/**
+ * Operator merging the spectra of the pixels of a region, NaN values are
+ * ignored.
+ *
+ * @author vincent.cephirins
+ *
+ */
+public enum Aggregation {
+    /**
+     * Mean of the pixels whose center is in the region (default)
+     */
+    MEAN("mean"),
+    /**
+     * Median of the pixels whose center is in the region
+     */
+    MEDIAN("median"),
+    /**
+     * Sum of the pixels whose center is in the region
+     */
+    SUM("sum"),
+    /**
+     * Mean of the pixels weighted by the fraction of their area in the region
+     */
+    WEIGHTED("weighted");
+
+    private String name;
+
+    Aggregation(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name name of the operator
+     * @return the operator, or null if unknown
+     */
+    public static Aggregation fromName(String name) {
+        for (Aggregation aggregation : values()) {
+            if (aggregation.name.equalsIgnoreCase(name)) {
+                return aggregation;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ *
+ */
+package common.enums;
+
+/**
+ * Operator merging the values of a bin, NaN values are ignored.
+ *
+ * @author vincent.cephirins
+ *
+ */
+public enum Binning {
+    /**
+     * Mean of the values (default)
+     */
+    MEAN("mean"),
+    /**
+     * Minimum of the values
+     */
+    MIN("min"),
+    /**
+     * Maximum of the values
+     */
+    MAX("max");
+
+    private String name;
+
+    Binning(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name name of the operator
+     * @return the operator, or null if unknown
+     */
+    public static Binning fromName(String name) {
+        for (Binning binning : values()) {
+            if (binning.name.equalsIgnoreCase(name)) {
+                return binning;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package common.enums;
+
+/**
+ * Colormap of the rendered slides, interpolated between anchor colors.
+ *
+ * @author vincent.cephirins
+ *
+ */
+public enum Colormap {
+    /**
+     * Black to white (default)
+     */
+    GRAY("gray", new double[][] { { 0, 0, 0, 0 }, { 1, 255, 255, 255 } }),
+    /**
+     * Black, red, yellow, white
+     */
+    HEAT("heat", new double[][] { { 0, 0, 0, 0 }, { 0.375, 255, 0, 0 }, { 0.75, 255, 255, 0 }, { 1, 255, 255, 255 } }),
+    /**
+     * Dark blue, cyan, yellow, dark red
+     */
+    JET("jet", new double[][] { { 0, 0, 0, 128 }, { 0.125, 0, 0, 255 }, { 0.375, 0, 255, 255 },
+        { 0.625, 255, 255, 0 }, { 0.875, 255, 0, 0 }, { 1, 128, 0, 0 } }),
+    /**
+     * Perceptually uniform, purple to yellow
+     */
+    VIRIDIS("viridis", new double[][] { { 0, 68, 1, 84 }, { 0.125, 71, 44, 122 }, { 0.25, 59, 81, 139 },
+        { 0.375, 44, 113, 142 }, { 0.5, 33, 144, 141 }, { 0.625, 39, 173, 129 }, { 0.75, 92, 200, 99 },
+        { 0.875, 170, 220, 50 }, { 1, 253, 231, 37 } }),
+    /**
+     * Cyan to magenta
+     */
+    COOL("cool", new double[][] { { 0, 0, 255, 255 }, { 1, 255, 0, 255 } });
+
+    private String name;
+    // Position in [0, 1], red, green, blue
+    private double[][] anchors;
+
+    Colormap(String name, double[][] anchors) {
+        this.name = name;
+        this.anchors = anchors;
+    }
+
+    /**
+     * @param name name of the colormap
+     * @return the colormap, or null if unknown
+     */
+    public static Colormap fromName(String name) {
+        for (Colormap colormap : values()) {
+            if (colormap.name.equalsIgnoreCase(name)) {
+                return colormap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param x position in the colormap, in [0, 1]
+     * @return red, green and blue of the position
+     */
+    public int[] getColor(double x) {
+        int anchor = 1;
+        while (anchor < anchors.length - 1 && anchors[anchor][0] < x) {
+            anchor++;
+        }
+        double[] low = anchors[anchor - 1];
+        double[] high = anchors[anchor];
+        double t = Math.max(0, Math.min(1, (x - low[0]) / (high[0] - low[0])));
+        int[] color = new int[3];
+        for (int idx = 0; idx < 3; idx++) {
+            color[idx] = (int) Math.round(low[idx + 1] + t * (high[idx + 1] - low[idx + 1]));
+        }
+        return color;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ */
+package common.enums;
+
+/**
+ * Reduced encoding of the values of a slide or a spectrum, a stored value v
+ * standing for offset + scale * v.
+ *
+ * @author vincent.cephirins
+ *
+ */
+public enum Encoding {
+    /**
+     * IEEE 754 half precision floats, NaN for the missing values
+     */
+    F16("f16", "float16", 2),
+    /**
+     * Unsigned 16 bits integers, 65535 for the missing values
+     */
+    U16("u16", "uint16", 2),
+    /**
+     * Unsigned 8 bits integers, 255 for the missing values
+     */
+    U8("u8", "uint8", 1);
+
+    private String name;
+    private String dtype;
+    private int bytesPerValue;
+
+    Encoding(String name, String dtype, int bytesPerValue) {
+        this.name = name;
+        this.dtype = dtype;
+        this.bytesPerValue = bytesPerValue;
+    }
+
+    /**
+     * @param name name of the encoding
+     * @return the encoding, or null if unknown
+     */
+    public static Encoding fromName(String name) {
+        for (Encoding encoding : values()) {
+            if (encoding.name.equalsIgnoreCase(name)) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return type of the stored values, as the dtype of a binary response
+     */
+    public String getDtype() {
+        return dtype;
+    }
+
+    /**
+     * @return number of bytes of a stored value
+     */
+    public int getBytesPerValue() {
+        return bytesPerValue;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
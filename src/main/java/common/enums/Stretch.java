@@ -0,0 +1,79 @@
+/**
+ *
+ */
+package common.enums;
+
+/**
+ * Stretch of the values of a slide between its display limits, mapping them
+ * to [0, 1].
+ *
+ * @author vincent.cephirins
+ *
+ */
+public enum Stretch {
+    /**
+     * Linear (default)
+     */
+    LINEAR("linear"),
+    /**
+     * Logarithm, log10(1000 x + 1) / 3
+     */
+    LOG("log"),
+    /**
+     * Square root
+     */
+    SQRT("sqrt"),
+    /**
+     * Inverse hyperbolic sine, asinh(10 x) / asinh(10)
+     */
+    ASINH("asinh");
+
+    private static final double LOG_1001 = Math.log10(1001);
+    private static final double ASINH_10 = Math.log(10 + Math.sqrt(101));
+
+    private String name;
+
+    Stretch(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name name of the stretch
+     * @return the stretch, or null if unknown
+     */
+    public static Stretch fromName(String name) {
+        for (Stretch stretch : values()) {
+            if (stretch.name.equalsIgnoreCase(name)) {
+                return stretch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param x value between the display limits, in [0, 1]
+     * @return the stretched value, in [0, 1]
+     */
+    public double apply(double x) {
+        switch (this) {
+        case LOG:
+            return Math.log10(1000 * x + 1) / LOG_1001;
+        case SQRT:
+            return Math.sqrt(x);
+        case ASINH:
+            return Math.log(10 * x + Math.sqrt(100 * x * x + 1)) / ASINH_10;
+        default:
+            return x;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -5,10 +5,22 @@
 
 package fr.cnes.cubeExplorer.resources;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import app.CubeExplorer;
+import common.enums.Aggregation;
 import common.enums.CubeType;
 import common.exceptions.CubeExplorerException;
 
@@ -25,10 +37,18 @@ import common.exceptions.CubeExplorerException;
  */
 public abstract class AbstractDataCube {
 
+	// Maximum number of columns of a span read for each pixel of a row
+	private static final int SPAN_PER_PIXEL = 256;
+
+	// Number of pixels of a band of a moment map accumulated by a task
+	private static final int MOMENT_BAND = 64 * 1024;
+
 	protected Logger logger = null;
 	protected CubeExplorer cubeExplorer = null;
 	protected CubeType type = null;
 	protected AbstractDataCubeHeader header = null;
+	protected SlidePyramid pyramid = null;
+	protected CubeStatistics statistics = null;
 
 	/**
 	 * @param ce cube explorer parent
@@ -96,6 +116,601 @@ public abstract class AbstractDataCube {
 	 */
 	abstract public JSONObject getSpectrum(int posX, int posY, String pattern) throws CubeExplorerException;
 
+	/**
+	 * Return the values of a slide from datacube
+	 * 
+	 * @param posZ
+	 * @return float[] or double[] of dimX * dimY values, row by row
+	 * @throws CubeExplorerException
+	 */
+	abstract public Object getSlideValues(int posZ) throws CubeExplorerException;
+
+	/**
+	 * Return a window of a slide from datacube
+	 *
+	 * @param posZ
+	 * @param posX first column
+	 * @param posY first row
+	 * @param width number of columns
+	 * @param height number of rows
+	 * @return float[] or double[] of width * height values, row by row
+	 * @throws CubeExplorerException
+	 */
+	abstract public Object getSlideRegion(int posZ, int posX, int posY, int width, int height)
+			throws CubeExplorerException;
+
+	/**
+	 * Return rows of a slide from datacube
+	 *
+	 * @param posZ
+	 * @param posY first row
+	 * @param nbRows number of rows
+	 * @return float[] or double[] of dimX * nbRows values, row by row
+	 * @throws CubeExplorerException
+	 */
+	public Object getSlideRows(int posZ, int posY, int nbRows) throws CubeExplorerException {
+		return getSlideRegion(posZ, 0, posY, header.getDimensions().getInt("dimX"), nbRows);
+	}
+
+	/**
+	 * Return the values of a slide from datacube, kept in the plane cache for
+	 * the next requests (see {@link PlaneCache})
+	 *
+	 * @param posZ
+	 * @return float[] or double[] of dimX * dimY values, row by row
+	 * @throws CubeExplorerException
+	 */
+	public Object getCachedSlideValues(int posZ) throws CubeExplorerException {
+		PlaneCache cache = PlaneCache.getInstance();
+		PlaneCache.Key key = PlaneCache.Key.slide(this, posZ);
+		boolean kept = cache.contains(key);
+		// Read from the plane cache when kept
+		Object plane = getSlideValues(posZ);
+		if (!kept) {
+			cache.put(key, plane);
+		}
+		return plane;
+	}
+
+	/**
+	 * Read a slide into the plane cache, unless it is already kept
+	 *
+	 * @param posZ
+	 * @return true if the slide has been read
+	 * @throws CubeExplorerException
+	 */
+	public boolean prefetchSlide(int posZ) throws CubeExplorerException {
+		if (PlaneCache.getInstance().contains(PlaneCache.Key.slide(this, posZ))) {
+			return false;
+		}
+		getCachedSlideValues(posZ);
+		return true;
+	}
+
+	/**
+	 * Return the values of a spectrum from datacube, kept in the plane cache
+	 * for the next requests (see {@link PlaneCache})
+	 *
+	 * @param posX
+	 * @param posY
+	 * @return float[] or double[] of dimZ values
+	 * @throws CubeExplorerException
+	 */
+	public Object getCachedSpectrumValues(int posX, int posY) throws CubeExplorerException {
+		PlaneCache cache = PlaneCache.getInstance();
+		PlaneCache.Key key = PlaneCache.Key.spectrum(this, getPixel(posX, posY));
+		boolean kept = cache.contains(key);
+		// Read from the plane cache when kept
+		Object values = getSpectrumValues(posX, posY);
+		if (!kept) {
+			cache.put(key, values);
+		}
+		return values;
+	}
+
+	/**
+	 * @param posZ
+	 * @return the values of the slide kept in the plane cache, null if not kept
+	 * @throws CubeExplorerException
+	 */
+	protected Object getCachedPlane(int posZ) throws CubeExplorerException {
+		return PlaneCache.getInstance().get(PlaneCache.Key.slide(this, posZ));
+	}
+
+	/**
+	 * Return a window of a slide kept in the plane cache, the bounds being
+	 * checked by the caller
+	 *
+	 * @param posZ
+	 * @param posX first column
+	 * @param posY first row
+	 * @param width number of columns
+	 * @param height number of rows
+	 * @return float[] or double[] of width * height values, row by row, null if
+	 *         the slide is not kept
+	 * @throws CubeExplorerException
+	 */
+	protected Object getCachedRegion(int posZ, int posX, int posY, int width, int height)
+			throws CubeExplorerException {
+		return PlaneCache.getInstance().getRegion(PlaneCache.Key.slide(this, posZ),
+				header.getDimensions().getInt("dimX"), posX, posY, width, height);
+	}
+
+	/**
+	 * @param posX
+	 * @param posY
+	 * @return the values of the spectrum kept in the plane cache, null if not
+	 *         kept, the bounds being checked by the caller
+	 * @throws CubeExplorerException
+	 */
+	protected Object getCachedSpectrum(int posX, int posY) throws CubeExplorerException {
+		return PlaneCache.getInstance().get(PlaneCache.Key.spectrum(this, getPixel(posX, posY)));
+	}
+
+	private int getPixel(int posX, int posY) {
+		return posY * header.getDimensions().getInt("dimX") + posX;
+	}
+
+	/**
+	 * Return the values of a spectrum from datacube
+	 * 
+	 * @param posX
+	 * @param posY
+	 * @return float[] or double[] of dimZ values
+	 * @throws CubeExplorerException
+	 */
+	abstract public Object getSpectrumValues(int posX, int posY) throws CubeExplorerException;
+
+	/**
+	 * @return true if the spectra are read from a sidecar or a brick store
+	 */
+	protected boolean isSpectrumIndexed() {
+		return false;
+	}
+
+	/**
+	 * Return the values of the spectra of several pixels from datacube.
+	 * <p>
+	 * Pixels are read row by row. Unless spectra are indexed, the pixels of a
+	 * row are read together, the span of the row being read once per slide.
+	 *
+	 * @param pixels [posX, posY] of each pixel
+	 * @return float[] or double[] of dimZ values for each pixel, in the order
+	 *         of the pixels
+	 * @throws CubeExplorerException
+	 */
+	public Object[] getSpectraValues(int[][] pixels) throws CubeExplorerException {
+		JSONObject dimensions = header.getDimensions();
+		int dimX = dimensions.getInt("dimX");
+		int dimY = dimensions.getInt("dimY");
+		for (int[] pixel : pixels) {
+			if (pixel[0] < 0 || pixel[0] >= dimX) {
+				// OutOfBound
+				throw new CubeExplorerException("exception.outOfBound", "posX", pixel[0], 0, dimX - 1);
+			}
+			if (pixel[1] < 0 || pixel[1] >= dimY) {
+				// OutOfBound
+				throw new CubeExplorerException("exception.outOfBound", "posY", pixel[1], 0, dimY - 1);
+			}
+		}
+
+		Integer[] order = new Integer[pixels.length];
+		for (int idx = 0; idx < order.length; idx++) {
+			order[idx] = idx;
+		}
+		Arrays.sort(order, (a, b) -> (pixels[a][1] != pixels[b][1]) ? Integer.compare(pixels[a][1], pixels[b][1])
+				: Integer.compare(pixels[a][0], pixels[b][0]));
+
+		Object[] spectra = new Object[pixels.length];
+		boolean indexed = isSpectrumIndexed();
+		for (int first = 0, last; first < order.length; first = last) {
+			int posY = pixels[order[first]][1];
+			last = first + 1;
+			while (last < order.length && pixels[order[last]][1] == posY) {
+				last++;
+			}
+
+			// Span of the pixels of the row, read slide by slide when dense enough
+			int posX = pixels[order[first]][0];
+			int width = pixels[order[last - 1]][0] - posX + 1;
+			if (indexed || last - first == 1 || width > (last - first) * SPAN_PER_PIXEL) {
+				for (int idx = first; idx < last; idx++) {
+					int[] pixel = pixels[order[idx]];
+					spectra[order[idx]] = getSpectrumValues(pixel[0], pixel[1]);
+				}
+				continue;
+			}
+
+			int dimZ = getWavelength().length;
+			for (int posZ = 0; posZ < dimZ; posZ++) {
+				Object row = getSlideRegion(posZ, posX, posY, width, 1);
+				for (int idx = first; idx < last; idx++) {
+					int column = pixels[order[idx]][0] - posX;
+					if (row instanceof float[]) {
+						if (spectra[order[idx]] == null) {
+							spectra[order[idx]] = new float[dimZ];
+						}
+						((float[]) spectra[order[idx]])[posZ] = ((float[]) row)[column];
+					} else {
+						if (spectra[order[idx]] == null) {
+							spectra[order[idx]] = new double[dimZ];
+						}
+						((double[]) spectra[order[idx]])[posZ] = ((double[]) row)[column];
+					}
+				}
+			}
+		}
+		return spectra;
+	}
+
+	/**
+	 * @return wavelength of each slide
+	 * @throws CubeExplorerException
+	 */
+	abstract public float[] getWavelength() throws CubeExplorerException;
+
+	/**
+	 * Return the pixels of a slide in a region
+	 *
+	 * @param region rectangle, circle or polygon
+	 * @return the mask of the region
+	 * @throws CubeExplorerException if no pixel is in the region
+	 */
+	public SpectrumRegion.Mask getRegionMask(SpectrumRegion region) throws CubeExplorerException {
+		JSONObject dimensions = header.getDimensions();
+		return region.getMask(dimensions.getInt("dimX"), dimensions.getInt("dimY"));
+	}
+
+	/**
+	 * Return the spectrum of a region, merging the pixels of each slide.
+	 * <p>
+	 * The window of the region is read slide by slide, the slides being split
+	 * in chunks aggregated in parallel. On failure, the other chunks are stopped
+	 * before returning, so that none reads the cube once it is released.
+	 *
+	 * @param mask pixels of the region
+	 * @param aggregation operator merging the pixels
+	 * @return dimZ values, NaN for the slides without any value
+	 * @throws CubeExplorerException
+	 */
+	public double[] getRegionSpectrumValues(SpectrumRegion.Mask mask, Aggregation aggregation)
+			throws CubeExplorerException {
+		int dimZ = getWavelength().length;
+		double[] spectrum = new double[dimZ];
+		int nbChunks = Math.max(1, Math.min(dimZ, ForkJoinPool.getCommonPoolParallelism()));
+
+		AtomicBoolean stopped = new AtomicBoolean();
+		List<Future<Object>> chunks = new ArrayList<Future<Object>>();
+		for (int chunk = 0; chunk < nbChunks; chunk++) {
+			int firstZ = chunk * dimZ / nbChunks;
+			int lastZ = (chunk + 1) * dimZ / nbChunks;
+			chunks.add(ForkJoinPool.commonPool().submit(() -> {
+				for (int posZ = firstZ; posZ < lastZ && !stopped.get(); posZ++) {
+					Object values = getSlideRegion(posZ, mask.getPosX(), mask.getPosY(), mask.getWidth(),
+							mask.getHeight());
+					spectrum[posZ] = aggregate(values, mask, aggregation);
+				}
+				return null;
+			}));
+		}
+
+		try {
+			for (Future<Object> chunk : chunks) {
+				chunk.get();
+			}
+		} catch (InterruptedException ie) {
+			stopped.set(true);
+			await(chunks);
+			Thread.currentThread().interrupt();
+			throw new CubeExplorerException(ie);
+		} catch (ExecutionException ee) {
+			logger.error("getRegionSpectrumValues : {}", ee.getCause().getMessage());
+			stopped.set(true);
+			await(chunks);
+			throw getCause(ee);
+		}
+		return spectrum;
+	}
+
+	/**
+	 * Wait for the end of tasks reading the cube, whatever their result.
+	 */
+	private static void await(List<Future<Object>> tasks) {
+		for (Future<Object> task : tasks) {
+			try {
+				task.get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException | CancellationException e) {
+				// Failure already reported
+			}
+		}
+	}
+
+	/**
+	 * @return the failure of a task, wrapped unless it is a
+	 *         CubeExplorerException
+	 */
+	private static CubeExplorerException getCause(ExecutionException ee) {
+		Throwable cause = ee.getCause();
+		if (cause instanceof CubeExplorerException) {
+			return (CubeExplorerException) cause;
+		}
+		// Errors are wrapped with their ExecutionException
+		return new CubeExplorerException((cause instanceof Exception) ? (Exception) cause : ee);
+	}
+
+	private static double aggregate(Object values, SpectrumRegion.Mask mask, Aggregation aggregation) {
+		float[] floatValues = (values instanceof float[]) ? (float[]) values : null;
+		double[] doubleValues = (values instanceof double[]) ? (double[]) values : null;
+		int length = mask.getWidth() * mask.getHeight();
+		double[] sample = (aggregation == Aggregation.MEDIAN) ? new double[mask.getCount()] : null;
+		double sum = 0;
+		double weights = 0;
+		int count = 0;
+
+		for (int idx = 0; idx < length; idx++) {
+			double weight = (aggregation == Aggregation.WEIGHTED) ? mask.getWeight(idx) : mask.isInside(idx) ? 1 : 0;
+			if (weight == 0) {
+				continue;
+			}
+			double value = (floatValues != null) ? floatValues[idx] : doubleValues[idx];
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			sum += weight * value;
+			weights += weight;
+			if (sample != null) {
+				sample[count] = value;
+			}
+			count++;
+		}
+
+		if (count == 0) {
+			return Double.NaN;
+		}
+		switch (aggregation) {
+		case SUM:
+			return sum;
+		case MEDIAN:
+			Arrays.sort(sample, 0, count);
+			return (count % 2 == 1) ? sample[count / 2] : (sample[count / 2 - 1] + sample[count / 2]) / 2;
+		default:
+			return sum / weights;
+		}
+	}
+
+	/**
+	 * Return the spectrum of a region with metadata
+	 *
+	 * @param region rectangle, circle or polygon
+	 * @param aggregation operator merging the pixels
+	 * @param pattern Select metadata to return
+	 * @return properties of the GEOJson spectrum
+	 * @throws CubeExplorerException
+	 */
+	public JSONObject getRegionSpectrum(SpectrumRegion region, Aggregation aggregation, String pattern)
+			throws CubeExplorerException {
+		SpectrumRegion.Mask mask = getRegionMask(region);
+		double[] values = getRegionSpectrumValues(mask, aggregation);
+		float[] wavelength = getWavelength();
+
+		JSONArray jsonWavelength = new JSONArray();
+		JSONArray jsonValues = new JSONArray();
+		for (int idx = 0; idx < values.length; idx++) {
+			jsonWavelength.put(wavelength[idx]);
+			jsonValues.put(Double.isNaN(values[idx]) ? null : values[idx]);
+		}
+
+		JSONObject spectrum = new JSONObject();
+		spectrum.put("aggregation", aggregation.toString());
+		spectrum.put("pixels", mask.getCount());
+		spectrum.put("area", mask.getArea());
+		spectrum.put("wavelength", jsonWavelength);
+		spectrum.put("value", jsonValues);
+
+		JSONObject properties = new JSONObject();
+		properties.put("fileType", getType().toString());
+		properties.put("metadata", selectMetadata(pattern));
+		properties.put("spectrum", spectrum);
+		return properties;
+	}
+
+	/**
+	 * Return a moment map of the slides z0 to z1, the spectral coordinate
+	 * being the wavelength.
+	 * <p>
+	 * Moment 0 is the integrated intensity sum(I.dv), moment 1 the mean
+	 * wavelength sum(I.v.dv) / sum(I.dv) and moment 2 the dispersion around
+	 * it. The slides are read one after the other, the next one while the
+	 * current one is accumulated in parallel by bands of pixels into the same
+	 * maps, so that only two slides and the maps are in memory. On failure, the
+	 * slide read ahead is awaited before returning. Moments 1 and 2 are NaN
+	 * where the integrated intensity is not positive.
+	 *
+	 * @param moment 0, 1 or 2
+	 * @param z0 first slide
+	 * @param z1 last slide
+	 * @param clip values below are ignored, null to keep all the values
+	 * @return double[] of dimX * dimY values, row by row, NaN where no value
+	 *         is kept
+	 * @throws CubeExplorerException
+	 */
+	public double[] getMoment(int moment, int z0, int z1, Double clip) throws CubeExplorerException {
+		JSONObject dimensions = header.getDimensions();
+		int size = dimensions.getInt("dimX") * dimensions.getInt("dimY");
+		float[] wavelength = getWavelength();
+		int dimZ = wavelength.length;
+
+		if (z0 < 0 || z0 >= dimZ) {
+			// OutOfBound
+			throw new CubeExplorerException("exception.outOfBound", "z0", z0, 0, dimZ - 1);
+		}
+		if (z1 < z0 || z1 >= dimZ) {
+			// OutOfBound
+			throw new CubeExplorerException("exception.outOfBound", "z1", z1, z0, dimZ - 1);
+		}
+
+		// Width of the channels, offset of the wavelengths to limit the cancellation of moment 2
+		double[] dv = new double[dimZ];
+		for (int posZ = 0; posZ < dimZ; posZ++) {
+			int prev = Math.max(0, posZ - 1);
+			int next = Math.min(dimZ - 1, posZ + 1);
+			dv[posZ] = (next == prev) ? 1 : Math.abs(wavelength[next] - wavelength[prev]) / (next - prev);
+		}
+		double origin = wavelength[z0];
+
+		// Sums of the moments, the last map counting the values kept
+		double[][] sums = new double[moment + 2][size];
+		int nbBands = (size + MOMENT_BAND - 1) / MOMENT_BAND;
+		Future<Object> next = null;
+		try {
+			next = ForkJoinPool.commonPool().submit(() -> getSlideValues(z0));
+			for (int posZ = z0; posZ <= z1; posZ++) {
+				Object values = next.get();
+				next = null;
+				if (posZ < z1) {
+					int nextZ = posZ + 1;
+					next = ForkJoinPool.commonPool().submit(() -> getSlideValues(nextZ));
+				}
+				double weight = dv[posZ];
+				double v = wavelength[posZ] - origin;
+				// Bands of pixels are disjoint, so they are accumulated concurrently
+				IntStream.range(0, nbBands).parallel().forEach(band -> accumulate(sums, moment, values, weight, v, clip,
+						band * MOMENT_BAND, Math.min(size, (band + 1) * MOMENT_BAND)));
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new CubeExplorerException(ie);
+		} catch (ExecutionException ee) {
+			logger.error("getMoment : {}", ee.getCause().getMessage());
+			throw getCause(ee);
+		} finally {
+			// The slide read ahead is not read once the cube is released
+			if (next != null) {
+				await(Arrays.asList(next));
+			}
+		}
+
+		double[] map = new double[size];
+		for (int idx = 0; idx < size; idx++) {
+			if (sums[moment + 1][idx] == 0 || (moment > 0 && sums[0][idx] <= 0)) {
+				map[idx] = Double.NaN;
+			} else if (moment == 0) {
+				map[idx] = sums[0][idx];
+			} else if (moment == 1) {
+				map[idx] = origin + sums[1][idx] / sums[0][idx];
+			} else {
+				double mean = sums[1][idx] / sums[0][idx];
+				map[idx] = Math.sqrt(Math.max(0, sums[2][idx] / sums[0][idx] - mean * mean));
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Add the pixels from to to of a slide to the sums of the moments.
+	 */
+	private static void accumulate(double[][] sums, int moment, Object values, double dv, double v, Double clip,
+			int from, int to) {
+		float[] floatValues = (values instanceof float[]) ? (float[]) values : null;
+		double[] doubleValues = (values instanceof double[]) ? (double[]) values : null;
+		for (int idx = from; idx < to; idx++) {
+			double value = (floatValues != null) ? floatValues[idx] : doubleValues[idx];
+			if (Double.isNaN(value) || (clip != null && value < clip)) {
+				continue;
+			}
+			double weight = value * dv;
+			sums[moment + 1][idx]++;
+			sums[0][idx] += weight;
+			if (moment > 0) {
+				sums[1][idx] += weight * v;
+			}
+			if (moment > 1) {
+				sums[2][idx] += weight * v * v;
+			}
+		}
+	}
+
+	/**
+	 * @return downsampled slides of the datacube
+	 * @throws CubeExplorerException
+	 */
+	public SlidePyramid getPyramid() throws CubeExplorerException {
+		if (pyramid == null) {
+			throw new CubeExplorerException("exception.notFound", "pyramid");
+		}
+		return pyramid;
+	}
+
+	/**
+	 * @return statistics of the datacube
+	 * @throws CubeExplorerException
+	 */
+	public CubeStatistics getStatistics() throws CubeExplorerException {
+		if (statistics == null) {
+			throw new CubeExplorerException("exception.notFound", "statistics");
+		}
+		return statistics;
+	}
+
+	/**
+	 * Return the range of the values of a slide, or of the whole datacube,
+	 * from the statistics once computed
+	 *
+	 * @param posZ index of the slide, null for the whole datacube
+	 * @return min and max, or null until the statistics are computed
+	 */
+	public double[] getStatisticsRange(Integer posZ) {
+		if (statistics == null) {
+			return null;
+		}
+		JSONObject summary = (posZ == null) ? statistics.getSummary() : statistics.getPlaneSummary(posZ);
+		if (summary == null || !summary.has("min")) {
+			return null;
+		}
+		return new double[] { summary.getDouble("min"), summary.getDouble("max") };
+	}
+
+	/**
+	 * Return the dimensions of the datacube, with the statistics of the whole
+	 * cube once computed
+	 *
+	 * @return JSONObject dimensions
+	 */
+	protected JSONObject getDimensions() {
+		JSONObject dimensions = header.getDimensions();
+		JSONObject summary = (statistics == null) ? null : statistics.getSummary();
+		if (summary == null) {
+			return dimensions;
+		}
+		JSONObject result = new JSONObject(dimensions, JSONObject.getNames(dimensions));
+		result.put("statistics", summary);
+		return result;
+	}
+
+	/**
+	 * Return metadata describing the datacube
+	 * 
+	 * @return JSONArray metadata
+	 * @throws CubeExplorerException
+	 */
+	protected JSONArray getCubeMetadata() throws CubeExplorerException {
+		return header.getMetadata();
+	}
+
+	/**
+	 * Return selected [key, value] of metadata describing the datacube
+	 * 
+	 * @param pattern Select metadata to return
+	 * @return JSONArray [key, value]
+	 * @throws CubeExplorerException
+	 */
+	public JSONArray selectMetadata(String pattern) throws CubeExplorerException {
+		return header.selectMetadata(getCubeMetadata(), pattern);
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
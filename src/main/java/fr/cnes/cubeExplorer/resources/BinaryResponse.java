@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * Binary response of typed values.
+ * <p>
+ * Layout, little endian:
+ * <ul>
+ * <li>int32: length N of the header</li>
+ * <li>N bytes: UTF-8 JSON header, padded with spaces so that values start on
+ * a multiple of 8 bytes. Besides the given properties (dims, metadata...) it
+ * holds <code>dtype</code> (float32 or float64), <code>byteOrder</code>
+ * (little) and <code>nan</code> (NaN: missing values are IEEE 754 NaN). The
+ * values of a reduced encoding (see {@link QuantizedValues}) have the dtype
+ * float16, uint16 or uint8, an <code>offset</code> and a <code>scale</code>,
+ * and <code>nan</code> is the stored value of the missing values</li>
+ * <li>the values, row by row</li>
+ * </ul>
+ *
+ * @author vincent.cephirins
+ */
+public class BinaryResponse {
+
+	private byte[] bytes = null;
+
+	/**
+	 * @param header properties describing the values
+	 * @param values float[] or double[]
+	 */
+	public BinaryResponse(JSONObject header, Object values) {
+		boolean isFloat = values instanceof float[];
+		int count = isFloat ? ((float[]) values).length : ((double[]) values).length;
+		int bytesPerValue = isFloat ? 4 : 8;
+
+		header.put("dtype", isFloat ? "float32" : "float64");
+		header.put("byteOrder", "little");
+		header.put("nan", "NaN");
+
+		ByteBuffer buffer = putHeader(header, count * bytesPerValue);
+		if (isFloat) {
+			buffer.asFloatBuffer().put((float[]) values);
+		} else {
+			buffer.asDoubleBuffer().put((double[]) values);
+		}
+		bytes = buffer.array();
+	}
+
+	/**
+	 * @param header properties describing the values
+	 * @param values values in a reduced encoding
+	 */
+	public BinaryResponse(JSONObject header, QuantizedValues values) {
+		values.putProperties(header);
+		ByteBuffer buffer = putHeader(header, values.getBytes().length);
+		buffer.put(values.getBytes());
+		bytes = buffer.array();
+	}
+
+	/**
+	 * @return a buffer of the response, positioned at the values
+	 */
+	private static ByteBuffer putHeader(JSONObject header, int valuesLength) {
+		byte[] json = header.toString().getBytes(StandardCharsets.UTF_8);
+		int length = json.length + (8 - (4 + json.length) % 8) % 8;
+		byte[] padded = Arrays.copyOf(json, length);
+		Arrays.fill(padded, json.length, length, (byte) ' ');
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 + length + valuesLength).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(length);
+		buffer.put(padded);
+		return buffer;
+	}
+
+	/**
+	 * @return the bytes of the response
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+}
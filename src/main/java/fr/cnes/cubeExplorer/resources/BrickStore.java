@@ -0,0 +1,442 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import app.CubeExplorer;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * Chunked copy of a datacube.
+ * <p>
+ * The cube is split into bricks of brick_size^3 values, [z][y][x] ordered and
+ * optionally deflate compressed (<code>brick_compression</code>). Bricks are
+ * stored one after the other in a file of <code>sidecar_dir</code>, with a
+ * small JSON manifest holding the dimensions, the type and the offset and
+ * length of each brick. Sub-regions of planes and spectra are read from the
+ * bricks they intersect, the most recently decoded bricks being kept in
+ * memory (<code>brick_cache_entries</code>). Full planes, and windows of a
+ * plane spanning more bricks than kept, are read plane-major from the cube:
+ * each brick holds brick_size planes and would be decoded again for each.
+ * <p>
+ * The store is built in background when a cube is opened and
+ * <code>brick_store=true</code>, it is used as soon as its manifest exists.
+ * Until it is opened, the manifest is looked for at most once a second, so
+ * that a cube reopened while its store was built by a previous instance finds
+ * it, and a failed build is started again.
+ *
+ * @author vincent.cephirins
+ */
+public class BrickStore {
+
+	// Initialise un logger (voir conf/log4j2.xml).
+	private static final Logger LOGGER = LogManager.getLogger("brickStore");
+
+	// Delay between two looks for the manifest
+	private static final long CHECK_MILLIS = 1000;
+
+	private final String filename;
+	private final File file;
+	private final File manifest;
+	private final int dimX;
+	private final int dimY;
+	private final int dimZ;
+	private final int bytesPerValue;
+	private final RowsReader reader;
+
+	// Built with brick_store, brick_size and brick_compression
+	private final boolean enabled;
+	private final int size;
+	private final boolean deflate;
+
+	// Read from the manifest
+	private int brickSize = 0;
+	private boolean compressed = false;
+	private int nbBricksX = 0;
+	private int nbBricksY = 0;
+	private long[] offsets = null;
+	private int[] lengths = null;
+
+	private volatile RandomAccessFile bricks = null;
+	private volatile boolean closed = false;
+	private volatile long lastCheck = 0;
+
+	// Decoded bricks, least recently used first
+	private final int cacheEntries;
+	private final Map<Integer, Object> cache;
+
+	/**
+	 * @param filename datacube file
+	 * @param dimX number of columns
+	 * @param dimY number of rows
+	 * @param dimZ number of planes
+	 * @param bytesPerValue 4 for float values, 8 for double values
+	 * @param reader reader of the cube planes
+	 * @throws CubeExplorerException
+	 */
+	public BrickStore(String filename, int dimX, int dimY, int dimZ, int bytesPerValue, RowsReader reader)
+			throws CubeExplorerException {
+		this.filename = filename;
+		this.dimX = dimX;
+		this.dimY = dimY;
+		this.dimZ = dimZ;
+		this.bytesPerValue = bytesPerValue;
+		this.reader = reader;
+		this.file = SpectrumSidecar.getSidecarFile(filename, (bytesPerValue * 8) + ".bricks");
+		this.manifest = new File(file.getPath() + ".json");
+		this.enabled = "true".equals(CubeExplorer.getProperty("brick_store", "false"));
+		this.size = Integer.parseInt(CubeExplorer.getProperty("brick_size", "64"));
+		this.deflate = "true".equals(CubeExplorer.getProperty("brick_compression", "false"));
+
+		this.cacheEntries = Integer.parseInt(CubeExplorer.getProperty("brick_cache_entries", "64"));
+		this.cache = new LinkedHashMap<Integer, Object>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+				return size() > cacheEntries;
+			}
+		};
+
+		if (bytesPerValue != 4 && bytesPerValue != 8) {
+			LOGGER.info("No brick store for {} bytes values of {}", bytesPerValue, filename);
+			return;
+		}
+
+		if (manifest.exists()) {
+			open();
+		} else if (enabled) {
+			build();
+		}
+	}
+
+	/**
+	 * @return true if the cube is read from the bricks
+	 */
+	public boolean isReady() {
+		return bricks != null;
+	}
+
+	/**
+	 * Read the spectrum of pixel (posX, posY).
+	 *
+	 * @param posX column of the pixel
+	 * @param posY row of the pixel
+	 * @return float[] or double[] of dimZ values, or null if the store is not
+	 *         built yet
+	 * @throws IOException
+	 */
+	public Object readSpectrum(int posX, int posY) throws IOException {
+		return readRegion(0, dimZ, posY, 1, posX, 1);
+	}
+
+	/**
+	 * Read a region of the cube.
+	 *
+	 * @return float[] or double[] of nbZ * nbY * nbX values, [z][y][x] ordered,
+	 *         or null if the store is not built yet or the window of a plane
+	 *         spans more bricks than kept
+	 * @throws IOException
+	 */
+	public Object readRegion(int posZ, int nbZ, int posY, int nbY, int posX, int nbX) throws IOException {
+		RandomAccessFile raf = bricks;
+		if (raf == null) {
+			long now = System.currentTimeMillis();
+			if ((bytesPerValue == 4 || bytesPerValue == 8) && now - lastCheck >= CHECK_MILLIS) {
+				lastCheck = now;
+				if (manifest.exists()) {
+					// Built by a previous instance of the cube
+					open();
+				} else if (enabled) {
+					build();
+				}
+			}
+			return null;
+		}
+		if (nbZ == 1 && (long) ((posY + nbY - 1) / brickSize - posY / brickSize + 1)
+				* ((posX + nbX - 1) / brickSize - posX / brickSize + 1) > cacheEntries) {
+			// Read plane-major from the cube
+			return null;
+		}
+
+		int count = nbZ * nbY * nbX;
+		Object region = (bytesPerValue == 4) ? new float[count] : new double[count];
+
+		for (int bz = posZ / brickSize; bz <= (posZ + nbZ - 1) / brickSize; bz++) {
+			for (int by = posY / brickSize; by <= (posY + nbY - 1) / brickSize; by++) {
+				for (int bx = posX / brickSize; bx <= (posX + nbX - 1) / brickSize; bx++) {
+					int z0 = bz * brickSize, y0 = by * brickSize, x0 = bx * brickSize;
+					int brickY = Math.min(brickSize, dimY - y0);
+					int brickX = Math.min(brickSize, dimX - x0);
+					Object brick = getBrick(raf, (bz * nbBricksY + by) * nbBricksX + bx);
+
+					// Intersection of the brick with the region
+					int fromZ = Math.max(posZ, z0), toZ = Math.min(posZ + nbZ, z0 + brickSize);
+					int fromY = Math.max(posY, y0), toY = Math.min(posY + nbY, y0 + brickY);
+					int fromX = Math.max(posX, x0), toX = Math.min(posX + nbX, x0 + brickX);
+					for (int z = fromZ; z < toZ; z++) {
+						for (int y = fromY; y < toY; y++) {
+							System.arraycopy(brick, ((z - z0) * brickY + (y - y0)) * brickX + (fromX - x0), region,
+									((z - posZ) * nbY + (y - posY)) * nbX + (fromX - posX), toX - fromX);
+						}
+					}
+				}
+			}
+		}
+		return region;
+	}
+
+	private Object getBrick(RandomAccessFile raf, int index) throws IOException {
+		synchronized (cache) {
+			Object brick = cache.get(index);
+			if (brick != null) {
+				return brick;
+			}
+		}
+
+		// Read and decode the brick
+		ByteBuffer buffer = ByteBuffer.allocate(lengths[index]);
+		FileChannel channel = raf.getChannel();
+		while (buffer.hasRemaining()) {
+			int len = channel.read(buffer, offsets[index] + buffer.position());
+			if (len < 0) {
+				throw new EOFException(file.getPath());
+			}
+		}
+		buffer.flip();
+
+		if (compressed) {
+			byte[] raw = new byte[getBrickCount(index) * bytesPerValue];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(buffer.array());
+				int len = 0;
+				while (len < raw.length && !inflater.finished()) {
+					int inflated = inflater.inflate(raw, len, raw.length - len);
+					if (inflated == 0 && inflater.needsInput()) {
+						throw new EOFException(file.getPath());
+					}
+					len += inflated;
+				}
+			} catch (DataFormatException dfe) {
+				throw new IOException(dfe);
+			} finally {
+				inflater.end();
+			}
+			buffer = ByteBuffer.wrap(raw);
+		}
+
+		Object brick;
+		if (bytesPerValue == 4) {
+			float[] values = new float[buffer.remaining() / 4];
+			buffer.asFloatBuffer().get(values);
+			brick = values;
+		} else {
+			double[] values = new double[buffer.remaining() / 8];
+			buffer.asDoubleBuffer().get(values);
+			brick = values;
+		}
+
+		synchronized (cache) {
+			cache.put(index, brick);
+		}
+		return brick;
+	}
+
+	private int getBrickCount(int index) {
+		int bx = index % nbBricksX;
+		int by = (index / nbBricksX) % nbBricksY;
+		int bz = index / nbBricksX / nbBricksY;
+		return Math.min(brickSize, dimZ - bz * brickSize) * Math.min(brickSize, dimY - by * brickSize)
+				* Math.min(brickSize, dimX - bx * brickSize);
+	}
+
+	private synchronized void open() {
+		if (bricks != null || closed) {
+			return;
+		}
+		try {
+			JSONObject json = new JSONObject(new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8));
+			if (json.getInt("dimX") != dimX || json.getInt("dimY") != dimY || json.getInt("dimZ") != dimZ
+					|| json.getInt("bytesPerValue") != bytesPerValue) {
+				LOGGER.error("Brick store {} does not match the cube", manifest);
+				return;
+			}
+			brickSize = json.getInt("brickSize");
+			compressed = "deflate".equals(json.getString("compression"));
+			nbBricksX = (dimX + brickSize - 1) / brickSize;
+			nbBricksY = (dimY + brickSize - 1) / brickSize;
+
+			JSONArray jsonOffsets = json.getJSONArray("offsets");
+			JSONArray jsonLengths = json.getJSONArray("lengths");
+			offsets = new long[jsonOffsets.length()];
+			lengths = new int[jsonLengths.length()];
+			for (int idx = 0; idx < offsets.length; idx++) {
+				offsets[idx] = jsonOffsets.getLong(idx);
+				lengths[idx] = jsonLengths.getInt(idx);
+			}
+
+			bricks = new RandomAccessFile(file, "r");
+			LOGGER.info("Brick store {} opened", file);
+		} catch (Exception e) {
+			LOGGER.error("Brick store {} not opened : {}", file, e.getMessage());
+		}
+	}
+
+	private void build() {
+		if (!SpectrumSidecar.BUILDING.add(file.getPath())) {
+			return;
+		}
+		SpectrumSidecar.BUILDER.submit(() -> {
+			try {
+				if (!manifest.exists()) {
+					write();
+				}
+				if (!closed) {
+					open();
+				}
+			} catch (Exception e) {
+				LOGGER.error("Brick store {} not built : {}", file, e.getMessage());
+			} finally {
+				SpectrumSidecar.BUILDING.remove(file.getPath());
+			}
+		});
+	}
+
+	/**
+	 * Write the bricks slab by slab (brick_size planes of brick_size rows),
+	 * then the manifest once the bricks file is complete.
+	 */
+	private void write() throws Exception {
+		LOGGER.info("Building brick store {}", file);
+		file.getParentFile().mkdirs();
+		SpectrumSidecar.deleteOutdated(filename, file);
+		File tmp = new File(file.getPath() + ".tmp");
+
+		int nbX = (dimX + size - 1) / size;
+		int nbY = (dimY + size - 1) / size;
+		int nbZ = (dimZ + size - 1) / size;
+		JSONArray jsonOffsets = new JSONArray();
+		JSONArray jsonLengths = new JSONArray();
+
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			FileChannel channel = raf.getChannel();
+			long position = 0;
+
+			for (int bz = 0; bz < nbZ; bz++) {
+				int z0 = bz * size, brickZ = Math.min(size, dimZ - z0);
+				for (int by = 0; by < nbY; by++) {
+					int y0 = by * size, brickY = Math.min(size, dimY - y0);
+
+					// Rows y0 to y0 + brickY of the planes of the slab
+					Object[] slab = new Object[brickZ];
+					for (int z = 0; z < brickZ; z++) {
+						if (closed) {
+							throw new IOException("cube closed");
+						}
+						slab[z] = reader.readRows(z0 + z, y0, brickY);
+					}
+
+					for (int bx = 0; bx < nbX; bx++) {
+						int x0 = bx * size, brickX = Math.min(size, dimX - x0);
+						ByteBuffer brick = ByteBuffer.allocate(brickZ * brickY * brickX * bytesPerValue);
+						for (int z = 0; z < brickZ; z++) {
+							for (int y = 0; y < brickY; y++) {
+								int from = y * dimX + x0;
+								if (slab[z] instanceof float[]) {
+									FloatBuffer values = brick.asFloatBuffer();
+									values.position((z * brickY + y) * brickX);
+									values.put((float[]) slab[z], from, brickX);
+								} else {
+									DoubleBuffer values = brick.asDoubleBuffer();
+									values.position((z * brickY + y) * brickX);
+									values.put((double[]) slab[z], from, brickX);
+								}
+							}
+						}
+
+						byte[] data = brick.array();
+						if (deflate) {
+							ByteArrayOutputStream bos = new ByteArrayOutputStream();
+							try (DeflaterOutputStream dos = new DeflaterOutputStream(bos)) {
+								dos.write(data);
+							}
+							data = bos.toByteArray();
+						}
+
+						ByteBuffer out = ByteBuffer.wrap(data);
+						jsonOffsets.put(position);
+						jsonLengths.put(data.length);
+						while (out.hasRemaining()) {
+							position += channel.write(out, position);
+						}
+					}
+				}
+			}
+		} catch (Exception e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+		// Manifest last, the store is complete once it exists
+		JSONObject json = new JSONObject();
+		json.put("dimX", dimX);
+		json.put("dimY", dimY);
+		json.put("dimZ", dimZ);
+		json.put("bytesPerValue", bytesPerValue);
+		json.put("brickSize", size);
+		json.put("compression", deflate ? "deflate" : "none");
+		json.put("offsets", jsonOffsets);
+		json.put("lengths", jsonLengths);
+		File tmpManifest = new File(manifest.getPath() + ".tmp");
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpManifest), StandardCharsets.UTF_8)) {
+			json.write(writer);
+		}
+		Files.move(tmpManifest.toPath(), manifest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		LOGGER.info("Brick store {} built", file);
+	}
+
+	public synchronized void close() {
+		closed = true;
+		try {
+			RandomAccessFile raf = bricks;
+			if (raf != null) {
+				bricks = null;
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			LOGGER.error("IOException {} : {}", file, ioe.getMessage());
+		}
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+}
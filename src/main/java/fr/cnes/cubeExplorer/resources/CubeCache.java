@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import app.CubeExplorer;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * Shared cache of opened datacubes.
+ * <p>
+ * Cubes are keyed by canonical path, size and modification date so that a
+ * modified file is reopened. Each acquired cube is reference counted: an
+ * evicted cube is only closed once the last request holding it has released
+ * it. Eviction is LRU, bounded by a number of entries and a byte budget
+ * (sum of file sizes).
+ * <p>
+ * A cube is opened once: the requests acquiring a cube being opened by
+ * another request wait for it instead of opening their own copy.
+ *
+ * @author vincent.cephirins
+ */
+public class CubeCache {
+
+	// Initialise un logger (voir conf/log4j2.xml).
+	private static final Logger LOGGER = LogManager.getLogger("cubeCache");
+
+	private static CubeCache instance = null;
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private long usedBytes = 0;
+
+	// Access ordered map => LRU iteration order
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// Cubes being opened, by key
+	private final Map<String, CompletableFuture<Void>> opening = new HashMap<String, CompletableFuture<Void>>();
+
+	/**
+	 * Opened cube shared between requests.
+	 */
+	private static class Entry {
+		private final String key;
+		private final String path;
+		private final long bytes;
+		private final AbstractDataCube cube;
+		private int refCount = 0;
+		private boolean evicted = false;
+
+		private Entry(String key, String path, long bytes, AbstractDataCube cube) {
+			this.key = key;
+			this.path = path;
+			this.bytes = bytes;
+			this.cube = cube;
+		}
+	}
+
+	/**
+	 * Cube acquired by a request. Must be released once the request is done.
+	 */
+	public class Handle {
+		private Entry entry;
+
+		private Handle(Entry entry) {
+			this.entry = entry;
+		}
+
+		/**
+		 * @return the cube
+		 */
+		public AbstractDataCube getCube() {
+			return entry.cube;
+		}
+
+		/**
+		 * Give the cube back to the cache. Calling it several times, from
+		 * any thread, has no effect.
+		 */
+		public synchronized void release() {
+			if (entry != null) {
+				CubeCache.this.release(entry);
+				entry = null;
+			}
+		}
+	}
+
+	/**
+	 * @param maxEntries maximum number of opened cubes
+	 * @param maxBytes maximum sum of the size of opened files
+	 */
+	public CubeCache(int maxEntries, long maxBytes) {
+		this.maxEntries = Math.max(0, maxEntries);
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	/**
+	 * Return the cache shared by the application, sized with properties
+	 * <code>cache_max_entries</code> and <code>cache_max_bytes</code>.
+	 *
+	 * @return the shared cache
+	 * @throws CubeExplorerException
+	 */
+	public static synchronized CubeCache getInstance() throws CubeExplorerException {
+		if (instance == null) {
+			int maxEntries = Integer.parseInt(CubeExplorer.getProperty("cache_max_entries", "16"));
+			long maxBytes = Long.parseLong(CubeExplorer.getProperty("cache_max_bytes", "4294967296"));
+			LOGGER.info("NEW CubeCache({}, {})", maxEntries, maxBytes);
+			instance = new CubeCache(maxEntries, maxBytes);
+		}
+		return instance;
+	}
+
+	/**
+	 * Acquire the cube of the file, opening it if needed.
+	 *
+	 * @param filename path of the datacube file
+	 * @return the handle to release after use
+	 * @throws CubeExplorerException
+	 */
+	public Handle acquire(String filename) throws CubeExplorerException {
+		String path;
+		try {
+			path = new File(filename).getCanonicalPath();
+		} catch (IOException ioe) {
+			LOGGER.error("exception.file.openFile {}", filename);
+			throw new CubeExplorerException(ioe, "exception.file.openFile", filename);
+		}
+		File file = new File(path);
+		long bytes = file.length();
+		String key = path + "|" + bytes + "|" + file.lastModified();
+
+		CompletableFuture<Void> opened;
+		while (true) {
+			CompletableFuture<Void> other;
+			synchronized (this) {
+				Entry entry = entries.get(key);
+				if (entry != null) {
+					entry.refCount++;
+					LOGGER.trace("Cube {} found in cache", key);
+					return new Handle(entry);
+				}
+				other = opening.get(key);
+				if (other == null) {
+					opened = new CompletableFuture<Void>();
+					opening.put(key, opened);
+					break;
+				}
+			}
+			// Wait for the cube opened by another request, then look it up again
+			LOGGER.trace("Cube {} being opened, waiting", key);
+			try {
+				other.join();
+			} catch (CompletionException ce) {
+				// Failed by the request opening it
+				if (ce.getCause() instanceof CubeExplorerException) {
+					throw (CubeExplorerException) ce.getCause();
+				}
+				if (ce.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) ce.getCause();
+				}
+				throw new CubeExplorerException(ce);
+			}
+		}
+
+		// Open outside of the lock, reading a file can be long
+		AbstractDataCube cube;
+		try {
+			cube = new CubeExplorer(path).getCube();
+		} catch (Throwable t) {
+			// Errors too, the waiting requests would block forever
+			synchronized (this) {
+				opening.remove(key);
+			}
+			opened.completeExceptionally(t);
+			throw t;
+		}
+		List<Entry> toClose = new ArrayList<Entry>();
+		Entry entry = new Entry(key, path, bytes, cube);
+
+		synchronized (this) {
+			// Previous versions of the file are outdated
+			Iterator<Entry> iter = entries.values().iterator();
+			while (iter.hasNext()) {
+				Entry old = iter.next();
+				if (old.path.equals(path)) {
+					iter.remove();
+					evict(old, toClose);
+				}
+			}
+			entries.put(key, entry);
+			usedBytes += bytes;
+			LOGGER.info("Cube {} added to cache", key);
+			trim(toClose);
+			entry.refCount++;
+			opening.remove(key);
+		}
+		opened.complete(null);
+
+		for (Entry closing : toClose) {
+			closing.cube.close();
+		}
+		return new Handle(entry);
+	}
+
+	/**
+	 * Evict every cube not in use, those in use are closed when released.
+	 */
+	public void clear() {
+		List<Entry> toClose = new ArrayList<Entry>();
+		synchronized (this) {
+			for (Entry entry : entries.values()) {
+				evict(entry, toClose);
+			}
+			entries.clear();
+		}
+		for (Entry closing : toClose) {
+			closing.cube.close();
+		}
+	}
+
+	/**
+	 * @return number of cubes in the cache
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return sum of the size of cached files
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	private void release(Entry entry) {
+		boolean close;
+		synchronized (this) {
+			entry.refCount--;
+			close = entry.evicted && entry.refCount == 0;
+		}
+		if (close) {
+			entry.cube.close();
+			LOGGER.trace("Evicted cube {} closed on release", entry.key);
+		}
+	}
+
+	/**
+	 * Evict least recently used cubes until the budget is respected. Must be
+	 * called holding the lock.
+	 */
+	private void trim(List<Entry> toClose) {
+		Iterator<Entry> iter = entries.values().iterator();
+		// Keep at least the most recent cube, even if larger than the budget
+		while (entries.size() > 1 && (entries.size() > maxEntries || usedBytes > maxBytes) && iter.hasNext()) {
+			Entry entry = iter.next();
+			iter.remove();
+			evict(entry, toClose);
+		}
+	}
+
+	/**
+	 * Mark an entry removed from the map as evicted. Must be called holding
+	 * the lock.
+	 */
+	private void evict(Entry entry, List<Entry> toClose) {
+		entry.evicted = true;
+		usedBytes -= entry.bytes;
+		LOGGER.info("Cube {} evicted from cache", entry.key);
+		if (entry.refCount == 0) {
+			toClose.add(entry);
+		}
+	}
+}
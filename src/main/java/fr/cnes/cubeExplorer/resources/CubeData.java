@@ -0,0 +1,450 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.nio.ByteBuffer;
+
+import common.exceptions.CubeExplorerException;
+import ucar.ma2.DataType;
+
+/**
+ * Typed decoding of the stored values of a datacube into physical values.
+ * <p>
+ * There is a decoder by type of the stored values, FITS BITPIX or NetCDF data
+ * type, whose loops read the primitive values, apply the scaling
+ * (BSCALE/BZERO, scale_factor/add_offset) and replace the blank values
+ * (BLANK, _FillValue) by NaN, without boxing. The blank of unsigned integers
+ * is masked as their values, a _FillValue of -1 being 255 for unsigned bytes.
+ * The values of 8 and 16 bits integers and of floats are decoded into
+ * float[], those of 32 and 64 bits integers and of doubles into double[],
+ * which are the values read by the rest of the application.
+ *
+ * @author vincent.cephirins
+ */
+public abstract class CubeData {
+
+	protected final double scale;
+	protected final double zero;
+	// false when the values are not scaled
+	protected final boolean scaled;
+
+	/**
+	 * @param scale factor of the stored values
+	 * @param zero offset of the stored values
+	 */
+	protected CubeData(double scale, double zero) {
+		this.scale = scale;
+		this.zero = zero;
+		this.scaled = scale != 1 || zero != 0;
+	}
+
+	/**
+	 * Return the decoder of the data of a FITS image.
+	 *
+	 * @param bitpix BITPIX of the image
+	 * @param bscale BSCALE, 1 if not given
+	 * @param bzero BZERO, 0 if not given
+	 * @param blank BLANK of the integer images, null if not given
+	 * @return the decoder
+	 * @throws CubeExplorerException if BITPIX is not valid
+	 */
+	public static CubeData forBitpix(int bitpix, double bscale, double bzero, Long blank)
+			throws CubeExplorerException {
+		switch (bitpix) {
+		case 8:
+			// FITS bytes are unsigned
+			return new ByteData(bscale, bzero, blank, true);
+		case 16:
+			return new ShortData(bscale, bzero, blank, false);
+		case 32:
+			return new IntData(bscale, bzero, blank, false);
+		case 64:
+			return new LongData(bscale, bzero, blank);
+		case -32:
+			return new FloatData(bscale, bzero, null);
+		case -64:
+			return new DoubleData(bscale, bzero, null);
+		default:
+			throw new CubeExplorerException("exception.invalidValue", "BITPIX " + bitpix);
+		}
+	}
+
+	/**
+	 * Return the decoder of the data of a NetCDF variable.
+	 *
+	 * @param dataType type of the variable
+	 * @param unsigned true if the integers are unsigned (_Unsigned)
+	 * @param scaleFactor scale_factor, null if not given
+	 * @param addOffset add_offset, null if not given
+	 * @param fillValue _FillValue or missing_value, null if not given
+	 * @return the decoder
+	 * @throws CubeExplorerException if the type is not numeric
+	 */
+	public static CubeData forDataType(DataType dataType, boolean unsigned, Number scaleFactor, Number addOffset,
+			Number fillValue) throws CubeExplorerException {
+		double scale = (scaleFactor == null) ? 1 : scaleFactor.doubleValue();
+		double zero = (addOffset == null) ? 0 : addOffset.doubleValue();
+		Long blank = (fillValue == null) ? null : fillValue.longValue();
+		if (dataType == DataType.BYTE) {
+			return new ByteData(scale, zero, blank, unsigned);
+		} else if (dataType == DataType.SHORT) {
+			return new ShortData(scale, zero, blank, unsigned);
+		} else if (dataType == DataType.INT) {
+			return new IntData(scale, zero, blank, unsigned);
+		} else if (dataType == DataType.LONG) {
+			return new LongData(scale, zero, blank);
+		} else if (dataType == DataType.FLOAT) {
+			return new FloatData(scale, zero, (fillValue == null) ? null : fillValue.doubleValue());
+		} else if (dataType == DataType.DOUBLE) {
+			return new DoubleData(scale, zero, (fillValue == null) ? null : fillValue.doubleValue());
+		}
+		throw new CubeExplorerException("exception.invalidValue", "dataType " + dataType);
+	}
+
+	/**
+	 * @return the number of bytes of a stored value
+	 */
+	public abstract int getBytesPerSample();
+
+	/**
+	 * @return the number of bytes of a decoded value, 4 for float, 8 for
+	 *         double
+	 */
+	public abstract int getBytesPerValue();
+
+	/**
+	 * @param count number of values
+	 * @return float[] or double[] of the decoded values
+	 */
+	public Object newValues(int count) {
+		return (getBytesPerValue() == 4) ? new float[count] : new double[count];
+	}
+
+	/**
+	 * Decode the values stored from the position of a buffer, in its byte
+	 * order.
+	 *
+	 * @param buffer stored values
+	 * @param count number of values
+	 * @return float[] or double[] of the values
+	 */
+	public Object decode(ByteBuffer buffer, int count) {
+		Object values = newValues(count);
+		decode(buffer, buffer.position(), getBytesPerSample(), values, 0, count);
+		return values;
+	}
+
+	/**
+	 * Decode values stored at regular intervals of a buffer, with absolute
+	 * reads which do not move the buffer.
+	 *
+	 * @param buffer stored values, in their byte order
+	 * @param position position of the first value
+	 * @param stride number of bytes between two values
+	 * @param values float[] or double[] receiving the decoded values
+	 * @param index index of the first decoded value
+	 * @param count number of values
+	 */
+	public abstract void decode(ByteBuffer buffer, int position, int stride, Object values, int index, int count);
+
+	/**
+	 * Decode values read by the NetCDF library.
+	 *
+	 * @param stored byte[], short[], int[], long[], float[] or double[]
+	 * @return float[] or double[] of the values, the stored array if they are
+	 *         not changed
+	 */
+	public abstract Object decode(Object stored);
+
+	/**
+	 * BITPIX 8, NetCDF byte
+	 */
+	private static final class ByteData extends CubeData {
+		private final boolean hasBlank;
+		private final long blank;
+		private final int mask;
+
+		private ByteData(double scale, double zero, Long blank, boolean unsigned) {
+			super(scale, zero);
+			this.hasBlank = blank != null;
+			this.mask = unsigned ? 0xff : -1;
+			this.blank = hasBlank ? blank & mask : 0;
+		}
+
+		@Override
+		public int getBytesPerSample() {
+			return 1;
+		}
+
+		@Override
+		public int getBytesPerValue() {
+			return 4;
+		}
+
+		@Override
+		public void decode(ByteBuffer buffer, int position, int stride, Object values, int index, int count) {
+			float[] out = (float[]) values;
+			for (int idx = 0; idx < count; idx++) {
+				int raw = buffer.get(position + idx * stride) & mask;
+				out[index + idx] = (hasBlank && raw == blank) ? Float.NaN : (float) (zero + scale * raw);
+			}
+		}
+
+		@Override
+		public Object decode(Object stored) {
+			byte[] in = (byte[]) stored;
+			float[] out = new float[in.length];
+			for (int idx = 0; idx < in.length; idx++) {
+				int raw = in[idx] & mask;
+				out[idx] = (hasBlank && raw == blank) ? Float.NaN : (float) (zero + scale * raw);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * BITPIX 16, NetCDF short
+	 */
+	private static final class ShortData extends CubeData {
+		private final boolean hasBlank;
+		private final long blank;
+		private final int mask;
+
+		private ShortData(double scale, double zero, Long blank, boolean unsigned) {
+			super(scale, zero);
+			this.hasBlank = blank != null;
+			this.mask = unsigned ? 0xffff : -1;
+			this.blank = hasBlank ? blank & mask : 0;
+		}
+
+		@Override
+		public int getBytesPerSample() {
+			return 2;
+		}
+
+		@Override
+		public int getBytesPerValue() {
+			return 4;
+		}
+
+		@Override
+		public void decode(ByteBuffer buffer, int position, int stride, Object values, int index, int count) {
+			float[] out = (float[]) values;
+			for (int idx = 0; idx < count; idx++) {
+				int raw = buffer.getShort(position + idx * stride) & mask;
+				out[index + idx] = (hasBlank && raw == blank) ? Float.NaN : (float) (zero + scale * raw);
+			}
+		}
+
+		@Override
+		public Object decode(Object stored) {
+			short[] in = (short[]) stored;
+			float[] out = new float[in.length];
+			for (int idx = 0; idx < in.length; idx++) {
+				int raw = in[idx] & mask;
+				out[idx] = (hasBlank && raw == blank) ? Float.NaN : (float) (zero + scale * raw);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * BITPIX 32, NetCDF int
+	 */
+	private static final class IntData extends CubeData {
+		private final boolean hasBlank;
+		private final long blank;
+		private final long mask;
+
+		private IntData(double scale, double zero, Long blank, boolean unsigned) {
+			super(scale, zero);
+			this.hasBlank = blank != null;
+			this.mask = unsigned ? 0xffffffffL : -1L;
+			this.blank = hasBlank ? blank & mask : 0;
+		}
+
+		@Override
+		public int getBytesPerSample() {
+			return 4;
+		}
+
+		@Override
+		public int getBytesPerValue() {
+			return 8;
+		}
+
+		@Override
+		public void decode(ByteBuffer buffer, int position, int stride, Object values, int index, int count) {
+			double[] out = (double[]) values;
+			for (int idx = 0; idx < count; idx++) {
+				long raw = buffer.getInt(position + idx * stride) & mask;
+				out[index + idx] = (hasBlank && raw == blank) ? Double.NaN : zero + scale * raw;
+			}
+		}
+
+		@Override
+		public Object decode(Object stored) {
+			int[] in = (int[]) stored;
+			double[] out = new double[in.length];
+			for (int idx = 0; idx < in.length; idx++) {
+				long raw = in[idx] & mask;
+				out[idx] = (hasBlank && raw == blank) ? Double.NaN : zero + scale * raw;
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * BITPIX 64, NetCDF long
+	 */
+	private static final class LongData extends CubeData {
+		private final boolean hasBlank;
+		private final long blank;
+
+		private LongData(double scale, double zero, Long blank) {
+			super(scale, zero);
+			this.hasBlank = blank != null;
+			this.blank = hasBlank ? blank : 0;
+		}
+
+		@Override
+		public int getBytesPerSample() {
+			return 8;
+		}
+
+		@Override
+		public int getBytesPerValue() {
+			return 8;
+		}
+
+		@Override
+		public void decode(ByteBuffer buffer, int position, int stride, Object values, int index, int count) {
+			double[] out = (double[]) values;
+			for (int idx = 0; idx < count; idx++) {
+				long raw = buffer.getLong(position + idx * stride);
+				out[index + idx] = (hasBlank && raw == blank) ? Double.NaN : zero + scale * raw;
+			}
+		}
+
+		@Override
+		public Object decode(Object stored) {
+			long[] in = (long[]) stored;
+			double[] out = new double[in.length];
+			for (int idx = 0; idx < in.length; idx++) {
+				long raw = in[idx];
+				out[idx] = (hasBlank && raw == blank) ? Double.NaN : zero + scale * raw;
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * BITPIX -32, NetCDF float
+	 */
+	private static final class FloatData extends CubeData {
+		private final boolean hasFill;
+		private final float fill;
+
+		private FloatData(double scale, double zero, Double fill) {
+			super(scale, zero);
+			// A NaN fill value is already NaN
+			this.hasFill = fill != null && !fill.isNaN();
+			this.fill = hasFill ? fill.floatValue() : Float.NaN;
+		}
+
+		@Override
+		public int getBytesPerSample() {
+			return 4;
+		}
+
+		@Override
+		public int getBytesPerValue() {
+			return 4;
+		}
+
+		@Override
+		public void decode(ByteBuffer buffer, int position, int stride, Object values, int index, int count) {
+			float[] out = (float[]) values;
+			if (stride == 4 && !scaled && !hasFill) {
+				// Bulk copy of a view, the buffer is not moved
+				ByteBuffer view = buffer.duplicate().order(buffer.order());
+				view.position(position);
+				view.asFloatBuffer().get(out, index, count);
+				return;
+			}
+			for (int idx = 0; idx < count; idx++) {
+				float raw = buffer.getFloat(position + idx * stride);
+				out[index + idx] = (hasFill && raw == fill) ? Float.NaN : (float) (zero + scale * raw);
+			}
+		}
+
+		@Override
+		public Object decode(Object stored) {
+			float[] in = (float[]) stored;
+			if (!scaled && !hasFill) {
+				return in;
+			}
+			float[] out = new float[in.length];
+			for (int idx = 0; idx < in.length; idx++) {
+				float raw = in[idx];
+				out[idx] = (hasFill && raw == fill) ? Float.NaN : (float) (zero + scale * raw);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * BITPIX -64, NetCDF double
+	 */
+	private static final class DoubleData extends CubeData {
+		private final boolean hasFill;
+		private final double fill;
+
+		private DoubleData(double scale, double zero, Double fill) {
+			super(scale, zero);
+			this.hasFill = fill != null && !fill.isNaN();
+			this.fill = hasFill ? fill : Double.NaN;
+		}
+
+		@Override
+		public int getBytesPerSample() {
+			return 8;
+		}
+
+		@Override
+		public int getBytesPerValue() {
+			return 8;
+		}
+
+		@Override
+		public void decode(ByteBuffer buffer, int position, int stride, Object values, int index, int count) {
+			double[] out = (double[]) values;
+			if (stride == 8 && !scaled && !hasFill) {
+				ByteBuffer view = buffer.duplicate().order(buffer.order());
+				view.position(position);
+				view.asDoubleBuffer().get(out, index, count);
+				return;
+			}
+			for (int idx = 0; idx < count; idx++) {
+				double raw = buffer.getDouble(position + idx * stride);
+				out[index + idx] = (hasFill && raw == fill) ? Double.NaN : zero + scale * raw;
+			}
+		}
+
+		@Override
+		public Object decode(Object stored) {
+			double[] in = (double[]) stored;
+			if (!scaled && !hasFill) {
+				return in;
+			}
+			double[] out = new double[in.length];
+			for (int idx = 0; idx < in.length; idx++) {
+				double raw = in[idx];
+				out[idx] = (hasFill && raw == fill) ? Double.NaN : zero + scale * raw;
+			}
+			return out;
+		}
+	}
+}
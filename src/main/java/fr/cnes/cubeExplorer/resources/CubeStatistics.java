@@ -0,0 +1,398 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import app.CubeExplorer;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * Statistics of the planes and of the whole datacube.
+ * <p>
+ * Count of values and of NaN, min, max, mean, standard deviation, the
+ * percentiles of <code>stats_percentiles</code> and a histogram of
+ * <code>stats_bins</code> bins between min and max. They are computed once in
+ * background, when the cube is opened if <code>stats_at_opening</code> is
+ * true, else on the first request, in a single pass reading the planes one
+ * after the other on a low priority thread of their own. They are stored as
+ * JSON in <code>sidecar_dir</code> (see {@link SpectrumSidecar}). Statistics of
+ * a plane are exact. The histogram and the percentiles of the cube are
+ * interpolated in a histogram of {@value #FINE_BINS} bins, merging histograms
+ * of {@value #PLANE_BINS} bins of the planes.
+ *
+ * @author vincent.cephirins
+ */
+public class CubeStatistics {
+
+	// Initialise un logger (voir conf/log4j2.xml).
+	private static final Logger LOGGER = LogManager.getLogger("cubeStatistics");
+
+	// Bins of the histogram of the cube giving its percentiles
+	private static final int FINE_BINS = 65536;
+
+	// Bins of the histograms of the planes merged into those of the cube
+	private static final int PLANE_BINS = 1024;
+
+	// Low priority computation, one cube at a time, apart from the sidecar builder
+	private static final ExecutorService COMPUTER = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "cube-statistics");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	private final String filename;
+	private final File file;
+	private final int dimY;
+	private final int dimZ;
+	private final RowsReader reader;
+	private final double[] percentiles;
+	private final int bins;
+
+	private volatile JSONObject statistics = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param filename datacube file
+	 * @param dimY number of rows
+	 * @param dimZ number of planes
+	 * @param reader reader of the cube planes
+	 * @throws CubeExplorerException
+	 */
+	public CubeStatistics(String filename, int dimY, int dimZ, RowsReader reader) throws CubeExplorerException {
+		this.filename = filename;
+		this.dimY = dimY;
+		this.dimZ = dimZ;
+		this.reader = reader;
+
+		String[] levels = CubeExplorer.getProperty("stats_percentiles", "1,5,25,50,75,95,99").split(",");
+		this.percentiles = new double[levels.length];
+		for (int idx = 0; idx < levels.length; idx++) {
+			percentiles[idx] = Double.parseDouble(levels[idx].trim());
+		}
+		this.bins = Math.max(1, Integer.parseInt(CubeExplorer.getProperty("stats_bins", "256")));
+		this.file = getStatisticsFile(filename);
+
+		if (file.exists()) {
+			read();
+		} else if (Boolean.parseBoolean(CubeExplorer.getProperty("stats_at_opening", "false"))) {
+			build();
+		}
+	}
+
+	/**
+	 * Return the file of the statistics of a datacube, named after the
+	 * percentiles and the bins they are computed with.
+	 *
+	 * @param filename datacube file
+	 * @return the file, existing once the statistics are computed
+	 * @throws CubeExplorerException
+	 */
+	public static File getStatisticsFile(String filename) throws CubeExplorerException {
+		String key = CubeExplorer.getProperty("stats_percentiles", "1,5,25,50,75,95,99") + "|"
+				+ CubeExplorer.getProperty("stats_bins", "256");
+		return SpectrumSidecar.getSidecarFile(filename,
+				UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + ".stats.json");
+	}
+
+	/**
+	 * Return the statistics, starting their computation if needed.
+	 *
+	 * @return "cube" statistics and "planes" statistics, or null until they
+	 *         are computed
+	 */
+	public JSONObject getStatistics() {
+		JSONObject stats = statistics;
+		if (stats == null) {
+			build();
+		}
+		return stats;
+	}
+
+	/**
+	 * @return statistics of the whole cube, or null until they are computed
+	 */
+	public JSONObject getSummary() {
+		JSONObject stats = statistics;
+		return (stats == null) ? null : stats.getJSONObject("cube");
+	}
+
+	/**
+	 * @param posZ index of the plane
+	 * @return statistics of a plane, or null until they are computed
+	 */
+	public JSONObject getPlaneSummary(int posZ) {
+		JSONObject stats = statistics;
+		JSONArray planes = (stats == null) ? null : stats.getJSONArray("planes");
+		return (planes == null || posZ < 0 || posZ >= planes.length()) ? null : planes.getJSONObject(posZ);
+	}
+
+	private void read() {
+		try {
+			statistics = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+			LOGGER.info("Statistics {} read", file);
+		} catch (Exception e) {
+			LOGGER.error("Statistics {} not read : {}", file, e.getMessage());
+		}
+	}
+
+	private void build() {
+		if (!SpectrumSidecar.BUILDING.add(file.getPath())) {
+			return;
+		}
+		COMPUTER.submit(() -> {
+			try {
+				if (!file.exists()) {
+					write();
+				}
+				if (!closed) {
+					read();
+				}
+			} catch (Exception e) {
+				LOGGER.error("Statistics {} not computed : {}", file, e.getMessage());
+			} finally {
+				SpectrumSidecar.BUILDING.remove(file.getPath());
+			}
+		});
+	}
+
+	/**
+	 * Compute the statistics into a temporary file, renamed once complete.
+	 */
+	private void write() throws Exception {
+		LOGGER.info("Computing statistics {}", file);
+
+		// Single pass: statistics and histogram of each plane
+		JSONObject[] planes = new JSONObject[dimZ];
+		double[][] moments = new double[dimZ][];
+		int[][] planeBins = new int[dimZ][];
+		for (int posZ = 0; posZ < dimZ; posZ++) {
+			double[] values = readPlane(posZ);
+			moments[posZ] = new double[4];
+			planeBins[posZ] = new int[PLANE_BINS];
+			planes[posZ] = getPlaneStatistics(posZ, values, moments[posZ], planeBins[posZ]);
+		}
+
+		// Merge of count, mean and sum of squared deviations of the planes
+		long count = 0;
+		long nan = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double mean = 0;
+		double m2 = 0;
+		for (int posZ = 0; posZ < dimZ; posZ++) {
+			long planeCount = planes[posZ].getLong("count");
+			nan += planes[posZ].getLong("nan");
+			if (planeCount == 0) {
+				continue;
+			}
+			min = Math.min(min, moments[posZ][2]);
+			max = Math.max(max, moments[posZ][3]);
+			double delta = moments[posZ][0] - mean;
+			long total = count + planeCount;
+			mean += delta * planeCount / total;
+			m2 += moments[posZ][1] + delta * delta * count * planeCount / total;
+			count = total;
+		}
+
+		// Histograms of the cube, merging those of the planes
+		double[] fine = new double[FINE_BINS];
+		double[] coarse = new double[bins];
+		for (int posZ = 0; posZ < dimZ; posZ++) {
+			if (planes[posZ].getLong("count") > 0) {
+				spread(planeBins[posZ], moments[posZ][2], moments[posZ][3], fine, min, max);
+				spread(planeBins[posZ], moments[posZ][2], moments[posZ][3], coarse, min, max);
+			}
+		}
+		long[] histogram = new long[bins];
+		for (int bin = 0; bin < bins; bin++) {
+			histogram[bin] = Math.round(coarse[bin]);
+		}
+
+		JSONObject cube = new JSONObject();
+		cube.put("count", count);
+		cube.put("nan", nan);
+		if (count > 0) {
+			cube.put("min", min);
+			cube.put("max", max);
+			cube.put("mean", mean);
+			cube.put("sigma", Math.sqrt(m2 / count));
+			JSONObject cubePercentiles = new JSONObject();
+			for (double level : percentiles) {
+				cubePercentiles.put(format(level), getPercentile(fine, count, level, min, max));
+			}
+			cube.put("percentiles", cubePercentiles);
+			cube.put("histogram", new JSONObject().put("min", min).put("max", max).put("counts", histogram));
+		}
+
+		JSONObject stats = new JSONObject();
+		stats.put("cube", cube);
+		stats.put("planes", new JSONArray(Arrays.asList(planes)));
+
+		file.getParentFile().mkdirs();
+		SpectrumSidecar.deleteOutdated(filename, file);
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			Files.write(tmp.toPath(), stats.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			tmp.delete();
+			throw ioe;
+		}
+		LOGGER.info("Statistics {} computed", file);
+	}
+
+	/**
+	 * @param moments mean, sum of squared deviations, min and max of the plane
+	 * @param planeBins histogram of the plane between its min and max
+	 */
+	private JSONObject getPlaneStatistics(int posZ, double[] values, double[] moments, int[] planeBins) {
+		double[] sorted = new double[values.length];
+		int count = 0;
+		double sum = 0;
+		for (double value : values) {
+			if (!Double.isNaN(value)) {
+				sorted[count++] = value;
+				sum += value;
+			}
+		}
+
+		JSONObject plane = new JSONObject();
+		plane.put("posZ", posZ);
+		plane.put("count", count);
+		plane.put("nan", values.length - count);
+		if (count == 0) {
+			return plane;
+		}
+
+		Arrays.sort(sorted, 0, count);
+		double mean = sum / count;
+		double m2 = 0;
+		for (int idx = 0; idx < count; idx++) {
+			m2 += (sorted[idx] - mean) * (sorted[idx] - mean);
+		}
+		double min = sorted[0];
+		double max = sorted[count - 1];
+		moments[0] = mean;
+		moments[1] = m2;
+		moments[2] = min;
+		moments[3] = max;
+
+		plane.put("min", min);
+		plane.put("max", max);
+		plane.put("mean", mean);
+		plane.put("sigma", Math.sqrt(m2 / count));
+		JSONObject planePercentiles = new JSONObject();
+		for (double level : percentiles) {
+			double rank = level / 100 * (count - 1);
+			int low = (int) Math.floor(rank);
+			int high = Math.min(count - 1, low + 1);
+			planePercentiles.put(format(level), sorted[low] + (rank - low) * (sorted[high] - sorted[low]));
+		}
+		plane.put("percentiles", planePercentiles);
+		long[] histogram = new long[bins];
+		for (int idx = 0; idx < count; idx++) {
+			histogram[getBin(sorted[idx], min, max, bins)]++;
+			planeBins[getBin(sorted[idx], min, max, PLANE_BINS)]++;
+		}
+		plane.put("histogram", new JSONObject().put("min", min).put("max", max).put("counts", histogram));
+		return plane;
+	}
+
+	private static int getBin(double value, double min, double max, int nbBins) {
+		if (max <= min) {
+			return 0;
+		}
+		return Math.min(nbBins - 1, (int) ((value - min) / (max - min) * nbBins));
+	}
+
+	/**
+	 * Add a histogram between fromMin and fromMax to a histogram between min
+	 * and max, the values of a bin being spread uniformly over its width.
+	 */
+	private static void spread(int[] from, double fromMin, double fromMax, double[] to, double min, double max) {
+		if (fromMax <= fromMin || max <= min) {
+			// Single value
+			int bin = getBin(fromMin, min, max, to.length);
+			for (int binCount : from) {
+				to[bin] += binCount;
+			}
+			return;
+		}
+		double scale = to.length / (max - min);
+		double width = (fromMax - fromMin) / from.length;
+		for (int idx = 0; idx < from.length; idx++) {
+			if (from[idx] == 0) {
+				continue;
+			}
+			double start = (fromMin + idx * width - min) * scale;
+			double end = (fromMin + (idx + 1) * width - min) * scale;
+			int first = Math.max(0, Math.min(to.length - 1, (int) start));
+			int last = Math.max(0, Math.min(to.length - 1, (int) end));
+			if (first == last || end <= start) {
+				to[first] += from[idx];
+				continue;
+			}
+			double density = from[idx] / (end - start);
+			for (int bin = first; bin <= last; bin++) {
+				to[bin] += (Math.min(end, bin + 1) - Math.max(start, bin)) * density;
+			}
+		}
+	}
+
+	/**
+	 * Interpolate a percentile in a histogram between min and max.
+	 */
+	private static double getPercentile(double[] histogram, long count, double level, double min, double max) {
+		double rank = level / 100 * count;
+		double cumul = 0;
+		for (int bin = 0; bin < histogram.length; bin++) {
+			if (histogram[bin] > 0 && cumul + histogram[bin] >= rank) {
+				double fraction = (rank - cumul) / histogram[bin];
+				return min + (bin + fraction) * (max - min) / histogram.length;
+			}
+			cumul += histogram[bin];
+		}
+		return max;
+	}
+
+	private static String format(double level) {
+		return (level == Math.rint(level)) ? Long.toString((long) level) : Double.toString(level);
+	}
+
+	private double[] readPlane(int posZ) throws Exception {
+		if (closed) {
+			throw new IOException("cube closed");
+		}
+		Object plane = reader.readRows(posZ, 0, dimY);
+		if (plane instanceof double[]) {
+			return (double[]) plane;
+		}
+		float[] floatValues = (float[]) plane;
+		double[] values = new double[floatValues.length];
+		for (int idx = 0; idx < values.length; idx++) {
+			values[idx] = floatValues[idx];
+		}
+		return values;
+	}
+
+	public void close() {
+		closed = true;
+	}
+}
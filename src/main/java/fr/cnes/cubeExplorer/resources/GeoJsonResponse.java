@@ -33,6 +33,19 @@ public class GeoJsonResponse {
 		geoJson.put("feature", geoJsonFeature);
 	}
 
+	/**
+	 * @param geometry GeoJson geometry of the feature
+	 * @param properties properties of the feature
+	 */
+	public GeoJsonResponse(JSONObject geometry, JSONObject properties) {
+		JSONObject geoJsonFeature = new JSONObject();
+
+		geoJsonFeature.put("type", "Feature");
+		geoJsonFeature.put("geometry", geometry);
+		geoJsonFeature.put("properties", properties);
+		geoJson.put("feature", geoJsonFeature);
+	}
+
 	/**
 	 * @return the geoJson
 	 */
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import common.enums.Binning;
+import common.enums.Encoding;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * Streamed GeoJson response of a slide.
+ * <p>
+ * Writes the same document as {@link GeoJsonResponse} of the slide, band of
+ * rows by band of rows, so that only a band of values is kept in memory and
+ * the first rows reach the client while the next ones are read. A whole slide
+ * small enough for the plane cache is read at once through it instead, to be
+ * kept for the next requests (see {@link PlaneCache}). Missing values are
+ * written as null. A window of the slide may be written instead of the
+ * whole slide, only the rows of the window being read. With a reduced
+ * encoding, the values are written in base64 (see {@link QuantizedValues}).
+ *
+ * @author vincent.cephirins
+ */
+public class GeoJsonSlideWriter {
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	// Maximum number of values of a band of rows
+	private static final int BAND_VALUES = 256 * 1024;
+
+	private final AbstractDataCube cube;
+	private final int posZ;
+	private final int level;
+	private final Binning binning;
+	private final int posX;
+	private final int posY;
+	private final int width;
+	private final int height;
+	private final boolean window;
+	private final int bandRows;
+	private final RowsReader reader;
+	private final JSONArray metadata;
+	private final JSONObject properties;
+	private Object firstBand = null;
+	private Encoding encoding = null;
+	private double[] range = null;
+
+	/**
+	 * The metadata and the first band of rows are read here, so that errors are
+	 * raised before the response is committed.
+	 *
+	 * @param cube datacube
+	 * @param posZ index of the slide
+	 * @param pattern Select metadata to return
+	 * @throws CubeExplorerException
+	 */
+	public GeoJsonSlideWriter(AbstractDataCube cube, int posZ, String pattern) throws CubeExplorerException {
+		this(cube, posZ, pattern, 0, Binning.MEAN, null, null, null, null);
+	}
+
+	/**
+	 * A window of a downsampled slide is read here, a window of the slide of
+	 * level 0 band by band.
+	 *
+	 * @param cube datacube
+	 * @param posZ index of the slide
+	 * @param pattern Select metadata to return
+	 * @param level level of the slide (see {@link SlidePyramid})
+	 * @param binning operator of the bins
+	 * @param x0 first column of the window, 0 if null
+	 * @param y0 first row of the window, 0 if null
+	 * @param width number of columns of the window, up to the last one if null
+	 * @param height number of rows of the window, up to the last one if null
+	 * @throws CubeExplorerException
+	 */
+	public GeoJsonSlideWriter(AbstractDataCube cube, int posZ, String pattern, int level, Binning binning,
+			Integer x0, Integer y0, Integer width, Integer height) throws CubeExplorerException {
+		this.cube = cube;
+		this.posZ = posZ;
+		this.level = level;
+		this.binning = binning;
+		this.metadata = cube.selectMetadata(pattern);
+		this.properties = null;
+
+		int dimX;
+		int dimY;
+		if (level == 0) {
+			JSONObject dimensions = cube.getHeader().getDimensions();
+			dimX = dimensions.getInt("dimX");
+			dimY = dimensions.getInt("dimY");
+		} else {
+			SlidePyramid pyramid = cube.getPyramid();
+			dimX = pyramid.getDimX(level);
+			dimY = pyramid.getDimY(level);
+		}
+		this.posX = (x0 == null) ? 0 : x0;
+		this.posY = (y0 == null) ? 0 : y0;
+		this.width = (width == null) ? dimX - posX : width;
+		this.height = (height == null) ? dimY - posY : height;
+		this.window = this.width != dimX || this.height != dimY;
+
+		if (posX < 0 || this.width < 1 || posX + this.width > dimX) {
+			// OutOfBound
+			throw new CubeExplorerException("exception.outOfBound", "x0", posX, 0, dimX - Math.max(1, this.width));
+		}
+		if (posY < 0 || this.height < 1 || posY + this.height > dimY) {
+			// OutOfBound
+			throw new CubeExplorerException("exception.outOfBound", "y0", posY, 0, dimY - Math.max(1, this.height));
+		}
+
+		boolean banded = level == 0 && (window || !PlaneCache.getInstance().accepts(getSize() * Double.BYTES));
+		if (banded) {
+			this.reader = (z, row, nbRows) -> cube.getSlideRegion(z, this.posX, this.posY + row, this.width, nbRows);
+		} else {
+			Object slide = (level == 0) ? cube.getCachedSlideValues(posZ)
+					: cube.getPyramid().readRegion(posZ, level, binning, posX, posY, this.width, this.height);
+			this.reader = (z, row, nbRows) -> slide;
+		}
+		this.bandRows = banded ? Math.max(1, Math.min(this.height, BAND_VALUES / this.width)) : this.height;
+
+		try {
+			this.firstBand = reader.readRows(posZ, 0, bandRows);
+		} catch (CubeExplorerException ce) {
+			throw ce;
+		} catch (Exception e) {
+			throw new CubeExplorerException(e);
+		}
+	}
+
+	/**
+	 * A slide computed from the datacube, as a moment map.
+	 *
+	 * @param cube datacube
+	 * @param posZ index of the slide in the geometry
+	 * @param pattern Select metadata to return
+	 * @param values float[] or double[] of dimX * dimY values, row by row
+	 * @param properties members of the slide written before its values
+	 * @throws CubeExplorerException
+	 */
+	public GeoJsonSlideWriter(AbstractDataCube cube, int posZ, String pattern, Object values, JSONObject properties)
+			throws CubeExplorerException {
+		JSONObject dimensions = cube.getHeader().getDimensions();
+		this.cube = cube;
+		this.posZ = posZ;
+		this.level = 0;
+		this.binning = Binning.MEAN;
+		this.metadata = cube.selectMetadata(pattern);
+		this.properties = properties;
+		this.posX = 0;
+		this.posY = 0;
+		this.width = dimensions.getInt("dimX");
+		this.height = dimensions.getInt("dimY");
+		this.window = false;
+		this.bandRows = height;
+		this.reader = (z, row, nbRows) -> values;
+		this.firstBand = values;
+	}
+
+	/**
+	 * @return number of values written
+	 */
+	public long getSize() {
+		return (long) width * height;
+	}
+
+	/**
+	 * Write the values in a reduced encoding instead of arrays of numbers.
+	 *
+	 * @param encoding encoding of the values, null for numbers
+	 * @param range min and max of the quantization, those of the values if null
+	 */
+	public void setEncoding(Encoding encoding, double[] range) {
+		this.encoding = encoding;
+		this.range = range;
+	}
+
+	/**
+	 * Write the response, the stream is not closed.
+	 *
+	 * @param out output stream
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		JsonGenerator generator = FACTORY.createGenerator(out);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+		generator.writeStartObject();
+		generator.writeObjectFieldStart("response");
+		generator.writeObjectFieldStart("feature");
+		generator.writeStringField("type", "Feature");
+
+		generator.writeObjectFieldStart("geometry");
+		generator.writeStringField("type", "Point");
+		generator.writeArrayFieldStart("coordinates");
+		generator.writeNumber(1);
+		generator.writeNumber(posZ);
+		generator.writeEndArray();
+		generator.writeEndObject();
+
+		generator.writeObjectFieldStart("properties");
+		generator.writeStringField("fileType", cube.getType().toString());
+		generator.writeFieldName("metadata");
+		generator.writeRawValue(metadata.toString());
+		generator.writeObjectFieldStart("slide");
+		if (level > 0) {
+			generator.writeNumberField("level", level);
+			generator.writeStringField("binning", binning.toString());
+		}
+		if (properties != null) {
+			for (String key : properties.keySet()) {
+				generator.writeFieldName(key);
+				generator.writeRawValue(JSONObject.valueToString(properties.get(key)));
+			}
+		}
+		if (window) {
+			generator.writeNumberField("x0", posX);
+			generator.writeNumberField("y0", posY);
+			generator.writeNumberField("width", width);
+			generator.writeNumberField("height", height);
+		}
+		if (encoding != null) {
+			writeEncoded(generator);
+		} else {
+			generator.writeArrayFieldStart("value");
+			for (int row = 0; row < height; row += bandRows) {
+				int nbRows = Math.min(bandRows, height - row);
+				writeRows(generator, readBand(row, nbRows), nbRows);
+			}
+			generator.writeEndArray();
+		}
+		generator.writeEndObject();
+		generator.writeEndObject();
+
+		generator.writeEndObject();
+		generator.writeEndObject();
+		generator.writeStringField("status", "OK");
+		generator.writeEndObject();
+		generator.close();
+	}
+
+	private Object readBand(int row, int nbRows) throws IOException {
+		Object band = firstBand;
+		firstBand = null;
+		if (band == null) {
+			try {
+				band = reader.readRows(posZ, row, nbRows);
+			} catch (Exception e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+		return band;
+	}
+
+	/**
+	 * The whole slide is quantized at once, its limits being those of all
+	 * its values.
+	 */
+	private void writeEncoded(JsonGenerator generator) throws IOException {
+		Object values = null;
+		for (int row = 0; row < height; row += bandRows) {
+			int nbRows = Math.min(bandRows, height - row);
+			Object band = readBand(row, nbRows);
+			if (values == null) {
+				values = (nbRows == height) ? band
+						: Array.newInstance(band.getClass().getComponentType(), width * height);
+			}
+			if (values != band) {
+				System.arraycopy(band, 0, values, row * width, nbRows * width);
+			}
+		}
+
+		QuantizedValues quantized = new QuantizedValues(values, encoding, range);
+		JSONObject properties = new JSONObject();
+		quantized.putProperties(properties);
+		for (String key : properties.keySet()) {
+			generator.writeFieldName(key);
+			generator.writeRawValue(JSONObject.valueToString(properties.get(key)));
+		}
+		generator.writeStringField("data", quantized.getBase64());
+	}
+
+	private void writeRows(JsonGenerator generator, Object band, int nbRows) throws IOException {
+		float[] floatValues = (band instanceof float[]) ? (float[]) band : null;
+		double[] doubleValues = (band instanceof double[]) ? (double[]) band : null;
+
+		for (int row = 0; row < nbRows; row++) {
+			generator.writeStartArray();
+			for (int idx = row * width; idx < (row + 1) * width; idx++) {
+				double value = (floatValues != null) ? floatValues[idx] : doubleValues[idx];
+				if (Double.isNaN(value)) {
+					generator.writeNull();
+				} else {
+					generator.writeNumber(value);
+				}
+			}
+			generator.writeEndArray();
+		}
+	}
+}
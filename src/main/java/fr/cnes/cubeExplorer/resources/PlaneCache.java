@@ -0,0 +1,609 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import app.CubeExplorer;
+import common.enums.Binning;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * Decoded slides and spectra of the opened datacubes, kept off the Java heap.
+ * <p>
+ * The values are kept in direct buffers, so that the hot slides do not churn
+ * through the heap, within a budget of <code>plane_cache_bytes</code> (0 to
+ * disable) counted on the buffers allocated; the buffers of the evicted values
+ * are reused for the values of the same size. The direct memory of the JVM
+ * (-XX:MaxDirectMemorySize) must be larger than the budget.
+ * <p>
+ * The values are admitted as in W-TinyLFU: a new entry is kept in a window of
+ * the recent entries, as the prefetched slides (see {@link SlidePrefetcher}),
+ * then enters the main space only if it has been used more often than the
+ * entry it would evict there, according to a count-min sketch of the
+ * frequencies of the last accesses. The main space is a segmented LRU, whose
+ * entries used again are protected from those used once. The values larger
+ * than the window are admitted in the main space at once. The values returned
+ * are copies. The entries of a cube are removed when it is closed.
+ * <p>
+ * An access is counted once in the sketch: when found, or when put. The values
+ * are copied out of the lock, the entries being copied are pinned so that their
+ * buffers are not reused meanwhile.
+ *
+ * @author vincent.cephirins
+ */
+public class PlaneCache {
+
+	// Initialise un logger (voir conf/log4j2.xml).
+	private static final Logger LOGGER = LogManager.getLogger("planeCache");
+
+	// Share of the budget of the window of the recent entries
+	private static final double WINDOW_SHARE = 0.2;
+
+	// Share of the main space of the entries used again
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private static PlaneCache instance = null;
+
+	/**
+	 * Axis of the values of an entry
+	 */
+	public enum Axis {
+		SLIDE, SPECTRUM
+	}
+
+	/**
+	 * Values of a cube, the cube being compared by identity so that a reopened
+	 * cube does not get the values of the previous one.
+	 */
+	public static final class Key {
+		private final AbstractDataCube cube;
+		private final Axis axis;
+		private final int index;
+		private final int level;
+		private final Binning binning;
+		private final int[] window;
+
+		private Key(AbstractDataCube cube, Axis axis, int index, int level, Binning binning, int[] window) {
+			this.cube = cube;
+			this.axis = axis;
+			this.index = index;
+			this.level = level;
+			this.binning = binning;
+			this.window = window;
+		}
+
+		/**
+		 * @param cube datacube
+		 * @param posZ index of the slide
+		 * @return key of the slide at the full resolution
+		 */
+		public static Key slide(AbstractDataCube cube, int posZ) {
+			return new Key(cube, Axis.SLIDE, posZ, 0, null, null);
+		}
+
+		/**
+		 * @param cube datacube
+		 * @param posZ index of the slide
+		 * @param level level of the slide in the pyramid
+		 * @param binning operator of the bins
+		 * @param posX first column of the window
+		 * @param posY first row of the window
+		 * @param width number of columns of the window
+		 * @param height number of rows of the window
+		 * @return key of a window of a slide of the pyramid
+		 */
+		public static Key slide(AbstractDataCube cube, int posZ, int level, Binning binning, int posX, int posY,
+				int width, int height) {
+			return new Key(cube, Axis.SLIDE, posZ, level, binning, new int[] { posX, posY, width, height });
+		}
+
+		/**
+		 * @param cube datacube
+		 * @param pixel index of the pixel, posY * dimX + posX
+		 * @return key of the spectrum of the pixel
+		 */
+		public static Key spectrum(AbstractDataCube cube, int pixel) {
+			return new Key(cube, Axis.SPECTRUM, pixel, 0, null, null);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return key.cube == cube && key.axis == axis && key.index == index && key.level == level
+					&& key.binning == binning && Arrays.equals(key.window, window);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = System.identityHashCode(cube);
+			hash = hash * 31 + axis.ordinal();
+			hash = hash * 31 + index;
+			hash = hash * 31 + level;
+			hash = hash * 31 + ((binning == null) ? 0 : binning.ordinal() + 1);
+			return hash * 31 + Arrays.hashCode(window);
+		}
+	}
+
+	/**
+	 * Values kept in a direct buffer.
+	 */
+	private static final class Entry {
+		private final ByteBuffer buffer;
+		private final boolean isFloat;
+		private final int length;
+		// Number of copies being made, the buffer being reused once none
+		private int pins = 0;
+		private boolean evicted = false;
+
+		private Entry(ByteBuffer buffer, boolean isFloat, int length) {
+			this.buffer = buffer;
+			this.isFloat = isFloat;
+			this.length = length;
+		}
+
+		private int getBytes() {
+			return buffer.capacity();
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters, halved once the number of accesses
+	 * reaches 10 times the number of counters, so that the old accesses
+	 * count less.
+	 */
+	private static final class FrequencySketch {
+		private static final int[] SEEDS = { 0x97cb3127, 0xb7eb6e2d, 0xc2b2ae35, 0x85ebca6b };
+
+		private final byte[] counters;
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		private FrequencySketch(int size) {
+			int length = Integer.highestOneBit(Math.max(1024, Math.min(1 << 22, size)) - 1) << 1;
+			this.counters = new byte[length];
+			this.mask = length - 1;
+			this.sampleSize = 10 * length;
+		}
+
+		private int indexOf(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) & 3];
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		private void increment(Key key) {
+			int hash = key.hashCode();
+			for (int row = 0; row < SEEDS.length; row++) {
+				int idx = indexOf(hash, row);
+				if (counters[idx] < 15) {
+					counters[idx]++;
+				}
+			}
+			if (++additions >= sampleSize) {
+				for (int idx = 0; idx < counters.length; idx++) {
+					counters[idx] >>= 1;
+				}
+				additions /= 2;
+			}
+		}
+
+		private int frequency(Key key) {
+			int hash = key.hashCode();
+			int frequency = 15;
+			for (int row = 0; row < SEEDS.length; row++) {
+				frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+			}
+			return frequency;
+		}
+	}
+
+	private final long maxBytes;
+	private final long windowMaxBytes;
+	private final long protectedMaxBytes;
+	private final FrequencySketch sketch;
+
+	// Entries in LRU order: the window of the recent entries, then the main space
+	private final LinkedHashMap<Key, Entry> window = new LinkedHashMap<>();
+	private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>();
+	private final LinkedHashMap<Key, Entry> protectedEntries = new LinkedHashMap<>();
+	private long windowBytes = 0;
+	private long probationBytes = 0;
+	private long protectedBytes = 0;
+
+	// Buffers of the evicted entries, by capacity
+	private final Map<Integer, ArrayDeque<ByteBuffer>> freeBuffers = new HashMap<>();
+	private long allocatedBytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long rejections = 0;
+
+	/**
+	 * @param maxBytes maximum size of the buffers of the values kept
+	 */
+	public PlaneCache(long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+		this.windowMaxBytes = (long) (this.maxBytes * WINDOW_SHARE);
+		this.protectedMaxBytes = (long) ((this.maxBytes - windowMaxBytes) * PROTECTED_SHARE);
+		this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, this.maxBytes / 4096));
+	}
+
+	/**
+	 * Return the cache shared by the application, sized with the property
+	 * <code>plane_cache_bytes</code>.
+	 *
+	 * @return the shared cache
+	 * @throws CubeExplorerException
+	 */
+	public static synchronized PlaneCache getInstance() throws CubeExplorerException {
+		if (instance == null) {
+			long maxBytes = Long.parseLong(CubeExplorer.getProperty("plane_cache_bytes", "268435456"));
+			LOGGER.info("NEW PlaneCache({})", maxBytes);
+			instance = new PlaneCache(maxBytes);
+		}
+		return instance;
+	}
+
+	/**
+	 * Remove the values of a closed cube from the shared cache.
+	 *
+	 * @param cube the closed cube
+	 */
+	public static void closed(AbstractDataCube cube) {
+		PlaneCache cache;
+		synchronized (PlaneCache.class) {
+			cache = instance;
+		}
+		if (cache != null) {
+			cache.remove(cube);
+		}
+	}
+
+	/**
+	 * @param key values of a cube
+	 * @return a copy of the values, float[] or double[], null if not kept
+	 */
+	public Object get(Key key) {
+		Entry entry = pin(key);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			ByteBuffer buffer = entry.buffer.duplicate().order(ByteOrder.nativeOrder());
+			if (entry.isFloat) {
+				float[] values = new float[entry.length];
+				buffer.asFloatBuffer().get(values);
+				return values;
+			}
+			double[] values = new double[entry.length];
+			buffer.asDoubleBuffer().get(values);
+			return values;
+		} finally {
+			unpin(entry);
+		}
+	}
+
+	/**
+	 * Return a window of the values of a slide, read from its buffer.
+	 *
+	 * @param key slide at the full resolution
+	 * @param dimX number of columns of the slide
+	 * @param posX first column
+	 * @param posY first row
+	 * @param width number of columns
+	 * @param height number of rows
+	 * @return float[] or double[] of width * height values, row by row, null
+	 *         if the slide is not kept
+	 */
+	public Object getRegion(Key key, int dimX, int posX, int posY, int width, int height) {
+		Entry entry = pin(key);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			ByteBuffer buffer = entry.buffer.duplicate().order(ByteOrder.nativeOrder());
+			if (entry.isFloat) {
+				float[] values = new float[width * height];
+				for (int row = 0; row < height; row++) {
+					buffer.position(4 * ((posY + row) * dimX + posX));
+					buffer.asFloatBuffer().get(values, row * width, width);
+				}
+				return values;
+			}
+			double[] values = new double[width * height];
+			for (int row = 0; row < height; row++) {
+				buffer.position(8 * ((posY + row) * dimX + posX));
+				buffer.asDoubleBuffer().get(values, row * width, width);
+			}
+			return values;
+		} finally {
+			unpin(entry);
+		}
+	}
+
+	/**
+	 * @param bytes size of values
+	 * @return true if values of this size may be kept
+	 */
+	public boolean accepts(long bytes) {
+		return bytes <= maxBytes - windowMaxBytes && bytes <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @param key values of a cube
+	 * @return true if the values are kept, without counting an access
+	 */
+	public synchronized boolean contains(Key key) {
+		return window.containsKey(key) || probation.containsKey(key) || protectedEntries.containsKey(key);
+	}
+
+	/**
+	 * Keep the values of a cube in the window of the recent entries, the
+	 * entries leaving the window, or larger than it, being admitted in the
+	 * main space by their frequency. Nothing is done if the values are
+	 * already kept.
+	 *
+	 * @param key values of a cube
+	 * @param values float[] or double[]
+	 */
+	public void put(Key key, Object values) {
+		boolean isFloat = values instanceof float[];
+		int length = isFloat ? ((float[]) values).length : ((double[]) values).length;
+		long bytes = (isFloat ? 4L : 8L) * length;
+		if (!accepts(bytes)) {
+			return;
+		}
+
+		ByteBuffer buffer;
+		synchronized (this) {
+			if (contains(key)) {
+				return;
+			}
+			sketch.increment(key);
+			buffer = allocate((int) bytes);
+			if (buffer == null) {
+				return;
+			}
+		}
+		// The buffer is not shared yet
+		if (isFloat) {
+			buffer.asFloatBuffer().put((float[]) values);
+		} else {
+			buffer.asDoubleBuffer().put((double[]) values);
+		}
+
+		synchronized (this) {
+			if (contains(key)) {
+				// Put meanwhile by another request
+				release(buffer);
+				return;
+			}
+			Entry entry = new Entry(buffer, isFloat, length);
+			if (bytes > windowMaxBytes) {
+				admit(key, entry);
+			} else {
+				window.put(key, entry);
+				windowBytes += bytes;
+
+				// Admission of the entries leaving the window
+				Iterator<Map.Entry<Key, Entry>> eldest = window.entrySet().iterator();
+				while (windowBytes > windowMaxBytes) {
+					Map.Entry<Key, Entry> candidate = eldest.next();
+					eldest.remove();
+					windowBytes -= candidate.getValue().getBytes();
+					admit(candidate.getKey(), candidate.getValue());
+				}
+			}
+			trimFreeBuffers(maxBytes);
+		}
+	}
+
+	/**
+	 * Remove the values of a cube.
+	 *
+	 * @param cube datacube
+	 */
+	public synchronized void remove(AbstractDataCube cube) {
+		windowBytes -= remove(window, cube);
+		probationBytes -= remove(probation, cube);
+		protectedBytes -= remove(protectedEntries, cube);
+	}
+
+	/**
+	 * @return the size and the counters of the cache
+	 */
+	public synchronized JSONObject getStatistics() {
+		JSONObject statistics = new JSONObject();
+		statistics.put("maxBytes", maxBytes);
+		statistics.put("allocatedBytes", allocatedBytes);
+		statistics.put("usedBytes", windowBytes + probationBytes + protectedBytes);
+		statistics.put("entries", window.size() + probation.size() + protectedEntries.size());
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("hitRate", (hits + misses == 0) ? 0 : (double) hits / (hits + misses));
+		statistics.put("evictions", evictions);
+		statistics.put("rejections", rejections);
+		return statistics;
+	}
+
+	/**
+	 * Access an entry, pinned until its values are copied.
+	 *
+	 * @return the entry, null if not kept
+	 */
+	private synchronized Entry pin(Key key) {
+		Entry entry = access(key);
+		if (entry != null) {
+			entry.pins++;
+		}
+		return entry;
+	}
+
+	private synchronized void unpin(Entry entry) {
+		if (--entry.pins == 0 && entry.evicted) {
+			release(entry.buffer);
+		}
+	}
+
+	/**
+	 * Count an access to an entry found, and move it to the end of its LRU
+	 * order, an entry of the probation being protected.
+	 */
+	private Entry access(Key key) {
+		Entry entry = window.remove(key);
+		if (entry != null) {
+			window.put(key, entry);
+		} else if ((entry = protectedEntries.remove(key)) != null) {
+			protectedEntries.put(key, entry);
+		} else if ((entry = probation.remove(key)) != null) {
+			probationBytes -= entry.getBytes();
+			protectedEntries.put(key, entry);
+			protectedBytes += entry.getBytes();
+			// The least recently used entries protected go back in probation
+			Iterator<Map.Entry<Key, Entry>> eldest = protectedEntries.entrySet().iterator();
+			while (protectedBytes > protectedMaxBytes) {
+				Map.Entry<Key, Entry> demoted = eldest.next();
+				eldest.remove();
+				protectedBytes -= demoted.getValue().getBytes();
+				probation.put(demoted.getKey(), demoted.getValue());
+				probationBytes += demoted.getValue().getBytes();
+			}
+		}
+		if (entry == null) {
+			misses++;
+		} else {
+			hits++;
+			sketch.increment(key);
+		}
+		return entry;
+	}
+
+	/**
+	 * Admit an entry in the main space if it is more frequent than each of the
+	 * entries it would evict, else drop it. The victims are only evicted once
+	 * the entry is admitted.
+	 */
+	private void admit(Key key, Entry entry) {
+		long needed = probationBytes + protectedBytes + entry.getBytes() - (maxBytes - windowMaxBytes);
+		if (needed > 0) {
+			int frequency = sketch.frequency(key);
+			List<Key> victims = new ArrayList<>();
+			long freed = 0;
+			for (LinkedHashMap<Key, Entry> segment : Arrays.asList(probation, protectedEntries)) {
+				Iterator<Map.Entry<Key, Entry>> eldest = segment.entrySet().iterator();
+				while (freed < needed && eldest.hasNext()) {
+					Map.Entry<Key, Entry> victim = eldest.next();
+					if (frequency <= sketch.frequency(victim.getKey())) {
+						rejections++;
+						discard(entry);
+						return;
+					}
+					victims.add(victim.getKey());
+					freed += victim.getValue().getBytes();
+				}
+			}
+			for (Key victim : victims) {
+				Entry evicted = probation.remove(victim);
+				if (evicted != null) {
+					probationBytes -= evicted.getBytes();
+				} else {
+					evicted = protectedEntries.remove(victim);
+					protectedBytes -= evicted.getBytes();
+				}
+				evictions++;
+				discard(evicted);
+			}
+		}
+		probation.put(key, entry);
+		probationBytes += entry.getBytes();
+	}
+
+	/**
+	 * Reuse the buffer of an entry removed, once no copy of it is being made.
+	 */
+	private void discard(Entry entry) {
+		if (entry.pins > 0) {
+			entry.evicted = true;
+		} else {
+			release(entry.buffer);
+		}
+	}
+
+	private long remove(LinkedHashMap<Key, Entry> segment, AbstractDataCube cube) {
+		long bytes = 0;
+		Iterator<Map.Entry<Key, Entry>> entries = segment.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Key, Entry> entry = entries.next();
+			if (entry.getKey().cube == cube) {
+				bytes += entry.getValue().getBytes();
+				discard(entry.getValue());
+				entries.remove();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return a buffer of the capacity, reused if possible, null if the direct
+	 *         memory is exhausted
+	 */
+	private ByteBuffer allocate(int capacity) {
+		ArrayDeque<ByteBuffer> buffers = freeBuffers.get(capacity);
+		if (buffers != null && !buffers.isEmpty()) {
+			ByteBuffer buffer = buffers.pop();
+			buffer.clear();
+			return buffer.order(ByteOrder.nativeOrder());
+		}
+		trimFreeBuffers(maxBytes - capacity);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+			allocatedBytes += capacity;
+			return buffer;
+		} catch (OutOfMemoryError oome) {
+			LOGGER.error("direct memory exhausted, {} bytes not kept : {}", capacity, oome.getMessage());
+			trimFreeBuffers(0);
+			return null;
+		}
+	}
+
+	private void release(ByteBuffer buffer) {
+		freeBuffers.computeIfAbsent(buffer.capacity(), capacity -> new ArrayDeque<>()).push(buffer);
+	}
+
+	/**
+	 * Drop free buffers, to the garbage collector, until the allocated size is
+	 * within the limit.
+	 */
+	private void trimFreeBuffers(long limit) {
+		Iterator<ArrayDeque<ByteBuffer>> pools = freeBuffers.values().iterator();
+		while (allocatedBytes > limit && pools.hasNext()) {
+			ArrayDeque<ByteBuffer> buffers = pools.next();
+			while (allocatedBytes > limit && !buffers.isEmpty()) {
+				allocatedBytes -= buffers.pop().capacity();
+			}
+			if (buffers.isEmpty()) {
+				pools.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+
+import org.json.JSONObject;
+
+import common.enums.Encoding;
+
+/**
+ * Values of a slide or a spectrum in a reduced encoding.
+ * <p>
+ * The integers are quantized linearly between the limits of the values, the
+ * largest integer standing for the missing values. The half precision floats
+ * are scaled by a power of two, so that the largest value is below 2^15 and
+ * the relative precision is the same for all the values. A stored value v
+ * stands for offset + scale * v, the bytes are little endian.
+ *
+ * @author vincent.cephirins
+ */
+public class QuantizedValues {
+
+	// Half precision quiet NaN
+	private static final int F16_NAN = 0x7e00;
+
+	private final Encoding encoding;
+	private final double offset;
+	private final double scale;
+	private final byte[] bytes;
+
+	/**
+	 * @param values float[] or double[]
+	 * @param encoding encoding of the values
+	 * @param range min and max of the quantization, those of the values if null
+	 */
+	public QuantizedValues(Object values, Encoding encoding, double[] range) {
+		float[] floatValues = (values instanceof float[]) ? (float[]) values : null;
+		double[] doubleValues = (values instanceof double[]) ? (double[]) values : null;
+		int count = (floatValues != null) ? floatValues.length : doubleValues.length;
+		double[] limits = (range != null) ? range : getRange(values);
+		boolean empty = Double.isNaN(limits[0]) || Double.isNaN(limits[1]);
+		this.encoding = encoding;
+
+		ByteBuffer buffer = ByteBuffer.allocate(count * encoding.getBytesPerValue()).order(ByteOrder.LITTLE_ENDIAN);
+		if (encoding == Encoding.F16) {
+			double maxAbs = empty ? 0 : Math.max(Math.abs(limits[0]), Math.abs(limits[1]));
+			this.offset = 0;
+			this.scale = (maxAbs > 0 && !Double.isInfinite(maxAbs)) ? Math.scalb(1.0, Math.getExponent(maxAbs) - 14)
+					: 1;
+			for (int idx = 0; idx < count; idx++) {
+				double value = (floatValues != null) ? floatValues[idx] : doubleValues[idx];
+				buffer.putShort(toHalf(value / scale));
+			}
+		} else {
+			// Largest integer kept for NaN
+			int maxValue = (encoding == Encoding.U8) ? 254 : 65534;
+			this.offset = empty ? 0 : limits[0];
+			this.scale = (!empty && limits[1] > limits[0]) ? (limits[1] - limits[0]) / maxValue : 1;
+			for (int idx = 0; idx < count; idx++) {
+				double value = (floatValues != null) ? floatValues[idx] : doubleValues[idx];
+				int stored = Double.isNaN(value) ? maxValue + 1
+						: (int) Math.round(Math.max(0, Math.min(maxValue, (value - offset) / scale)));
+				if (encoding == Encoding.U8) {
+					buffer.put((byte) stored);
+				} else {
+					buffer.putShort((short) stored);
+				}
+			}
+		}
+		this.bytes = buffer.array();
+	}
+
+	/**
+	 * @param values float[] or double[]
+	 * @return min and max of the values other than NaN, NaN if there is none
+	 */
+	public static double[] getRange(Object values) {
+		float[] floatValues = (values instanceof float[]) ? (float[]) values : null;
+		double[] doubleValues = (values instanceof double[]) ? (double[]) values : null;
+		int count = (floatValues != null) ? floatValues.length : doubleValues.length;
+		double min = Double.NaN;
+		double max = Double.NaN;
+		for (int idx = 0; idx < count; idx++) {
+			double value = (floatValues != null) ? floatValues[idx] : doubleValues[idx];
+			if (!(value >= min)) {
+				min = Double.isNaN(value) ? min : value;
+			}
+			if (!(value <= max)) {
+				max = Double.isNaN(value) ? max : value;
+			}
+		}
+		return new double[] { min, max };
+	}
+
+	/**
+	 * @return encoding of the values
+	 */
+	public Encoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @return the stored values, little endian
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the stored values, little endian, in base64
+	 */
+	public String getBase64() {
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+
+	/**
+	 * Put the members decoding the values: encoding, dtype, byteOrder,
+	 * offset, scale and nan, the stored value of the missing values.
+	 *
+	 * @param properties header of a binary response or properties of a GeoJson
+	 *            response
+	 */
+	public void putProperties(JSONObject properties) {
+		properties.put("encoding", encoding.toString());
+		properties.put("dtype", encoding.getDtype());
+		properties.put("byteOrder", "little");
+		properties.put("offset", offset);
+		properties.put("scale", scale);
+		if (encoding == Encoding.F16) {
+			properties.put("nan", "NaN");
+		} else {
+			properties.put("nan", (encoding == Encoding.U8) ? 255 : 65535);
+		}
+	}
+
+	/**
+	 * Round a value to the nearest half precision float.
+	 */
+	private static short toHalf(double value) {
+		if (Double.isNaN(value)) {
+			return (short) F16_NAN;
+		}
+		int bits = Float.floatToIntBits((float) value);
+		int sign = (bits >>> 16) & 0x8000;
+		int abs = bits & 0x7fffffff;
+		if (abs >= 0x477ff000) {
+			// 65520 and more round to infinity
+			return (short) (sign | 0x7c00);
+		}
+		if (abs >= 0x38800000) {
+			// Normal, the exponent rebiased from 127 to 15
+			return (short) (sign | ((abs - 0x38000000 + 0x1000) >>> 13));
+		}
+		if (abs < 0x33000000) {
+			return (short) sign;
+		}
+		// Subnormal
+		int exponent = abs >>> 23;
+		int mantissa = (abs & 0x7fffff) | 0x800000;
+		return (short) (sign | ((mantissa + (0x800000 >>> (exponent - 102))) >>> (126 - exponent)));
+	}
+}
@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+/**
+ * Reader of a window of a plane of a datacube.
+ *
+ * @author vincent.cephirins
+ */
+public interface RegionReader {
+
+	/**
+	 * @param posZ index of the plane
+	 * @param posX first column
+	 * @param posY first row
+	 * @param width number of columns
+	 * @param height number of rows
+	 * @return float[] or double[] of width * height values, row by row
+	 * @throws Exception
+	 */
+	Object readRegion(int posZ, int posX, int posY, int width, int height) throws Exception;
+}
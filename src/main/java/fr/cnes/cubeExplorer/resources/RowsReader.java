@@ -0,0 +1,22 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+/**
+ * Reader of a band of rows of a plane of a datacube.
+ *
+ * @author vincent.cephirins
+ */
+public interface RowsReader {
+
+	/**
+	 * @param posZ index of the plane
+	 * @param posY first row
+	 * @param nbRows number of rows
+	 * @return float[] or double[] of dimX * nbRows values, row by row
+	 * @throws Exception
+	 */
+	Object readRows(int posZ, int posY, int nbRows) throws Exception;
+}
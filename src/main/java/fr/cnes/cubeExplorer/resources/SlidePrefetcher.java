@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import app.CubeExplorer;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * Read ahead of the slides requested by a client scrubbing a datacube.
+ * <p>
+ * The slides requested by a client on a cube are followed to detect the
+ * direction and the stride of its moves: a stride is kept once seen twice in a
+ * row, or at once for the next or previous slide. The next slides along the
+ * stride are then read into the {@link PlaneCache} by a thread of low
+ * priority, up to <code>prefetch_depth</code> slides ahead (0 to disable).
+ * <p>
+ * The depth is doubled on each slide found among those predicted, and falls
+ * back to one slide while the rate of the slides predicted, averaged over the
+ * last requests, is below <code>prefetch_min_hit_rate</code>. Nothing is read
+ * ahead while the load of the system exceeds its number of processors, or
+ * while <code>prefetch_queue</code> slides are waiting to be read.
+ *
+ * @author vincent.cephirins
+ */
+public class SlidePrefetcher {
+
+	// Initialise un logger (voir conf/log4j2.xml).
+	private static final Logger LOGGER = LogManager.getLogger("slidePrefetcher");
+
+	// Number of clients followed
+	private static final int MAX_SESSIONS = 1024;
+
+	// Larger moves are seeks, not a stride
+	private static final int MAX_STRIDE = 16;
+
+	// Weight of the last request in the hit rate
+	private static final double HIT_WEIGHT = 0.2;
+
+	private static SlidePrefetcher instance = null;
+
+	private final int maxDepth;
+	private final double minHitRate;
+	private final ThreadPoolExecutor executor;
+
+	// Sessions by client and cube, in access order
+	private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+			return size() > MAX_SESSIONS;
+		}
+	};
+
+	// Slides waiting to be read, by cube and posZ
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Moves of a client on a cube.
+	 */
+	private static class Session {
+		private int lastZ = -1;
+		private int lastMove = 0;
+		private int stride = 0;
+		private int depth = 1;
+		private double hitRate = 1;
+		// Slides predicted after the last request
+		private Set<Integer> predicted = new HashSet<Integer>();
+	}
+
+	/**
+	 * @param maxDepth maximum number of slides read ahead
+	 * @param minHitRate rate of the slides predicted under which one slide is read ahead
+	 * @param threads number of threads reading the slides
+	 * @param queueSize maximum number of slides waiting to be read
+	 */
+	public SlidePrefetcher(int maxDepth, double minHitRate, int threads, int queueSize) {
+		this.maxDepth = Math.max(0, maxDepth);
+		this.minHitRate = minHitRate;
+		this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), runnable -> {
+					Thread thread = new Thread(runnable, "slide-prefetch");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Return the prefetcher shared by the application, configured with the
+	 * properties <code>prefetch_depth</code>, <code>prefetch_min_hit_rate</code>,
+	 * <code>prefetch_threads</code> and <code>prefetch_queue</code>.
+	 *
+	 * @return the shared prefetcher
+	 * @throws CubeExplorerException
+	 */
+	public static synchronized SlidePrefetcher getInstance() throws CubeExplorerException {
+		if (instance == null) {
+			int maxDepth = Integer.parseInt(CubeExplorer.getProperty("prefetch_depth", "4"));
+			double minHitRate = Double.parseDouble(CubeExplorer.getProperty("prefetch_min_hit_rate", "0.5"));
+			int threads = Integer.parseInt(CubeExplorer.getProperty("prefetch_threads", "1"));
+			int queueSize = Integer.parseInt(CubeExplorer.getProperty("prefetch_queue", "16"));
+			LOGGER.info("NEW SlidePrefetcher({}, {}, {}, {})", maxDepth, minHitRate, threads, queueSize);
+			instance = new SlidePrefetcher(maxDepth, minHitRate, threads, queueSize);
+		}
+		return instance;
+	}
+
+	/**
+	 * Follow a slide read at the full resolution by a client, and read ahead
+	 * the next slides of its moves.
+	 *
+	 * @param client identifier of the client
+	 * @param filename path of the datacube file
+	 * @param posZ index of the slide read
+	 * @param dimZ number of slides of the cube
+	 */
+	public void onSlide(String client, String filename, int posZ, int dimZ) {
+		if (maxDepth == 0) {
+			return;
+		}
+		Session session;
+		List<Integer> targets = new ArrayList<Integer>();
+		synchronized (sessions) {
+			String key = client + "\n" + filename;
+			session = sessions.get(key);
+			if (session == null) {
+				session = new Session();
+				sessions.put(key, session);
+			}
+			int move = posZ - session.lastZ;
+			if (session.lastZ < 0 || move == 0) {
+				// First request, or the same slide again
+				session.lastZ = posZ;
+				return;
+			}
+
+			boolean hit = session.predicted.contains(posZ);
+			session.hitRate = (1 - HIT_WEIGHT) * session.hitRate + HIT_WEIGHT * (hit ? 1 : 0);
+			if (Math.abs(move) > MAX_STRIDE) {
+				// Seek
+				session.stride = 0;
+			}
+			else if (move == session.lastMove || Math.abs(move) == 1) {
+				session.stride = move;
+			}
+			else if (move != session.stride) {
+				session.stride = 0;
+			}
+			session.lastMove = move;
+			session.lastZ = posZ;
+
+			if (session.hitRate < minHitRate) {
+				session.depth = 1;
+			}
+			else if (hit) {
+				session.depth = Math.min(maxDepth, session.depth * 2);
+			}
+
+			session.predicted = new HashSet<Integer>();
+			for (int ahead = 1; session.stride != 0 && ahead <= session.depth; ahead++) {
+				int targetZ = posZ + ahead * session.stride;
+				if (targetZ < 0 || targetZ >= dimZ) {
+					break;
+				}
+				session.predicted.add(targetZ);
+				targets.add(targetZ);
+			}
+		}
+		if (targets.isEmpty() || isLoaded()) {
+			return;
+		}
+
+		for (int targetZ : targets) {
+			String slide = filename + "\n" + targetZ;
+			if (!pending.add(slide)) {
+				continue;
+			}
+			Session owner = session;
+			try {
+				executor.execute(() -> {
+					try {
+						prefetch(owner, filename, targetZ);
+					}
+					finally {
+						pending.remove(slide);
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				// Queue full
+				pending.remove(slide);
+				LOGGER.debug("queue full, {} not read ahead", slide);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Read a slide into the plane cache, unless the client moved elsewhere
+	 * since it was predicted.
+	 */
+	private void prefetch(Session session, String filename, int posZ) {
+		synchronized (sessions) {
+			if (!session.predicted.contains(posZ)) {
+				return;
+			}
+		}
+		CubeCache.Handle handle = null;
+		try {
+			handle = CubeCache.getInstance().acquire(filename);
+			if (handle.getCube().prefetchSlide(posZ)) {
+				LOGGER.debug("{} : slide {} read ahead", filename, posZ);
+			}
+		} catch (CubeExplorerException ce) {
+			LOGGER.error("{} : slide {} not read ahead : {}", filename, posZ, ce.getMessage());
+		} finally {
+			if (handle != null) {
+				handle.release();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the load of the system exceeds its number of processors
+	 */
+	private static boolean isLoaded() {
+		double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+		return load >= Runtime.getRuntime().availableProcessors();
+	}
+}
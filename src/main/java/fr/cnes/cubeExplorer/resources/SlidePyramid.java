@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import app.CubeExplorer;
+import common.enums.Binning;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * Downsampled slides of a datacube.
+ * <p>
+ * The slide of level k is the slide binned by 2^k x 2^k pixels, the last bins
+ * of a row or a column being partial. Slides are binned band of rows by band
+ * of rows. Once a level of a slide has been requested
+ * <code>pyramid_threshold</code> times (0 for the first time, negative to
+ * disable), it is stored in <code>sidecar_dir</code> (see
+ * {@link SpectrumSidecar}) and read from there. A window of a level is binned
+ * from the matching window of the full resolution slide, unless the level is
+ * stored.
+ *
+ * @author vincent.cephirins
+ */
+public class SlidePyramid {
+
+	// Initialise un logger (voir conf/log4j2.xml).
+	private static final Logger LOGGER = LogManager.getLogger("slidePyramid");
+
+	// Maximum number of values of a band of rows
+	private static final int BAND_VALUES = 256 * 1024;
+
+	// Number of levels of slides whose requests are counted
+	private static final int MAX_COUNTERS = 1024;
+
+	private final String filename;
+	private final int dimX;
+	private final int dimY;
+	private final int bytesPerValue;
+	private final int threshold;
+	private final RegionReader reader;
+
+	// Requests of the levels not stored yet, by file name, in access order
+	private final LinkedHashMap<String, Integer> requests = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_COUNTERS;
+		}
+	};
+
+	/**
+	 * @param filename datacube file
+	 * @param dimX number of columns
+	 * @param dimY number of rows
+	 * @param bytesPerValue 4 for float values, 8 for double values
+	 * @param reader reader of the windows of the slides
+	 * @throws CubeExplorerException
+	 */
+	public SlidePyramid(String filename, int dimX, int dimY, int bytesPerValue, RegionReader reader)
+			throws CubeExplorerException {
+		this.filename = filename;
+		this.dimX = dimX;
+		this.dimY = dimY;
+		this.bytesPerValue = bytesPerValue;
+		this.reader = reader;
+		this.threshold = Integer.parseInt(CubeExplorer.getProperty("pyramid_threshold", "3"));
+	}
+
+	/**
+	 * @return the highest level, a single pixel
+	 */
+	public int getMaxLevel() {
+		int level = 0;
+		while ((Math.max(dimX, dimY) - 1) >> level > 0) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Return the lowest level of which slides fit in maxSize x maxSize pixels.
+	 *
+	 * @param maxSize maximum number of columns and rows
+	 * @return the level
+	 */
+	public int getLevel(int maxSize) {
+		int level = 0;
+		while (level < getMaxLevel() && (getDimX(level) > maxSize || getDimY(level) > maxSize)) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * @param level level of the pyramid
+	 * @return number of columns of the level
+	 */
+	public int getDimX(int level) {
+		return (dimX + (1 << level) - 1) >> level;
+	}
+
+	/**
+	 * @param level level of the pyramid
+	 * @return number of rows of the level
+	 */
+	public int getDimY(int level) {
+		return (dimY + (1 << level) - 1) >> level;
+	}
+
+	/**
+	 * Return the slide posZ at a level.
+	 *
+	 * @param posZ index of the slide
+	 * @param level level of the pyramid, 0 for the full resolution
+	 * @param binning operator merging the pixels of a bin
+	 * @return float[] or double[] of getDimX(level) * getDimY(level) values,
+	 *         row by row
+	 * @throws CubeExplorerException
+	 */
+	public Object readSlide(int posZ, int level, Binning binning) throws CubeExplorerException {
+		if (level < 0 || level > getMaxLevel()) {
+			LOGGER.error("exception.outOfBound : level {} , maxLevel {}", level, getMaxLevel());
+			// OutOfBound
+			throw new CubeExplorerException("exception.outOfBound", "level", level, 0, getMaxLevel());
+		}
+
+		try {
+			if (level == 0) {
+				return reader.readRegion(posZ, 0, 0, dimX, dimY);
+			}
+
+			boolean stored = (bytesPerValue == 4 || bytesPerValue == 8) && threshold >= 0;
+			File file = stored ? SpectrumSidecar.getSidecarFile(filename,
+					"z" + posZ + "-l" + level + "-" + binning + "-" + (bytesPerValue * 8) + ".level") : null;
+			if (stored && file.exists()) {
+				return read(file, getDimX(level) * getDimY(level));
+			}
+
+			Object slide = bin(posZ, level, binning, 0, 0, getDimX(level), getDimY(level));
+
+			if (stored && count(file.getName()) && SpectrumSidecar.BUILDING.add(file.getPath())) {
+				// Stored once, whatever the requests while it is queued
+				SpectrumSidecar.BUILDER.submit(() -> {
+					try {
+						if (!file.exists()) {
+							write(file, slide);
+						}
+					} finally {
+						SpectrumSidecar.BUILDING.remove(file.getPath());
+					}
+				});
+			}
+			return slide;
+		} catch (CubeExplorerException ce) {
+			throw ce;
+		} catch (Exception e) {
+			LOGGER.error("Slide {} level {} : {}", posZ, level, e.getMessage());
+			throw new CubeExplorerException(e);
+		}
+	}
+
+	/**
+	 * Return a window of the slide posZ at a level.
+	 *
+	 * @param posZ index of the slide
+	 * @param level level of the pyramid, 0 for the full resolution
+	 * @param binning operator merging the pixels of a bin
+	 * @param posX first column of the level
+	 * @param posY first row of the level
+	 * @param width number of columns
+	 * @param height number of rows
+	 * @return float[] or double[] of width * height values, row by row
+	 * @throws CubeExplorerException
+	 */
+	public Object readRegion(int posZ, int level, Binning binning, int posX, int posY, int width, int height)
+			throws CubeExplorerException {
+		if (level < 0 || level > getMaxLevel()) {
+			LOGGER.error("exception.outOfBound : level {} , maxLevel {}", level, getMaxLevel());
+			// OutOfBound
+			throw new CubeExplorerException("exception.outOfBound", "level", level, 0, getMaxLevel());
+		}
+		int levelX = getDimX(level);
+		int levelY = getDimY(level);
+		if (posX < 0 || width < 1 || posX + width > levelX) {
+			LOGGER.error("exception.outOfBound : posX {} , width {} , dimX {}", posX, width, levelX);
+			// OutOfBound
+			throw new CubeExplorerException("exception.outOfBound", "posX", posX, 0, levelX - width);
+		}
+		if (posY < 0 || height < 1 || posY + height > levelY) {
+			LOGGER.error("exception.outOfBound : posY {} , height {} , dimY {}", posY, height, levelY);
+			// OutOfBound
+			throw new CubeExplorerException("exception.outOfBound", "posY", posY, 0, levelY - height);
+		}
+		if (width == levelX && height == levelY) {
+			return readSlide(posZ, level, binning);
+		}
+
+		try {
+			if (level == 0) {
+				return reader.readRegion(posZ, posX, posY, width, height);
+			}
+
+			File file = SpectrumSidecar.getSidecarFile(filename,
+					"z" + posZ + "-l" + level + "-" + binning + "-" + (bytesPerValue * 8) + ".level");
+			if ((bytesPerValue == 4 || bytesPerValue == 8) && threshold >= 0 && file.exists()) {
+				return crop(read(file, levelX * levelY), levelX, posX, posY, width, height);
+			}
+			return bin(posZ, level, binning, posX, posY, width, height);
+		} catch (Exception e) {
+			LOGGER.error("Slide {} level {} : {}", posZ, level, e.getMessage());
+			throw new CubeExplorerException(e);
+		}
+	}
+
+	/**
+	 * Count a request of a level not stored. The counters of the least
+	 * recently requested levels are dropped beyond MAX_COUNTERS.
+	 *
+	 * @return true once the level is requested threshold times
+	 */
+	private boolean count(String name) {
+		synchronized (requests) {
+			Integer count = requests.get(name);
+			count = (count == null) ? 1 : count + 1;
+			if (count >= Math.max(1, threshold)) {
+				requests.remove(name);
+				return true;
+			}
+			requests.put(name, count);
+			return false;
+		}
+	}
+
+	/**
+	 * Bin a window of the level band of rows by band of rows.
+	 */
+	private Object bin(int posZ, int level, Binning binning, int posX, int posY, int width, int height)
+			throws Exception {
+		int factor = 1 << level;
+		// Window of the full resolution slide
+		int x0 = posX * factor;
+		int y0 = posY * factor;
+		int nbColumns = Math.min(dimX, (posX + width) * factor) - x0;
+		int y1 = Math.min(dimY, (posY + height) * factor);
+
+		double[] out = new double[width * height];
+		int[] counts = new int[width];
+		int bandRows = factor * Math.max(1, BAND_VALUES / Math.max(1, nbColumns * factor));
+		boolean isFloat = true;
+
+		for (int bandY = y0; bandY < y1; bandY += bandRows) {
+			int nbRows = Math.min(bandRows, y1 - bandY);
+			Object rows = reader.readRegion(posZ, x0, bandY, nbColumns, nbRows);
+			float[] floatValues = (rows instanceof float[]) ? (float[]) rows : null;
+			double[] doubleValues = (rows instanceof double[]) ? (double[]) rows : null;
+			isFloat = floatValues != null;
+
+			for (int row = 0; row < nbRows; row += factor) {
+				int offset = ((bandY - y0 + row) / factor) * width;
+				Arrays.fill(counts, 0);
+
+				for (int idxRow = row; idxRow < Math.min(row + factor, nbRows); idxRow++) {
+					for (int idx = idxRow * nbColumns, column = 0; column < nbColumns; idx++, column++) {
+						double value = isFloat ? floatValues[idx] : doubleValues[idx];
+						if (Double.isNaN(value)) {
+							continue;
+						}
+						int bin = column / factor;
+						if (counts[bin]++ == 0) {
+							out[offset + bin] = value;
+						} else if (binning == Binning.MIN) {
+							out[offset + bin] = Math.min(out[offset + bin], value);
+						} else if (binning == Binning.MAX) {
+							out[offset + bin] = Math.max(out[offset + bin], value);
+						} else {
+							out[offset + bin] += value;
+						}
+					}
+				}
+
+				for (int bin = 0; bin < width; bin++) {
+					if (counts[bin] == 0) {
+						out[offset + bin] = Double.NaN;
+					} else if (binning == Binning.MEAN) {
+						out[offset + bin] /= counts[bin];
+					}
+				}
+			}
+		}
+
+		if (!isFloat) {
+			return out;
+		}
+		float[] outFloat = new float[out.length];
+		for (int idx = 0; idx < out.length; idx++) {
+			outFloat[idx] = (float) out[idx];
+		}
+		return outFloat;
+	}
+
+	/**
+	 * Copy a window of a slide of dimX columns.
+	 */
+	private static Object crop(Object slide, int dimX, int posX, int posY, int width, int height) {
+		Object region = (slide instanceof float[]) ? new float[width * height] : new double[width * height];
+		for (int row = 0; row < height; row++) {
+			System.arraycopy(slide, (posY + row) * dimX + posX, region, row * width, width);
+		}
+		return region;
+	}
+
+	private Object read(File file, int count) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(count * bytesPerValue);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException("truncated " + file);
+				}
+			}
+		}
+		buffer.flip();
+
+		if (bytesPerValue == 4) {
+			float[] values = new float[count];
+			buffer.asFloatBuffer().get(values);
+			return values;
+		}
+		double[] values = new double[count];
+		buffer.asDoubleBuffer().get(values);
+		return values;
+	}
+
+	/**
+	 * Store a level into a temporary file, renamed once complete.
+	 */
+	private void write(File file, Object slide) {
+		File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			file.getParentFile().mkdirs();
+			SpectrumSidecar.deleteOutdated(filename, file);
+			int count = (slide instanceof float[]) ? ((float[]) slide).length : ((double[]) slide).length;
+			ByteBuffer buffer = ByteBuffer.allocate(count * bytesPerValue);
+			if (slide instanceof float[]) {
+				buffer.asFloatBuffer().put((float[]) slide);
+			} else {
+				buffer.asDoubleBuffer().put((double[]) slide);
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+				FileChannel channel = raf.getChannel();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			LOGGER.info("Slide level {} stored", file);
+		} catch (IOException ioe) {
+			tmp.delete();
+			LOGGER.error("Slide level {} not stored : {}", file, ioe.getMessage());
+		}
+	}
+}
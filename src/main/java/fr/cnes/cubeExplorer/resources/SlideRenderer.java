@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import common.enums.Colormap;
+import common.enums.Stretch;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * Quick-look rendering of a slide into an indexed color image.
+ * <p>
+ * Values are stretched between display limits into the 255 colors of a
+ * colormap, NaN values being transparent. The first row of the slide is the
+ * top row of the image, as in the GeoJson slide.
+ *
+ * @author vincent.cephirins
+ */
+public class SlideRenderer {
+
+	// Index of the transparent color of NaN values
+	private static final int NAN_INDEX = 0;
+
+	// Number of values sampled by zscale
+	private static final int ZSCALE_SAMPLES = 1000;
+	private static final double ZSCALE_CONTRAST = 0.25;
+
+	private final Stretch stretch;
+	private final IndexColorModel colorModel;
+
+	/**
+	 * @param stretch stretch of the values between the limits
+	 * @param colormap colors of the stretched values
+	 */
+	public SlideRenderer(Stretch stretch, Colormap colormap) {
+		this.stretch = stretch;
+
+		byte[] red = new byte[256];
+		byte[] green = new byte[256];
+		byte[] blue = new byte[256];
+		byte[] alpha = new byte[256];
+		for (int idx = 1; idx < 256; idx++) {
+			int[] color = colormap.getColor((idx - 1) / 254.0);
+			red[idx] = (byte) color[0];
+			green[idx] = (byte) color[1];
+			blue[idx] = (byte) color[2];
+			alpha[idx] = (byte) 255;
+		}
+		this.colorModel = new IndexColorModel(8, 256, red, green, blue, alpha);
+	}
+
+	/**
+	 * Return the limits between two percentiles of the values.
+	 *
+	 * @param values float[] or double[]
+	 * @param low lower percentile
+	 * @param high upper percentile
+	 * @return the lower and upper limits, NaN if there is no value
+	 */
+	public static double[] getPercentileLimits(Object values, double low, double high) {
+		double[] sorted = getValues(values, 1);
+		if (sorted.length == 0) {
+			return new double[] { Double.NaN, Double.NaN };
+		}
+		Arrays.sort(sorted);
+		return new double[] { getPercentile(sorted, low), getPercentile(sorted, high) };
+	}
+
+	/**
+	 * Return the zscale limits of IRAF: a line is fitted to a sample of the
+	 * sorted values, with rejection of the outliers, and its slope is reduced
+	 * by the contrast around the median.
+	 *
+	 * @param values float[] or double[]
+	 * @return the lower and upper limits, NaN if there is no value
+	 */
+	public static double[] getZScaleLimits(Object values) {
+		int length = (values instanceof float[]) ? ((float[]) values).length : ((double[]) values).length;
+		double[] sample = getValues(values, Math.max(1, length / ZSCALE_SAMPLES));
+		int count = sample.length;
+		if (count == 0) {
+			return new double[] { Double.NaN, Double.NaN };
+		}
+		Arrays.sort(sample);
+		double min = sample[0];
+		double max = sample[count - 1];
+		double median = getPercentile(sample, 50);
+		if (count < 5) {
+			return new double[] { min, max };
+		}
+
+		// Least squares fit of value = intercept + slope * index, clipped at 2.5 sigma
+		boolean[] rejected = new boolean[count];
+		double slope = 0;
+		double intercept = median;
+		int kept = count;
+		for (int iteration = 0; iteration < 5; iteration++) {
+			double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+			int n = 0;
+			for (int idx = 0; idx < count; idx++) {
+				if (!rejected[idx]) {
+					sumX += idx;
+					sumY += sample[idx];
+					sumXX += (double) idx * idx;
+					sumXY += idx * sample[idx];
+					n++;
+				}
+			}
+			double denominator = n * sumXX - sumX * sumX;
+			if (n < count / 2 || denominator == 0) {
+				break;
+			}
+			slope = (n * sumXY - sumX * sumY) / denominator;
+			intercept = (sumY - slope * sumX) / n;
+
+			double sumResidual = 0;
+			for (int idx = 0; idx < count; idx++) {
+				if (!rejected[idx]) {
+					double residual = sample[idx] - (intercept + slope * idx);
+					sumResidual += residual * residual;
+				}
+			}
+			double threshold = 2.5 * Math.sqrt(sumResidual / n);
+			kept = 0;
+			for (int idx = 0; idx < count; idx++) {
+				rejected[idx] = Math.abs(sample[idx] - (intercept + slope * idx)) > threshold;
+				kept += rejected[idx] ? 0 : 1;
+			}
+			if (kept == n) {
+				break;
+			}
+		}
+
+		if (kept < count / 2) {
+			return new double[] { min, max };
+		}
+		double center = (count - 1) / 2.0;
+		slope /= ZSCALE_CONTRAST;
+		return new double[] { Math.max(min, median - center * slope), Math.min(max, median + center * slope) };
+	}
+
+	/**
+	 * Render the values row by row into the bytes of an indexed image.
+	 *
+	 * @param values float[] or double[] of width * height values, row by row
+	 * @param width number of columns
+	 * @param height number of rows
+	 * @param low value of the first color
+	 * @param high value of the last color
+	 * @return the image
+	 */
+	public BufferedImage render(Object values, int width, int height, double low, double high) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		float[] floatValues = (values instanceof float[]) ? (float[]) values : null;
+		double[] doubleValues = (values instanceof double[]) ? (double[]) values : null;
+		double scale = (high > low) ? 1 / (high - low) : 0;
+
+		for (int idx = 0; idx < pixels.length; idx++) {
+			double value = (floatValues != null) ? floatValues[idx] : doubleValues[idx];
+			if (Double.isNaN(value)) {
+				pixels[idx] = (byte) NAN_INDEX;
+				continue;
+			}
+			double x = Math.max(0, Math.min(1, (value - low) * scale));
+			pixels[idx] = (byte) (1 + (int) Math.round(stretch.apply(x) * 254));
+		}
+		return image;
+	}
+
+	/**
+	 * @param format png, or a format of the ImageIO writers
+	 * @return true if images can be written in the format
+	 */
+	public static boolean isSupported(String format) {
+		return ImageIO.getImageWritersByFormatName(format).hasNext();
+	}
+
+	/**
+	 * @param image the rendered image
+	 * @param format png, or a format of the ImageIO writers
+	 * @return the encoded image
+	 * @throws CubeExplorerException
+	 */
+	public static byte[] write(BufferedImage image, String format) throws CubeExplorerException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			if (!ImageIO.write(image, format, out)) {
+				throw new CubeExplorerException("exception.invalidValue", format);
+			}
+		} catch (IOException ioe) {
+			throw new CubeExplorerException(ioe);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the values other than NaN, one every step values
+	 */
+	private static double[] getValues(Object values, int step) {
+		float[] floatValues = (values instanceof float[]) ? (float[]) values : null;
+		double[] doubleValues = (values instanceof double[]) ? (double[]) values : null;
+		int length = (floatValues != null) ? floatValues.length : doubleValues.length;
+		double[] result = new double[(length + step - 1) / step];
+		int count = 0;
+		for (int idx = 0; idx < length; idx += step) {
+			double value = (floatValues != null) ? floatValues[idx] : doubleValues[idx];
+			if (!Double.isNaN(value)) {
+				result[count++] = value;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private static double getPercentile(double[] sorted, double level) {
+		double rank = Math.max(0, Math.min(100, level)) / 100 * (sorted.length - 1);
+		int low = (int) Math.floor(rank);
+		int high = Math.min(sorted.length - 1, low + 1);
+		return sorted[low] + (rank - low) * (sorted[high] - sorted[low]);
+	}
+}
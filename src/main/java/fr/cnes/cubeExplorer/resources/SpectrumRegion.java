@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import common.exceptions.CubeExplorerException;
+import common.exceptions.SimpleException;
+
+/**
+ * Region of the pixels of a slide, a rectangle, a circle or a polygon.
+ * <p>
+ * Coordinates are pixel coordinates, the pixel (posX, posY) covering
+ * [posX, posX + 1[ x [posY, posY + 1[. A pixel is in the region when its
+ * center is, its weight is the fraction of its area in the region.
+ *
+ * @author vincent.cephirins
+ */
+public class SpectrumRegion {
+
+	// Sub-pixels by side sampling the area of a pixel
+	private static final int SAMPLES = 4;
+
+	private final JSONObject geometry;
+	// Rings of a polygon, null for a circle
+	private final double[][][] rings;
+	private final double centerX;
+	private final double centerY;
+	private final double radius;
+	private double minX = Double.POSITIVE_INFINITY;
+	private double minY = Double.POSITIVE_INFINITY;
+	private double maxX = Double.NEGATIVE_INFINITY;
+	private double maxY = Double.NEGATIVE_INFINITY;
+
+	private SpectrumRegion(JSONObject geometry, double[][][] rings) {
+		this.geometry = geometry;
+		this.rings = rings;
+		this.centerX = 0;
+		this.centerY = 0;
+		this.radius = 0;
+		for (double[][] ring : rings) {
+			for (double[] point : ring) {
+				minX = Math.min(minX, point[0]);
+				minY = Math.min(minY, point[1]);
+				maxX = Math.max(maxX, point[0]);
+				maxY = Math.max(maxY, point[1]);
+			}
+		}
+	}
+
+	private SpectrumRegion(JSONObject geometry, double centerX, double centerY, double radius) {
+		this.geometry = geometry;
+		this.rings = null;
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.radius = radius;
+		this.minX = centerX - radius;
+		this.minY = centerY - radius;
+		this.maxX = centerX + radius;
+		this.maxY = centerY + radius;
+	}
+
+	/**
+	 * @param x0 first column
+	 * @param y0 first row
+	 * @param width number of columns
+	 * @param height number of rows
+	 * @return the region
+	 * @throws SimpleException if the rectangle is empty
+	 */
+	public static SpectrumRegion rectangle(int x0, int y0, int width, int height) throws SimpleException {
+		if (width < 1) {
+			throw new SimpleException("exception.invalidValue", width);
+		}
+		if (height < 1) {
+			throw new SimpleException("exception.invalidValue", height);
+		}
+		JSONArray ring = new JSONArray();
+		ring.put(new JSONArray().put(x0).put(y0));
+		ring.put(new JSONArray().put(x0 + width).put(y0));
+		ring.put(new JSONArray().put(x0 + width).put(y0 + height));
+		ring.put(new JSONArray().put(x0).put(y0 + height));
+		ring.put(new JSONArray().put(x0).put(y0));
+		JSONObject geometry = new JSONObject();
+		geometry.put("type", "Polygon");
+		geometry.put("coordinates", new JSONArray().put(ring));
+		return new SpectrumRegion(geometry, new double[][][] { { { x0, y0 }, { x0 + width, y0 },
+				{ x0 + width, y0 + height }, { x0, y0 + height }, { x0, y0 } } });
+	}
+
+	/**
+	 * @param centerX column of the center
+	 * @param centerY row of the center
+	 * @param radius radius in pixels
+	 * @return the region
+	 * @throws SimpleException if the radius is not positive
+	 */
+	public static SpectrumRegion circle(double centerX, double centerY, double radius) throws SimpleException {
+		if (!(radius > 0)) {
+			throw new SimpleException("exception.invalidValue", radius);
+		}
+		// GeoJson has no circle, the radius is a member of the point
+		JSONObject geometry = new JSONObject();
+		geometry.put("type", "Point");
+		geometry.put("coordinates", new JSONArray().put(centerX).put(centerY));
+		geometry.put("radius", radius);
+		return new SpectrumRegion(geometry, centerX, centerY, radius);
+	}
+
+	/**
+	 * @param geoJson GeoJson Polygon, or Feature of a Polygon, the first ring
+	 *            being the exterior, the others the holes
+	 * @return the region
+	 * @throws SimpleException if geoJson is not a polygon
+	 */
+	public static SpectrumRegion polygon(String geoJson) throws SimpleException {
+		try {
+			JSONObject geometry = new JSONObject(geoJson);
+			if ("Feature".equals(geometry.optString("type"))) {
+				geometry = geometry.getJSONObject("geometry");
+			}
+			if (!"Polygon".equals(geometry.optString("type"))) {
+				throw new SimpleException("exception.invalidValue", geoJson);
+			}
+			JSONArray coordinates = geometry.getJSONArray("coordinates");
+			double[][][] rings = new double[coordinates.length()][][];
+			for (int idxRing = 0; idxRing < rings.length; idxRing++) {
+				JSONArray ring = coordinates.getJSONArray(idxRing);
+				if (ring.length() < 4) {
+					throw new SimpleException("exception.invalidValue", geoJson);
+				}
+				rings[idxRing] = new double[ring.length()][];
+				for (int idx = 0; idx < ring.length(); idx++) {
+					JSONArray point = ring.getJSONArray(idx);
+					rings[idxRing][idx] = new double[] { point.getDouble(0), point.getDouble(1) };
+				}
+			}
+			if (rings.length == 0) {
+				throw new SimpleException("exception.invalidValue", geoJson);
+			}
+			return new SpectrumRegion(geometry, rings);
+		} catch (JSONException je) {
+			throw new SimpleException(je, "exception.invalidValue", geoJson);
+		}
+	}
+
+	/**
+	 * @return GeoJson geometry of the region
+	 */
+	public JSONObject getGeometry() {
+		return geometry;
+	}
+
+	/**
+	 * Rasterize the region on a slide.
+	 *
+	 * @param dimX number of columns of the slide
+	 * @param dimY number of rows of the slide
+	 * @return the pixels of the slide in the region
+	 * @throws CubeExplorerException if no pixel of the slide is in the region
+	 */
+	public Mask getMask(int dimX, int dimY) throws CubeExplorerException {
+		int posX = Math.max(0, (int) Math.floor(minX));
+		int posY = Math.max(0, (int) Math.floor(minY));
+		int width = Math.min(dimX, (int) Math.ceil(maxX)) - posX;
+		int height = Math.min(dimY, (int) Math.ceil(maxY)) - posY;
+		if (width < 1 || height < 1) {
+			throw new CubeExplorerException("exception.cube.emptyRegion");
+		}
+
+		boolean[] inside = new boolean[width * height];
+		float[] weights = new float[width * height];
+		int count = 0;
+		double area = 0;
+		for (int row = 0, idx = 0; row < height; row++) {
+			for (int column = 0; column < width; column++, idx++) {
+				double x = posX + column;
+				double y = posY + row;
+				inside[idx] = contains(x + 0.5, y + 0.5);
+				int samples = 0;
+				for (int subY = 0; subY < SAMPLES; subY++) {
+					for (int subX = 0; subX < SAMPLES; subX++) {
+						if (contains(x + (subX + 0.5) / SAMPLES, y + (subY + 0.5) / SAMPLES)) {
+							samples++;
+						}
+					}
+				}
+				weights[idx] = (float) samples / (SAMPLES * SAMPLES);
+				count += inside[idx] ? 1 : 0;
+				area += weights[idx];
+			}
+		}
+		if (count == 0 && area == 0) {
+			throw new CubeExplorerException("exception.cube.emptyRegion");
+		}
+		return new Mask(posX, posY, width, height, inside, weights, count, area);
+	}
+
+	private boolean contains(double x, double y) {
+		if (rings == null) {
+			double dx = x - centerX;
+			double dy = y - centerY;
+			return dx * dx + dy * dy <= radius * radius;
+		}
+
+		// Even-odd rule over all the rings, holes included
+		boolean inside = false;
+		for (double[][] ring : rings) {
+			for (int idx = 0, prev = ring.length - 1; idx < ring.length; prev = idx++) {
+				double[] a = ring[idx];
+				double[] b = ring[prev];
+				if ((a[1] > y) != (b[1] > y) && x < (b[0] - a[0]) * (y - a[1]) / (b[1] - a[1]) + a[0]) {
+					inside = !inside;
+				}
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * Pixels of a slide in a region, within their bounding box.
+	 */
+	public static class Mask {
+
+		private final int posX;
+		private final int posY;
+		private final int width;
+		private final int height;
+		private final boolean[] inside;
+		private final float[] weights;
+		private final int count;
+		private final double area;
+
+		private Mask(int posX, int posY, int width, int height, boolean[] inside, float[] weights, int count,
+				double area) {
+			this.posX = posX;
+			this.posY = posY;
+			this.width = width;
+			this.height = height;
+			this.inside = inside;
+			this.weights = weights;
+			this.count = count;
+			this.area = area;
+		}
+
+		/**
+		 * @return first column of the bounding box
+		 */
+		public int getPosX() {
+			return posX;
+		}
+
+		/**
+		 * @return first row of the bounding box
+		 */
+		public int getPosY() {
+			return posY;
+		}
+
+		/**
+		 * @return number of columns of the bounding box
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		/**
+		 * @return number of rows of the bounding box
+		 */
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * @param idx index of the pixel in the bounding box, row by row
+		 * @return true if the center of the pixel is in the region
+		 */
+		public boolean isInside(int idx) {
+			return inside[idx];
+		}
+
+		/**
+		 * @param idx index of the pixel in the bounding box, row by row
+		 * @return fraction of the area of the pixel in the region
+		 */
+		public float getWeight(int idx) {
+			return weights[idx];
+		}
+
+		/**
+		 * @return number of pixels whose center is in the region
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return area of the region on the slide, in pixels
+		 */
+		public double getArea() {
+			return area;
+		}
+	}
+}
@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import app.CubeExplorer;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * Spectrum contiguous copy of a datacube.
+ * <p>
+ * Values are stored [posY][posX][posZ] so that a spectrum is a single
+ * contiguous read whatever the depth of the cube. The sidecar is built in
+ * background, when the cube is opened if <code>sidecar_spectrum_threshold</code>
+ * is 0, or once the number of spectrum requests on the cube reaches it
+ * (negative to disable). Files are stored in <code>sidecar_dir</code> and named
+ * after the path, size and modification date of the cube, so a modified cube
+ * gets a new sidecar, the files of its previous versions being deleted when
+ * a new one is written.
+ * <p>
+ * Until it is opened, the sidecar file is looked for at most once a second, so
+ * that a cube reopened while its sidecar was built by a previous instance
+ * finds it, and a failed build is started again.
+ *
+ * @author vincent.cephirins
+ */
+public class SpectrumSidecar {
+
+	// Initialise un logger (voir conf/log4j2.xml).
+	private static final Logger LOGGER = LogManager.getLogger("spectrumSidecar");
+
+	// Maximum size of the band of rows transposed in memory
+	private static final long BAND_BYTES = 64L * 1024 * 1024;
+
+	// Delay between two looks for the sidecar file
+	private static final long CHECK_MILLIS = 1000;
+
+	// Low priority builder, one sidecar at a time
+	static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "spectrum-sidecar");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	// Sidecars being built, by file
+	static final Set<String> BUILDING = ConcurrentHashMap.newKeySet();
+
+	private final String filename;
+	private final File file;
+	private final int dimX;
+	private final int dimY;
+	private final int dimZ;
+	private final int bytesPerValue;
+	private final int threshold;
+	private final RowsReader reader;
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private volatile RandomAccessFile sidecar = null;
+	private volatile boolean closed = false;
+	private volatile long lastCheck = 0;
+
+	/**
+	 * @param filename datacube file
+	 * @param dimX number of columns
+	 * @param dimY number of rows
+	 * @param dimZ number of planes
+	 * @param bytesPerValue 4 for float values, 8 for double values
+	 * @param reader reader of the cube planes
+	 * @throws CubeExplorerException
+	 */
+	public SpectrumSidecar(String filename, int dimX, int dimY, int dimZ, int bytesPerValue, RowsReader reader)
+			throws CubeExplorerException {
+		this.filename = filename;
+		this.dimX = dimX;
+		this.dimY = dimY;
+		this.dimZ = dimZ;
+		this.bytesPerValue = bytesPerValue;
+		this.reader = reader;
+		this.threshold = Integer.parseInt(CubeExplorer.getProperty("sidecar_spectrum_threshold", "10"));
+
+		this.file = getSidecarFile(filename, (bytesPerValue * 8) + ".spectra");
+
+		if (bytesPerValue != 4 && bytesPerValue != 8) {
+			LOGGER.info("No spectrum sidecar for {} bytes values of {}", bytesPerValue, filename);
+			return;
+		}
+
+		if (file.exists()) {
+			open();
+		} else if (threshold == 0) {
+			build();
+		}
+	}
+
+	/**
+	 * Return a file of sidecar_dir named after the path, size and modification
+	 * date of a datacube.
+	 *
+	 * @param filename datacube file
+	 * @param suffix suffix of the sidecar
+	 * @return the sidecar file
+	 * @throws CubeExplorerException
+	 */
+	static File getSidecarFile(String filename, String suffix) throws CubeExplorerException {
+		String dir = CubeExplorer.getProperty("sidecar_dir",
+				System.getProperty("java.io.tmpdir") + File.separator + "cubeExplorer");
+		return new File(dir, getVersionPrefix(new File(filename)) + suffix);
+	}
+
+	/**
+	 * Delete the files of the other versions of a datacube stored next to one
+	 * of its sidecars, outdated since the cube was modified.
+	 *
+	 * @param filename datacube file
+	 * @param file sidecar of the current version
+	 */
+	static void deleteOutdated(String filename, File file) {
+		File cube = new File(filename);
+		String pathPrefix = getPathPrefix(cube);
+		String versionPrefix = getVersionPrefix(cube);
+		File[] outdated = file.getParentFile()
+				.listFiles((dir, name) -> name.startsWith(pathPrefix) && !name.startsWith(versionPrefix));
+		if (outdated == null) {
+			return;
+		}
+		for (File old : outdated) {
+			if (old.delete()) {
+				LOGGER.info("Outdated sidecar {} deleted", old);
+			} else {
+				LOGGER.warn("Outdated sidecar {} not deleted", old);
+			}
+		}
+	}
+
+	/**
+	 * @return start of the names of the sidecars of every version of a cube
+	 */
+	private static String getPathPrefix(File cube) {
+		return cube.getName() + "-"
+				+ UUID.nameUUIDFromBytes(cube.getAbsolutePath().getBytes(StandardCharsets.UTF_8)) + "-";
+	}
+
+	/**
+	 * @return start of the names of the sidecars of the current version of a
+	 *         cube, given by its size and modification date
+	 */
+	private static String getVersionPrefix(File cube) {
+		String key = cube.getAbsolutePath() + "|" + cube.length() + "|" + cube.lastModified();
+		return getPathPrefix(cube) + UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + "-";
+	}
+
+	/**
+	 * @return the sidecar file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return true if spectra are read from the sidecar
+	 */
+	public boolean isReady() {
+		return sidecar != null;
+	}
+
+	/**
+	 * Read the spectrum of pixel (posX, posY) and count the request.
+	 *
+	 * @param posX column of the pixel
+	 * @param posY row of the pixel
+	 * @return float[] or double[] of dimZ values, or null if the sidecar is not
+	 *         built yet
+	 */
+	public Object readSpectrum(int posX, int posY) {
+		RandomAccessFile raf = sidecar;
+		if (raf == null) {
+			int count = requests.incrementAndGet();
+			long now = System.currentTimeMillis();
+			if ((bytesPerValue == 4 || bytesPerValue == 8) && threshold >= 0 && count >= threshold
+					&& now - lastCheck >= CHECK_MILLIS) {
+				lastCheck = now;
+				if (file.exists()) {
+					// Built by a previous instance of the cube
+					open();
+				} else {
+					build();
+				}
+			}
+			return null;
+		}
+
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(dimZ * bytesPerValue);
+			long position = ((long) posY * dimX + posX) * dimZ * bytesPerValue;
+			FileChannel channel = raf.getChannel();
+			while (buffer.hasRemaining()) {
+				int len = channel.read(buffer, position + buffer.position());
+				if (len < 0) {
+					throw new EOFException(file.getPath());
+				}
+			}
+			buffer.flip();
+
+			if (bytesPerValue == 4) {
+				float[] values = new float[dimZ];
+				buffer.asFloatBuffer().get(values);
+				return values;
+			}
+			double[] values = new double[dimZ];
+			buffer.asDoubleBuffer().get(values);
+			return values;
+		} catch (IOException ioe) {
+			// Read from the cube instead
+			LOGGER.error("IOException {} : {}", file, ioe.getMessage());
+			return null;
+		}
+	}
+
+	private synchronized void open() {
+		if (sidecar != null || closed) {
+			return;
+		}
+		try {
+			sidecar = new RandomAccessFile(file, "r");
+			LOGGER.info("Spectrum sidecar {} opened", file);
+		} catch (IOException ioe) {
+			LOGGER.error("IOException {} : {}", file, ioe.getMessage());
+		}
+	}
+
+	private void build() {
+		if (!BUILDING.add(file.getPath())) {
+			return;
+		}
+		BUILDER.submit(() -> {
+			try {
+				if (!file.exists()) {
+					write();
+				}
+				if (!closed) {
+					open();
+				}
+			} catch (Exception e) {
+				LOGGER.error("Spectrum sidecar {} not built : {}", file, e.getMessage());
+			} finally {
+				BUILDING.remove(file.getPath());
+			}
+		});
+	}
+
+	/**
+	 * Transpose the cube by bands of rows into a temporary file, renamed once
+	 * complete.
+	 */
+	private void write() throws Exception {
+		LOGGER.info("Building spectrum sidecar {}", file);
+		file.getParentFile().mkdirs();
+		deleteOutdated(filename, file);
+		File tmp = new File(file.getPath() + ".tmp");
+
+		long rowBytes = (long) dimX * dimZ * bytesPerValue;
+		if (rowBytes > Integer.MAX_VALUE) {
+			throw new IOException("row of " + rowBytes + " bytes too large");
+		}
+		int bandRows = (int) Math.max(1, Math.min(dimY, BAND_BYTES / Math.max(1, rowBytes)));
+		ByteBuffer band = ByteBuffer.allocate((int) (bandRows * rowBytes));
+
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			FileChannel channel = raf.getChannel();
+			raf.setLength(dimY * rowBytes);
+
+			for (int posY = 0; posY < dimY; posY += bandRows) {
+				int nbRows = Math.min(bandRows, dimY - posY);
+				for (int posZ = 0; posZ < dimZ; posZ++) {
+					if (closed) {
+						throw new IOException("cube closed");
+					}
+					Object rows = reader.readRows(posZ, posY, nbRows);
+					int count = nbRows * dimX;
+					if (rows instanceof float[]) {
+						float[] values = (float[]) rows;
+						for (int idx = 0; idx < count; idx++) {
+							band.putFloat((idx * dimZ + posZ) * 4, values[idx]);
+						}
+					} else {
+						double[] values = (double[]) rows;
+						for (int idx = 0; idx < count; idx++) {
+							band.putDouble((idx * dimZ + posZ) * 8, values[idx]);
+						}
+					}
+				}
+
+				band.position(0);
+				band.limit((int) (nbRows * rowBytes));
+				long position = posY * rowBytes;
+				while (band.hasRemaining()) {
+					position += channel.write(band, position);
+				}
+				band.clear();
+			}
+		} catch (Exception e) {
+			tmp.delete();
+			throw e;
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		LOGGER.info("Spectrum sidecar {} built", file);
+	}
+
+	public synchronized void close() {
+		closed = true;
+		try {
+			RandomAccessFile raf = sidecar;
+			if (raf != null) {
+				sidecar = null;
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			LOGGER.error("IOException {} : {}", file, ioe.getMessage());
+		}
+	}
+}
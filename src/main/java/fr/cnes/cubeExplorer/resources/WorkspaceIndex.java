@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import app.CubeExplorer;
+import common.exceptions.CubeExplorerException;
+
+/**
+ * In memory index of the datacubes of the workspace.
+ * <p>
+ * The public and private directories of the workspace are listed once, then
+ * kept current by a {@link WatchService}. They are also listed again every
+ * <code>workspace_rescan_seconds</code> seconds, as events may be lost or not
+ * sent at all on network storage.
+ *
+ * @author vincent.cephirins
+ */
+public class WorkspaceIndex {
+
+	// Initialise un logger (voir conf/log4j2.xml).
+	private static final Logger LOGGER = LogManager.getLogger("workspaceIndex");
+
+	private static WorkspaceIndex instance = null;
+
+	private final String workspace;
+	private final File publicDir;
+	private final File privateDir;
+	private final long rescanSeconds;
+
+	private volatile Set<String> publicFiles = ConcurrentHashMap.newKeySet();
+	private volatile Set<String> privateFiles = ConcurrentHashMap.newKeySet();
+	private final Thread watcher;
+
+	// Time of the last listing, in nanoseconds
+	private volatile long lastRescan = 0;
+
+	/**
+	 * @param workspace directory holding the public and private directories
+	 * @param rescanSeconds delay between two listings of the directories
+	 */
+	public WorkspaceIndex(String workspace, long rescanSeconds) {
+		this.workspace = workspace;
+		this.publicDir = new File(workspace + "/public/");
+		this.privateDir = new File(workspace + "/private/");
+		this.rescanSeconds = Math.max(1, rescanSeconds);
+
+		rescan();
+
+		this.watcher = new Thread(this::watch, "workspace-index");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Return the index of the workspace of the application, rescanned every
+	 * <code>workspace_rescan_seconds</code>. A new index is built when the
+	 * <code>workspace</code> property changes.
+	 *
+	 * @return the shared index
+	 * @throws CubeExplorerException
+	 */
+	public static synchronized WorkspaceIndex getInstance() throws CubeExplorerException {
+		String workspace = CubeExplorer.getProperty("workspace", ".");
+		if (instance != null && !instance.workspace.equals(workspace)) {
+			instance.close();
+			instance = null;
+		}
+		if (instance == null) {
+			long rescanSeconds = Long.parseLong(CubeExplorer.getProperty("workspace_rescan_seconds", "300"));
+			LOGGER.info("NEW WorkspaceIndex({}, {})", workspace, rescanSeconds);
+			instance = new WorkspaceIndex(workspace, rescanSeconds);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param name name of a file
+	 * @return true for a fits or netCdf file
+	 */
+	public static boolean isDatacube(String name) {
+		return name.endsWith(".fits") || name.endsWith(".nc");
+	}
+
+	/**
+	 * Return the path of an entry, searched first in the public workspace.
+	 *
+	 * @param entry Name of the file
+	 * @return path of the file
+	 */
+	public String getPath(String entry) {
+		if (publicFiles.contains(entry)) {
+			return publicDir.getPath() + "/" + entry;
+		}
+		return privateDir.getPath() + "/" + entry;
+	}
+
+	/**
+	 * @param file path of an entry, given by {@link #getPath(String)}
+	 * @return true for a datacube of the public workspace
+	 */
+	public boolean isPublic(File file) {
+		return publicDir.equals(file.getParentFile()) && publicFiles.contains(file.getName());
+	}
+
+	/**
+	 * @return sorted names of the public datacubes
+	 */
+	public String[] getPublicFiles() {
+		return new TreeSet<String>(publicFiles).toArray(new String[0]);
+	}
+
+	/**
+	 * @return sorted names of the private datacubes
+	 */
+	public String[] getPrivateFiles() {
+		return new TreeSet<String>(privateFiles).toArray(new String[0]);
+	}
+
+	/**
+	 * List the directories again.
+	 */
+	private void rescan() {
+		lastRescan = System.nanoTime();
+		publicFiles = list(publicDir);
+		privateFiles = list(privateDir);
+		LOGGER.debug("Workspace rescanned : {} public, {} private", publicFiles.size(), privateFiles.size());
+	}
+
+	private Set<String> list(File dir) {
+		Set<String> files = ConcurrentHashMap.newKeySet();
+		String[] names = dir.list((parent, name) -> isDatacube(name));
+		if (names == null) {
+			LOGGER.warn("Directory {} not readable", dir);
+		} else {
+			for (String name : names) {
+				files.add(name);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Apply the events of the directories, and rescan them when events are
+	 * lost or the last listing is rescanSeconds old, whatever the events
+	 * received meanwhile.
+	 */
+	private void watch() {
+		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+			Path publicPath = register(watchService, publicDir);
+			Path privatePath = register(watchService, privateDir);
+
+			while (true) {
+				long wait = lastRescan + TimeUnit.SECONDS.toNanos(rescanSeconds) - System.nanoTime();
+				if (wait <= 0) {
+					rescan();
+					continue;
+				}
+				WatchKey key = watchService.poll(wait, TimeUnit.NANOSECONDS);
+				if (key == null) {
+					continue;
+				}
+
+				boolean isPublic = key.watchable().equals(publicPath);
+				Set<String> files = isPublic ? publicFiles : privateFiles;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						rescan();
+						break;
+					}
+					String name = ((Path) event.context()).getFileName().toString();
+					if (!isDatacube(name)) {
+						continue;
+					}
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						files.add(name);
+					} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+						files.remove(name);
+					}
+				}
+				if (!key.reset()) {
+					LOGGER.warn("Directory {} no more watched", isPublic ? publicPath : privatePath);
+				}
+			}
+		} catch (IOException | ClosedWatchServiceException e) {
+			LOGGER.error("Workspace not watched : {}", e.getMessage());
+			pollRescan();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Path register(WatchService watchService, File dir) throws IOException {
+		Path path = dir.toPath();
+		if (dir.isDirectory()) {
+			path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+		}
+		return path;
+	}
+
+	/**
+	 * Stop watching the workspace.
+	 */
+	public void close() {
+		watcher.interrupt();
+	}
+
+	/**
+	 * Fallback when the file system can not be watched.
+	 */
+	private void pollRescan() {
+		try {
+			while (true) {
+				TimeUnit.SECONDS.sleep(rescanSeconds);
+				rescan();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
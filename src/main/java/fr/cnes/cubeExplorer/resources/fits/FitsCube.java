@@ -16,6 +16,11 @@ import app.CubeExplorer;
 import common.enums.CubeType;
 import common.exceptions.CubeExplorerException;
 import fr.cnes.cubeExplorer.resources.AbstractDataCube;
+import fr.cnes.cubeExplorer.resources.BrickStore;
+import fr.cnes.cubeExplorer.resources.CubeStatistics;
+import fr.cnes.cubeExplorer.resources.PlaneCache;
+import fr.cnes.cubeExplorer.resources.SlidePyramid;
+import fr.cnes.cubeExplorer.resources.SpectrumSidecar;
 import nom.tam.fits.Fits;
 import nom.tam.fits.FitsException;
 import nom.tam.fits.FitsFactory;
@@ -29,6 +34,9 @@ public class FitsCube extends AbstractDataCube {
 
     private String filename = null; // filename
     private Fits fits = null;
+    private FitsImage image = null;
+    private SpectrumSidecar sidecar = null;
+    private BrickStore store = null;
 
     /**
      * @param filename
@@ -44,8 +52,31 @@ public class FitsCube extends AbstractDataCube {
         // Lecture du fichier fits
         this.fits = readFits(filename);
 
-        // Get header
-        this.header = new FitsHeader(ce, this);
+        try {
+            // Get header
+            this.header = new FitsHeader(ce, this);
+
+            // Data of the image are read on demand
+            this.image = readImage(((FitsHeader) this.header).getIndexHeader());
+
+            // Spectrum contiguous and chunked copies of the data
+            this.sidecar = new SpectrumSidecar(filename, image.getNaxis1(), image.getNaxis2(), image.getNaxis3(),
+                image.getBytesPerValue(), image::readRows);
+            this.store = new BrickStore(filename, image.getNaxis1(), image.getNaxis2(), image.getNaxis3(),
+                image.getBytesPerValue(), image::readRows);
+
+            // Downsampled slides
+            this.pyramid = new SlidePyramid(filename, image.getNaxis1(), image.getNaxis2(), image.getBytesPerValue(),
+                this::getSlideRegion);
+
+            // Statistics of the planes and of the cube
+            this.statistics = new CubeStatistics(filename, image.getNaxis2(), image.getNaxis3(), image::readRows);
+        }
+        catch (CubeExplorerException | RuntimeException e) {
+            // free the file and the components already opened
+            close();
+            throw e;
+        }
     }
 
     /**
@@ -62,6 +93,13 @@ public class FitsCube extends AbstractDataCube {
         return fits;
     }
 
+    /**
+     * @return the image data
+     */
+    public FitsImage getImage() {
+        return image;
+    }
+
     private Fits readFits(String filename) throws CubeExplorerException {
         Fits fits = null;
 
@@ -72,12 +110,21 @@ public class FitsCube extends AbstractDataCube {
             fits = new Fits(filename);
             FitsFactory.setUseHierarch(true);
 
-            // read fits file
+            // read fits headers, data of a random access file are skipped
+            // and only their offset is kept
             fits.read();
 
         }
         catch (FitsException fe) {
-            // free resources
+            // free resources, the fits is not yet kept by the cube
+            if (fits != null) {
+                try {
+                    fits.close();
+                }
+                catch (IOException ioe) {
+                    logger.error("IOException : ioe {}", ioe.getMessage());
+                }
+            }
             close();
             throw new CubeExplorerException(fe);
         }
@@ -85,6 +132,24 @@ public class FitsCube extends AbstractDataCube {
         return fits;
     }
 
+    private FitsImage readImage(int indexHeader) throws CubeExplorerException {
+        logger.info("ENTER readImage({})", indexHeader);
+
+        try {
+            return new FitsImage(filename, fits.getHDU(indexHeader));
+        }
+        catch (FitsException fe) {
+            logger.error("FitsException : fe {}", fe.getMessage());
+            close();
+            throw new CubeExplorerException(fe);
+        }
+        catch (IOException ioe) {
+            logger.error("IOException : ioe {}", ioe.getMessage());
+            close();
+            throw new CubeExplorerException(ioe);
+        }
+    }
+
     public JSONObject getHeader(String pattern) throws CubeExplorerException {
         JSONObject properties = new JSONObject();
         properties.put("fileType", getType().toString());
@@ -95,7 +160,7 @@ public class FitsCube extends AbstractDataCube {
         logger.info("ENTER metadata({})", md);
 
         // Récupération des dimensions
-        properties.put("dimensions", getHeader().getDimensions());
+        properties.put("dimensions", getDimensions());
 
         if (pattern != null) {
             // Sélection des metadata
@@ -118,34 +183,67 @@ public class FitsCube extends AbstractDataCube {
         return properties;
     }
 
-    public JSONObject getSlide(int posZ, String pattern) throws CubeExplorerException {
-        JSONObject properties = new JSONObject();
-        JSONArray metadata = new JSONArray();
-        JSONObject slide = new JSONObject();
+    /**
+     * Return the metadata of the HDU containing the cube.
+     */
+    protected JSONArray getCubeMetadata() throws CubeExplorerException {
+        int indexHeader = ((FitsHeader) getHeader()).getIndexHeader();
 
-        logger.trace("ENTER getSlide({}, {})", posZ, pattern);
+        if (indexHeader < 0 || indexHeader >= fits.getNumberOfHDUs()) {
+        	logger.error("exception.outOfBound : indexHeader {} , NumberOfHDUs {}", indexHeader, fits.getNumberOfHDUs());
+            // OutOfBound
+            throw new CubeExplorerException("exception.outOfBound", "Hdu", indexHeader, 0,
+                fits.getNumberOfHDUs() - 1);
+        }
+
+        logger.info("indexHeader with NAXIS3 {}", indexHeader);
+        return getHeader().getMetadata().getJSONArray(indexHeader);
+    }
+
+    private int getAxis(JSONArray md, String naxis) throws CubeExplorerException {
+        String naxisValue = getHeader().getValue(md, naxis);
+        return (naxisValue == null) ? 0 : Integer.parseInt(naxisValue);
+    }
+
+    public Object getSlideValues(int posZ) throws CubeExplorerException {
+        logger.trace("ENTER getSlideValues({})", posZ);
 
         try {
-            int indexHeader = ((FitsHeader) getHeader()).getIndexHeader();
+            JSONArray md = getCubeMetadata();
+            int naxis3 = getAxis(md, "NAXIS3");
+            logger.info("naxis3Value {}", naxis3);
 
-            if (indexHeader < 0 || indexHeader >= fits.getNumberOfHDUs()) {
-            	logger.error("exception.outOfBound : indexHeader {} , NumberOfHDUs {}", indexHeader, fits.getNumberOfHDUs());
+            if (posZ < 0 || posZ >= naxis3) {
+            	logger.error("exception.outOfBound : posZ {} , naxis3 {}", posZ, naxis3);
                 // OutOfBound
-                throw new CubeExplorerException("exception.outOfBound", "Hdu", indexHeader, 0,
-                    fits.getNumberOfHDUs() - 1);
-            }            
-
-            logger.info("indexHeader with NAXIS3 {}", indexHeader);
-            JSONArray md = getHeader().getMetadata().getJSONArray(indexHeader);
-
-            // search axis
-            String naxis1Value = getHeader().getValue(md, "NAXIS1");
-            String naxis2Value = getHeader().getValue(md, "NAXIS2");
-            String naxis3Value = getHeader().getValue(md, "NAXIS3");
-            logger.info("naxis3Value {}",naxis3Value);
-            int naxis1 = (naxis1Value == null) ? 0 : Integer.parseInt(naxis1Value);
-            int naxis2 = (naxis2Value == null) ? 0 : Integer.parseInt(naxis2Value);
-            int naxis3 = (naxis3Value == null) ? 0 : Integer.parseInt(naxis3Value);
+                throw new CubeExplorerException("exception.outOfBound", "posZ", posZ, 0, naxis3 - 1);
+            }
+
+            // from the plane cache if kept, else plane-major from the cube
+            Object plane = getCachedPlane(posZ);
+            if (plane == null) {
+                plane = image.readPlane(posZ);
+            }
+            return plane;
+        }
+        catch (FitsException fe) {
+        	logger.error("CubeExplorerException : {} ", fe.getMessage());
+            throw new CubeExplorerException(fe);
+        }
+        catch (IOException ioe) {
+        	logger.error("IOException : {} ", ioe.getMessage());
+            throw new CubeExplorerException(ioe);
+        }
+    }
+
+    public Object getSlideRegion(int posZ, int posX, int posY, int width, int height) throws CubeExplorerException {
+        logger.trace("ENTER getSlideRegion({}, {}, {}, {}, {})", posZ, posX, posY, width, height);
+
+        try {
+            JSONArray md = getCubeMetadata();
+            int naxis1 = getAxis(md, "NAXIS1");
+            int naxis2 = getAxis(md, "NAXIS2");
+            int naxis3 = getAxis(md, "NAXIS3");
 
             if (posZ < 0 || posZ >= naxis3) {
             	logger.error("exception.outOfBound : posZ {} , naxis3 {}", posZ, naxis3);
@@ -153,48 +251,26 @@ public class FitsCube extends AbstractDataCube {
                 throw new CubeExplorerException("exception.outOfBound", "posZ", posZ, 0, naxis3 - 1);
             }
 
-            // Copy metadata without comment
-            metadata = getHeader().selectMetadata(md, pattern);
-            logger.info("indexHeader {}",indexHeader);
-            logger.info("fits.getHDU(indexHeader).getData() {}",fits.getHDU(indexHeader).getData());
-            double[][][] cubeFits = null;
-            float[][][] cubeFitsFloat = null;
-            try {
-            	cubeFitsFloat = (float[][][]) fits.getHDU(indexHeader).getData().getData();
-            }catch(Exception e) {
-            	 cubeFits = ((double[][][]) fits.getHDU(indexHeader).getData().getData());
-            }
-           
-            JSONArray tabValues = new JSONArray();           
-
-            Double value;
-            float valueFloat;
-            //JSONArray tabValues = new JSONArray();
-            logger.info("naxis1 - naxis2 {} {}",naxis1, naxis2);
-            for (int idxNaxis2 = 0; idxNaxis2 < naxis2; idxNaxis2++) {
-                JSONArray lineValues = new JSONArray();
-                for (int idxNaxis1 = 0; idxNaxis1 < naxis1; idxNaxis1++) {
-                	 if(cubeFitsFloat != null) {
-                         valueFloat = cubeFitsFloat[posZ][idxNaxis2][idxNaxis1];
-                         lineValues.put(valueFloat);
-
-                	 }else if(cubeFits != null) {
-                         value = cubeFits[posZ][idxNaxis2][idxNaxis1];
-                         lineValues.put(value.isNaN() ? null : value);
-                	 }
-                    
-                }
-                tabValues.put(lineValues);
+            if (posX < 0 || width < 1 || posX + width > naxis1) {
+            	logger.error("exception.outOfBound : posX {} , width {} , naxis1 {}", posX, width, naxis1);
+                // OutOfBound
+                throw new CubeExplorerException("exception.outOfBound", "posX", posX, 0, naxis1 - width);
             }
 
-            // Store data to json
-            slide.put("value", tabValues);
-            properties.put("metadata", metadata);
-            properties.put("slide", slide);
+            if (posY < 0 || height < 1 || posY + height > naxis2) {
+            	logger.error("exception.outOfBound : posY {} , height {} , naxis2 {}", posY, height, naxis2);
+                // OutOfBound
+                throw new CubeExplorerException("exception.outOfBound", "posY", posY, 0, naxis2 - height);
+            }
 
-        }
-        catch (CubeExplorerException ce) {
-            throw ce;
+            Object region = getCachedRegion(posZ, posX, posY, width, height);
+            if (region == null) {
+                region = store.readRegion(posZ, 1, posY, height, posX, width);
+            }
+            if (region == null) {
+                region = image.readRegion(posZ, posX, posY, width, height);
+            }
+            return region;
         }
         catch (FitsException fe) {
         	logger.error("CubeExplorerException : {} ", fe.getMessage());
@@ -204,37 +280,59 @@ public class FitsCube extends AbstractDataCube {
         	logger.error("IOException : {} ", ioe.getMessage());
             throw new CubeExplorerException(ioe);
         }
-        return properties;
     }
 
-    public JSONObject getSpectrum(int posX, int posY, String pattern) throws CubeExplorerException {
+    public JSONObject getSlide(int posZ, String pattern) throws CubeExplorerException {
         JSONObject properties = new JSONObject();
         JSONArray metadata = new JSONArray();
-        JSONObject spectrum = new JSONObject();
+        JSONObject slide = new JSONObject();
 
-        logger.info("ENTER getSpectrum({}, {}, {})", posX, posY, pattern);
+        logger.trace("ENTER getSlide({}, {})", posZ, pattern);
 
-        // Lecture des données du fichier fits
-        try {
-            int indexHeader = ((FitsHeader) getHeader()).getIndexHeader();
+        JSONArray md = getCubeMetadata();
 
-            if (indexHeader < 0 || indexHeader >= fits.getNumberOfHDUs()) {
-            	logger.error("exception.outOfBound : indexHeader {} , NumberOfHDUs {}", indexHeader, fits.getNumberOfHDUs());
-                // OutOfBound
-                throw new CubeExplorerException("exception.outOfBound", "Hdu", indexHeader, 0,
-                    fits.getNumberOfHDUs() - 1);
+        // search axis
+        int naxis1 = getAxis(md, "NAXIS1");
+        int naxis2 = getAxis(md, "NAXIS2");
+
+        Object plane = getSlideValues(posZ);
+        float[] floatValues = (plane instanceof float[]) ? (float[]) plane : null;
+        double[] doubleValues = (plane instanceof double[]) ? (double[]) plane : null;
+
+        // Copy metadata without comment
+        metadata = getHeader().selectMetadata(md, pattern);
+
+        JSONArray tabValues = new JSONArray();
+
+        logger.info("naxis1 - naxis2 {} {}",naxis1, naxis2);
+        for (int idxNaxis2 = 0; idxNaxis2 < naxis2; idxNaxis2++) {
+            JSONArray lineValues = new JSONArray();
+            for (int idxNaxis1 = 0; idxNaxis1 < naxis1; idxNaxis1++) {
+                int idx = idxNaxis2 * naxis1 + idxNaxis1;
+                double value = (floatValues != null) ? floatValues[idx] : doubleValues[idx];
+                lineValues.put(Double.isNaN(value) ? JSONObject.NULL : value);
             }
+            tabValues.put(lineValues);
+        }
 
-            JSONArray md = getHeader().getMetadata().getJSONArray(indexHeader);
+        // Store data to json
+        slide.put("value", tabValues);
+        properties.put("metadata", metadata);
+        properties.put("slide", slide);
 
-            // Recherche des axes
-            String naxis1Value = getHeader().getValue(md, "NAXIS1");
-            String naxis2Value = getHeader().getValue(md, "NAXIS2");
-            String naxis3Value = getHeader().getValue(md, "NAXIS3");
+        return properties;
+    }
 
-            int naxis1 = (naxis1Value == null) ? 0 : Integer.parseInt(naxis1Value);
-            int naxis2 = (naxis2Value == null) ? 0 : Integer.parseInt(naxis2Value);
-            int naxis3 = (naxis3Value == null) ? 0 : Integer.parseInt(naxis3Value);
+    public Object getSpectrumValues(int posX, int posY) throws CubeExplorerException {
+        logger.trace("ENTER getSpectrumValues({}, {})", posX, posY);
+
+        // Lecture des données du fichier fits
+        try {
+            JSONArray md = getCubeMetadata();
+
+            // Recherche des axes
+            int naxis1 = getAxis(md, "NAXIS1");
+            int naxis2 = getAxis(md, "NAXIS2");
 
             if (posX < 0 || posX >= naxis1) {
             	logger.error("exception.outOfBound : posX {} , naxis1 {}", posX, naxis1);
@@ -248,49 +346,17 @@ public class FitsCube extends AbstractDataCube {
                 throw new CubeExplorerException("exception.outOfBound", "posY", posY, 0, naxis2 - 1);
             }
 
-            // Copie des metadata demandées sans les commentaires
-            metadata = getHeader().selectMetadata(md, pattern);
-            double[][][] cubeFits = null;
-            float[][][] cubeFitsFloat = null;
-            try {
-            	cubeFitsFloat = (float[][][]) fits.getHDU(indexHeader).getData().getData();
-            }catch(Exception e) {
-            	 cubeFits = ((double[][][]) fits.getHDU(indexHeader).getData().getData());
+            Object values = getCachedSpectrum(posX, posY);
+            if (values == null) {
+                values = sidecar.readSpectrum(posX, posY);
             }
-            Double valuedouble;
-            Float valuefloat;
-            JSONArray waveslength = new JSONArray();
-            JSONArray values = new JSONArray();
-      
-            String crval3_str = getHeader().getValue(md, "CRVAL3");
-            String cdelt3_str = getHeader().getValue(md, "CDELT3");
-            String crpix3_str = getHeader().getValue(md, "CRPIX3");
-            float crval3 = 0;
-	        float cdelt3 = 1;
-	        float crpix3 = 0;
-            if (crval3_str != null && cdelt3_str != null) {
-                crval3 = Float.parseFloat(crval3_str);
-    	        cdelt3 = Float.parseFloat(cdelt3_str);
-    	        crpix3 = Float.parseFloat(crpix3_str);
+            if (values == null) {
+                values = store.readSpectrum(posX, posY);
             }
-            for (int i = 0; i < naxis3; i++) {
-            	if(cubeFits != null) {
-                	valuedouble = cubeFits[i][posY][posX];
-                	values.put(valuedouble.isNaN() ? null : valuedouble);
-            	}else if(cubeFitsFloat != null) {
-            		valuefloat = cubeFitsFloat[i][posY][posX];
-                	values.put(valuefloat.isNaN() ? null : valuefloat);
-            	}
-            	waveslength.put((float)  crval3 + ((i - crpix3) * cdelt3));
+            if (values == null) {
+                values = image.readSpectrum(posX, posY);
             }
-            spectrum.put("wavelength", waveslength);
-            spectrum.put("value", values);
-            properties.put("metadata", metadata);
-            properties.put("spectrum", spectrum);
-
-        }
-        catch (CubeExplorerException ce) {
-            throw ce;
+            return values;
         }
         catch (FitsException fe) {
         	logger.error("FitsException : fe {}", fe.getMessage());
@@ -300,11 +366,85 @@ public class FitsCube extends AbstractDataCube {
         	logger.error("IOException : ioe {}", ioe.getMessage());
             throw new CubeExplorerException(ioe);
         }
+    }
+
+    @Override
+    protected boolean isSpectrumIndexed() {
+        return sidecar.isReady() || store.isReady();
+    }
+
+    public float[] getWavelength() throws CubeExplorerException {
+        JSONArray md = getCubeMetadata();
+        int naxis3 = getAxis(md, "NAXIS3");
+        float[] wavelength = new float[naxis3];
+
+        String crval3_str = getHeader().getValue(md, "CRVAL3");
+        String cdelt3_str = getHeader().getValue(md, "CDELT3");
+        String crpix3_str = getHeader().getValue(md, "CRPIX3");
+        float crval3 = 0;
+        float cdelt3 = 1;
+        float crpix3 = 0;
+        if (crval3_str != null && cdelt3_str != null) {
+            crval3 = Float.parseFloat(crval3_str);
+	        cdelt3 = Float.parseFloat(cdelt3_str);
+	        crpix3 = Float.parseFloat(crpix3_str);
+        }
+        for (int i = 0; i < naxis3; i++) {
+        	wavelength[i] = (float)  crval3 + ((i - crpix3) * cdelt3);
+        }
+        return wavelength;
+    }
+
+    public JSONObject getSpectrum(int posX, int posY, String pattern) throws CubeExplorerException {
+        JSONObject properties = new JSONObject();
+        JSONArray metadata = new JSONArray();
+        JSONObject spectrum = new JSONObject();
+
+        logger.info("ENTER getSpectrum({}, {}, {})", posX, posY, pattern);
+
+        JSONArray md = getCubeMetadata();
+
+        Object values3 = getCachedSpectrumValues(posX, posY);
+        float[] floatValues = (values3 instanceof float[]) ? (float[]) values3 : null;
+        double[] doubleValues = (values3 instanceof double[]) ? (double[]) values3 : null;
+        float[] wavelength = getWavelength();
+
+        // Copie des metadata demandées sans les commentaires
+        metadata = getHeader().selectMetadata(md, pattern);
+
+        JSONArray waveslength = new JSONArray();
+        JSONArray values = new JSONArray();
+        for (int i = 0; i < wavelength.length; i++) {
+            double value = (floatValues != null) ? floatValues[i] : doubleValues[i];
+            values.put(Double.isNaN(value) ? JSONObject.NULL : value);
+        	waveslength.put(wavelength[i]);
+        }
+        spectrum.put("wavelength", waveslength);
+        spectrum.put("value", values);
+        properties.put("metadata", metadata);
+        properties.put("spectrum", spectrum);
 
         return properties;
     }
 
     public void close() {
+        PlaneCache.closed(this);
+        if (this.statistics != null) {
+            this.statistics.close();
+            this.statistics = null;
+        }
+        if (this.sidecar != null) {
+            this.sidecar.close();
+            this.sidecar = null;
+        }
+        if (this.store != null) {
+            this.store.close();
+            this.store = null;
+        }
+        if (this.image != null) {
+            this.image.close();
+            this.image = null;
+        }
         try {
             if (this.fits != null) {
                 this.fits.close();
@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+
+package fr.cnes.cubeExplorer.resources.fits;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.logging.log4j.Logger;
+
+import app.CubeExplorer;
+import common.exceptions.CubeExplorerException;
+import fr.cnes.cubeExplorer.resources.CubeData;
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.Header;
+
+/**
+ * Data segment of the image HDU of a fits cube.
+ * <p>
+ * Only the header blocks are parsed when the file is opened, planes and
+ * spectra are read on demand with positional reads at the data offset of the
+ * HDU. Positional reads do not move the channel position, so an image can be
+ * shared between requests.
+ * <p>
+ * With property <code>fits_read_mode=mapped</code> (default) the data segment
+ * is memory mapped, with several mappings holding whole planes for files over
+ * 2 GB, and values are decoded straight from the mapped buffers. With
+ * <code>fits_read_mode=channel</code> plain positional reads are used.
+ * <p>
+ * Values of all the BITPIX are decoded by a {@link CubeData}, with BSCALE,
+ * BZERO and BLANK applied.
+ *
+ * @author vincent.cephirins
+ */
+public class FitsImage {
+
+    private Logger logger = null;
+    private String filename = null;
+    private RandomAccessFile file = null;
+    private FileChannel channel = null;
+
+    private long dataOffset = 0;
+    private int bitpix = 0;
+    private int bytesPerPixel = 0;
+    private int naxis1 = 0;
+    private int naxis2 = 0;
+    private int naxis3 = 0;
+    private CubeData data = null;
+
+    // Mapped data segment, null when reading with the channel
+    private MappedByteBuffer[] mappings = null;
+    private int planesPerMapping = 0;
+
+    /**
+     * @param filename fits file
+     * @param hdu HDU of the image, read without its data
+     * @throws CubeExplorerException
+     */
+    public FitsImage(String filename, BasicHDU<?> hdu) throws CubeExplorerException {
+        this.logger = CubeExplorer.getLogger();
+        this.filename = filename;
+
+        logger.info("NEW FitsImage({})", filename);
+
+        Header header = hdu.getHeader();
+        this.bitpix = header.getIntValue("BITPIX");
+        this.bytesPerPixel = Math.abs(bitpix) / 8;
+        this.naxis1 = header.getIntValue("NAXIS1");
+        this.naxis2 = header.getIntValue("NAXIS2");
+        this.naxis3 = header.getIntValue("NAXIS3");
+        this.dataOffset = hdu.getData().getFileOffset();
+        this.data = CubeData.forBitpix(bitpix, header.getDoubleValue("BSCALE", 1.0),
+            header.getDoubleValue("BZERO", 0.0), header.containsKey("BLANK") ? header.getLongValue("BLANK") : null);
+
+        try {
+            this.file = new RandomAccessFile(filename, "r");
+            this.channel = file.getChannel();
+
+            if ("mapped".equals(CubeExplorer.getProperty("fits_read_mode", "mapped"))) {
+                map();
+            }
+        }
+        catch (IOException ioe) {
+            close();
+            logger.error("exception.file.openFile {}", filename);
+            throw new CubeExplorerException(ioe, "exception.file.openFile", filename);
+        }
+    }
+
+    private void map() throws IOException {
+        long planeSize = (long) naxis1 * naxis2 * bytesPerPixel;
+        if (planeSize == 0 || naxis3 == 0 || planeSize > Integer.MAX_VALUE) {
+            logger.warn("Plane of {} bytes can not be mapped, read with channel", planeSize);
+            return;
+        }
+
+        // Each mapping holds whole planes
+        planesPerMapping = (int) Math.min(naxis3, Integer.MAX_VALUE / planeSize);
+        int nbMappings = (naxis3 + planesPerMapping - 1) / planesPerMapping;
+        mappings = new MappedByteBuffer[nbMappings];
+        for (int idxMapping = 0; idxMapping < nbMappings; idxMapping++) {
+            int nbPlanes = Math.min(planesPerMapping, naxis3 - idxMapping * planesPerMapping);
+            long position = dataOffset + idxMapping * planesPerMapping * planeSize;
+            mappings[idxMapping] = channel.map(MapMode.READ_ONLY, position, nbPlanes * planeSize);
+        }
+        logger.info("Data of {} mapped with {} mappings", filename, nbMappings);
+    }
+
+    /**
+     * @return true if the data segment is memory mapped
+     */
+    public boolean isMapped() {
+        return mappings != null;
+    }
+
+    /**
+     * @return the number of bytes of a value
+     */
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * @return the number of bytes of a decoded value, 4 for float values, 8 for double values
+     */
+    public int getBytesPerValue() {
+        return data.getBytesPerValue();
+    }
+
+    /**
+     * @return the bitpix
+     */
+    public int getBitpix() {
+        return bitpix;
+    }
+
+    /**
+     * @return the naxis1
+     */
+    public int getNaxis1() {
+        return naxis1;
+    }
+
+    /**
+     * @return the naxis2
+     */
+    public int getNaxis2() {
+        return naxis2;
+    }
+
+    /**
+     * @return the naxis3
+     */
+    public int getNaxis3() {
+        return naxis3;
+    }
+
+    /**
+     * @return the offset of the data segment in the file
+     */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * Read the plane posZ.
+     *
+     * @param posZ index of the plane
+     * @return float[] or double[] of naxis1 * naxis2 values, row by row
+     * @throws IOException
+     * @throws FitsException
+     */
+    public Object readPlane(int posZ) throws IOException, FitsException {
+        return readRows(posZ, 0, naxis2);
+    }
+
+    /**
+     * Read nbRows rows of the plane posZ from row posY.
+     *
+     * @param posZ index of the plane
+     * @param posY first row
+     * @param nbRows number of rows
+     * @return float[] or double[] of naxis1 * nbRows values, row by row
+     * @throws IOException
+     * @throws FitsException
+     */
+    public Object readRows(int posZ, int posY, int nbRows) throws IOException, FitsException {
+        int count = naxis1 * nbRows;
+        int rowsOffset = posY * naxis1 * bytesPerPixel;
+        ByteBuffer buffer;
+
+        if (mappings != null) {
+            // Decode from a view of the mapping, shared buffers are not moved
+            int position = (posZ % planesPerMapping) * naxis1 * naxis2 * bytesPerPixel + rowsOffset;
+            buffer = mappings[posZ / planesPerMapping].duplicate();
+            buffer.position(position);
+            buffer.limit(position + count * bytesPerPixel);
+        }
+        else {
+            long position = dataOffset + (long) posZ * naxis1 * naxis2 * bytesPerPixel + rowsOffset;
+            buffer = read(position, count * bytesPerPixel);
+        }
+
+        return decode(buffer.slice(), count);
+    }
+
+    /**
+     * Read a window of the plane posZ, with a positional read by row.
+     *
+     * @param posZ index of the plane
+     * @param posX first column
+     * @param posY first row
+     * @param width number of columns
+     * @param height number of rows
+     * @return float[] or double[] of width * height values, row by row
+     * @throws IOException
+     * @throws FitsException
+     */
+    public Object readRegion(int posZ, int posX, int posY, int width, int height) throws IOException, FitsException {
+        if (posX == 0 && width == naxis1) {
+            return readRows(posZ, posY, height);
+        }
+
+        int rowLength = width * bytesPerPixel;
+        ByteBuffer buffer = ByteBuffer.allocate(height * rowLength);
+
+        for (int row = posY; row < posY + height; row++) {
+            buffer.limit(buffer.position() + rowLength);
+            if (mappings != null) {
+                int position = (posZ % planesPerMapping) * naxis1 * naxis2 * bytesPerPixel
+                    + (row * naxis1 + posX) * bytesPerPixel;
+                ByteBuffer view = mappings[posZ / planesPerMapping].duplicate();
+                view.position(position);
+                view.limit(position + rowLength);
+                buffer.put(view);
+            }
+            else {
+                readFully(buffer, dataOffset + ((long) posZ * naxis2 + row) * naxis1 * bytesPerPixel
+                    + (long) posX * bytesPerPixel);
+            }
+        }
+        buffer.flip();
+
+        return decode(buffer, width * height);
+    }
+
+    /**
+     * Read the naxis3 values of pixel (posX, posY).
+     *
+     * @param posX column of the pixel
+     * @param posY row of the pixel
+     * @return float[] or double[] of naxis3 values
+     * @throws IOException
+     * @throws FitsException
+     */
+    public Object readSpectrum(int posX, int posY) throws IOException, FitsException {
+        long planeSize = (long) naxis1 * naxis2 * bytesPerPixel;
+        long position = dataOffset + ((long) posY * naxis1 + posX) * bytesPerPixel;
+
+        if (mappings != null) {
+            return readMappedSpectrum((int) (position - dataOffset), (int) planeSize);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(naxis3 * bytesPerPixel);
+
+        // One value per plane
+        for (int idxNaxis3 = 0; idxNaxis3 < naxis3; idxNaxis3++) {
+            buffer.limit(buffer.position() + bytesPerPixel);
+            readFully(buffer, position + idxNaxis3 * planeSize);
+        }
+        buffer.flip();
+
+        return decode(buffer, naxis3);
+    }
+
+    private Object readMappedSpectrum(int position, int planeSize) {
+        Object values = data.newValues(naxis3);
+        // Absolute reads, mapped buffers are big endian
+        for (int idxMapping = 0; idxMapping < mappings.length; idxMapping++) {
+            int firstZ = idxMapping * planesPerMapping;
+            data.decode(mappings[idxMapping], position, planeSize, values, firstZ,
+                Math.min(planesPerMapping, naxis3 - firstZ));
+        }
+        return values;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, position);
+            if (len < 0) {
+                throw new EOFException(filename);
+            }
+            position += len;
+        }
+    }
+
+    private Object decode(ByteBuffer buffer, int count) {
+        // Fits data are big endian
+        return data.decode(buffer.order(ByteOrder.BIG_ENDIAN), count);
+    }
+
+    public void close() {
+        try {
+            if (this.file != null) {
+                this.file.close();
+                logger.trace("Resource fits image " + this.filename + " closed.");
+                this.file = null;
+                this.channel = null;
+                // Mappings are released by the garbage collector
+                this.mappings = null;
+            }
+        }
+        catch (IOException ioe) {
+            logger.error("IOException : ioe {}", ioe.getMessage());
+            // Erreur non bloquante
+            new CubeExplorerException(ioe).printMessages();
+        }
+    }
+}
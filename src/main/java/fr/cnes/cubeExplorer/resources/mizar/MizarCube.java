@@ -77,6 +77,22 @@ public class MizarCube extends AbstractDataCube {
         return getHeader(pattern);
     }
 
+    public Object getSlideValues(int posZ) throws CubeExplorerException {
+        throw new CubeExplorerException("exception.notFound", "datacube");
+    }
+
+    public Object getSlideRegion(int posZ, int posX, int posY, int width, int height) throws CubeExplorerException {
+        throw new CubeExplorerException("exception.notFound", "datacube");
+    }
+
+    public Object getSpectrumValues(int posX, int posY) throws CubeExplorerException {
+        throw new CubeExplorerException("exception.notFound", "datacube");
+    }
+
+    public float[] getWavelength() throws CubeExplorerException {
+        throw new CubeExplorerException("exception.notFound", "datacube");
+    }
+
     public void close() {
     }
 
@@ -16,7 +16,12 @@ import app.CubeExplorer;
 import common.enums.CubeType;
 import common.exceptions.CubeExplorerException;
 import fr.cnes.cubeExplorer.resources.AbstractDataCube;
-import ucar.ma2.ArrayFloat;
+import fr.cnes.cubeExplorer.resources.BrickStore;
+import fr.cnes.cubeExplorer.resources.CubeData;
+import fr.cnes.cubeExplorer.resources.CubeStatistics;
+import fr.cnes.cubeExplorer.resources.PlaneCache;
+import fr.cnes.cubeExplorer.resources.SlidePyramid;
+import fr.cnes.cubeExplorer.resources.SpectrumSidecar;
 import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
 
@@ -27,6 +32,10 @@ public class NetcdfCube extends AbstractDataCube {
 
 	private String filename = null;
 	private NetcdfFile ncfile = null;
+	private SpectrumSidecar sidecar = null;
+	private BrickStore store = null;
+	private NetcdfDescriptor descriptor = null;
+	private CubeData data = null;
 
 	/**
 	 * @param filename
@@ -42,8 +51,47 @@ public class NetcdfCube extends AbstractDataCube {
 		// Lecture du fichier netcdf
 		this.ncfile = readNetcdf(filename);
 
-		// Get header
-		this.header = new NetcdfHeader(ce, this);
+		try {
+			// Cube variable and axes, resolved once
+			this.descriptor = new NetcdfDescriptor(ncfile);
+			this.data = descriptor.getData();
+
+			// Get header
+			this.header = new NetcdfHeader(ce, this);
+
+			// Spectrum contiguous and chunked copies of the data
+			Variable cubeVar = descriptor.getCubeVar();
+			int[] shape = descriptor.getShape();
+			int bytesPerValue = data.getBytesPerValue();
+			this.sidecar = new SpectrumSidecar(filename, shape[2], shape[1], shape[0], bytesPerValue,
+					(posZ, posY, nbRows) -> readRows(cubeVar, posZ, posY, nbRows));
+			this.store = new BrickStore(filename, shape[2], shape[1], shape[0], bytesPerValue,
+					(posZ, posY, nbRows) -> readRows(cubeVar, posZ, posY, nbRows));
+
+			// Downsampled slides
+			this.pyramid = new SlidePyramid(filename, shape[2], shape[1], bytesPerValue, this::getSlideRegion);
+
+			// Statistics of the planes and of the cube
+			this.statistics = new CubeStatistics(filename, shape[1], shape[0],
+					(posZ, posY, nbRows) -> readRows(cubeVar, posZ, posY, nbRows));
+		} catch (CubeExplorerException | RuntimeException e) {
+			// free the file and the components already opened
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read nbRows rows of the plane posZ from row posY.
+	 * 
+	 * @return float[] or double[] of the values, row by row
+	 */
+	private synchronized Object readRows(Variable cubeVar, int posZ, int posY, int nbRows) throws Exception {
+		int[] shape = descriptor.getShape();
+		int[] origin = new int[] { posZ, posY, 0 };
+		shape[0] = 1;
+		shape[1] = nbRows;
+		return data.decode(cubeVar.read(origin, shape).copyTo1DJavaArray());
 	}
 
 	/**
@@ -60,6 +108,13 @@ public class NetcdfCube extends AbstractDataCube {
 		return ncfile;
 	}
 
+	/**
+	 * @return the cube variable and axes of the netcdf
+	 */
+	public NetcdfDescriptor getDescriptor() {
+		return descriptor;
+	}
+
 	private NetcdfFile readNetcdf(String filename) throws CubeExplorerException {
 		NetcdfFile ncfile = null;
 
@@ -84,7 +139,7 @@ public class NetcdfCube extends AbstractDataCube {
 		JSONArray md = getHeader().getMetadata();
 
 		// Récupération des dimensions
-		properties.put("dimensions", getHeader().getDimensions());
+		properties.put("dimensions", getDimensions());
 
 		if (pattern != null) {
 			// Sélection des metadata
@@ -106,18 +161,16 @@ public class NetcdfCube extends AbstractDataCube {
 		return properties;
 	}
 
-	public JSONObject getSlide(int posZ, String pattern) throws CubeExplorerException {
-		JSONObject properties = new JSONObject();
-		JSONArray metadata = new JSONArray();
-		JSONObject slide = new JSONObject();
-
-		logger.trace("ENTER getSlide({}, {})", posZ, pattern);
+	/**
+	 * NetcdfFile is not thread safe, reads of a cube shared between requests
+	 * are serialized.
+	 */
+	public synchronized Object getSlideValues(int posZ) throws CubeExplorerException {
+		logger.trace("ENTER getSlideValues({})", posZ);
 
 		try {
-			// Search first variable with 3 dimensions
-			Variable cubeVar = findCubeVar();
-
-			int[] cubeShape = cubeVar.getShape();
+			Variable cubeVar = descriptor.getCubeVar();
+			int[] cubeShape = descriptor.getShape();
 
 			if (posZ < 0 || posZ >= cubeShape[0]) {
 				logger.error("exception.outOfBound posZ");
@@ -129,70 +182,111 @@ public class NetcdfCube extends AbstractDataCube {
 			cubeShape[0] = 1; // only one rec per read
 			cubeOrigin[0] = posZ; // read this index
 
-			// read 3D array for that index => 2D
-			ArrayFloat.D2 slideArray = (ArrayFloat.D2) (cubeVar.read(cubeOrigin, cubeShape).reduce());
-
-			// Copy metadata without comment
-			JSONArray md = getHeader().getMetadata();
-			metadata = getHeader().selectMetadata(md, pattern);
-
-			Float value;
-			JSONArray tabValues = new JSONArray();
-			for (int idxPosY = 0; idxPosY < cubeShape[1]; idxPosY++) {
-				JSONArray lineValues = new JSONArray();
-				for (int idxPosX = 0; idxPosX < cubeShape[2]; idxPosX++) {
-					value = slideArray.get(idxPosY, idxPosX);
-					lineValues.put(value.isNaN() ? null : value);
-				}
-				tabValues.put(lineValues);
+			// read from the plane cache if kept, else 3D array for that index => 2D
+			Object plane = getCachedPlane(posZ);
+			if (plane == null) {
+				plane = data.decode(cubeVar.read(cubeOrigin, cubeShape).copyTo1DJavaArray());
 			}
-
-			// Store data to json
-			slide.put("value", tabValues);
-			properties.put("metadata", metadata);
-			properties.put("slide", slide);
-
+			return plane;
 		} catch (CubeExplorerException ce) {
 			throw ce;
 		} catch (Exception exc) {
 			logger.error("CubeExplorerException {}", exc.getMessage());
 			throw new CubeExplorerException(exc);
 		}
-		return properties;
 	}
-	
-	/**
-	 * Searches first variable with 3 dimensions
-	 * @return the first encountered {@link Variable} with a shape of length = 3
-	 * @throws CubeExplorerException if none is found.
-	 */
-	protected Variable findCubeVar() throws CubeExplorerException {
-		Variable cubeVar = null;
-		for (Variable variable : ncfile.getVariables()) {
-			int[] dims = variable.getShape();
-			if (dims.length == 3) {
-				cubeVar = variable;
+
+	public synchronized Object getSlideRegion(int posZ, int posX, int posY, int width, int height)
+			throws CubeExplorerException {
+		logger.trace("ENTER getSlideRegion({}, {}, {}, {}, {})", posZ, posX, posY, width, height);
+
+		try {
+			Variable cubeVar = descriptor.getCubeVar();
+			int[] cubeShape = descriptor.getShape();
+
+			if (posZ < 0 || posZ >= cubeShape[0]) {
+				logger.error("exception.outOfBound posZ");
+				// OutOfBound
+				throw new CubeExplorerException("exception.outOfBound", "posZ", posZ, 0, cubeShape[0] - 1);
+			}
+
+			if (posX < 0 || width < 1 || posX + width > cubeShape[2]) {
+				logger.error("exception.outOfBound posX");
+				// OutOfBound
+				throw new CubeExplorerException("exception.outOfBound", "posX", posX, 0, cubeShape[2] - width);
+			}
+
+			if (posY < 0 || height < 1 || posY + height > cubeShape[1]) {
+				logger.error("exception.outOfBound posY");
+				// OutOfBound
+				throw new CubeExplorerException("exception.outOfBound", "posY", posY, 0, cubeShape[1] - height);
 			}
-		}
 
-		if (cubeVar == null) {
-			logger.error("exception.notFound");
-			throw new CubeExplorerException("exception.notFound", "datacube");
+			// read from the plane cache if kept, else the brick store if built, else the window of the variable
+			Object region = getCachedRegion(posZ, posX, posY, width, height);
+			if (region == null) {
+				region = store.readRegion(posZ, 1, posY, height, posX, width);
+			}
+			if (region == null) {
+				int[] cubeOrigin = new int[] { posZ, posY, posX };
+				cubeShape[0] = 1;
+				cubeShape[1] = height;
+				cubeShape[2] = width;
+				region = data.decode(cubeVar.read(cubeOrigin, cubeShape).copyTo1DJavaArray());
+			}
+			return region;
+		} catch (CubeExplorerException ce) {
+			throw ce;
+		} catch (Exception exc) {
+			logger.error("CubeExplorerException {}", exc.getMessage());
+			throw new CubeExplorerException(exc);
 		}
-		return cubeVar;
 	}
 
-	public JSONObject getSpectrum(int posX, int posY, String pattern) throws CubeExplorerException {
+	public JSONObject getSlide(int posZ, String pattern) throws CubeExplorerException {
 		JSONObject properties = new JSONObject();
 		JSONArray metadata = new JSONArray();
-		JSONObject spectrum = new JSONObject();
+		JSONObject slide = new JSONObject();
 
-		logger.trace("ENTER getSpectrum({}, {}, {})", posX, posY, pattern);
+		logger.trace("ENTER getSlide({}, {})", posZ, pattern);
+
+		int[] cubeShape = descriptor.getShape();
+		Object plane = getSlideValues(posZ);
+
+		// Copy metadata without comment
+		metadata = selectMetadata(pattern);
+
+		Float value;
+		Double valueDouble;
+		JSONArray tabValues = new JSONArray();
+		for (int idxPosY = 0; idxPosY < cubeShape[1]; idxPosY++) {
+			JSONArray lineValues = new JSONArray();
+			for (int idxPosX = 0; idxPosX < cubeShape[2]; idxPosX++) {
+				if (plane instanceof float[]) {
+					value = ((float[]) plane)[idxPosY * cubeShape[2] + idxPosX];
+					lineValues.put(value.isNaN() ? null : value);
+				} else {
+					valueDouble = ((double[]) plane)[idxPosY * cubeShape[2] + idxPosX];
+					lineValues.put(valueDouble.isNaN() ? null : valueDouble);
+				}
+			}
+			tabValues.put(lineValues);
+		}
+
+		// Store data to json
+		slide.put("value", tabValues);
+		properties.put("metadata", metadata);
+		properties.put("slide", slide);
+
+		return properties;
+	}
+	
+	public synchronized Object getSpectrumValues(int posX, int posY) throws CubeExplorerException {
+		logger.trace("ENTER getSpectrumValues({}, {})", posX, posY);
 
 		try {
-			
-			Variable cubeVar = findCubeVar();
-			int[] cubeShape = cubeVar.getShape();
+			Variable cubeVar = descriptor.getCubeVar();
+			int[] cubeShape = descriptor.getShape();
 
 			if (posX < 0 || posX >= cubeShape[2]) {
 				logger.error("exception.outOfBound posX");
@@ -212,32 +306,75 @@ public class NetcdfCube extends AbstractDataCube {
 			cubeOrigin[1] = posY; // read this index
 			cubeOrigin[2] = posX; // read this index
 
-			// read 3D array for that index => 1D
-			ArrayFloat.D1 cubeNetcdf = (ArrayFloat.D1) (cubeVar.read(cubeOrigin, cubeShape).reduce());
-
-			// Copy metadata without comment
-			JSONArray md = getHeader().getMetadata();
-
-			Variable varZ = ((NetcdfHeader) this.header).findVariable(ncfile, NetcdfHeader.getVarZ());
-			ArrayFloat.D1 wavelength = (ArrayFloat.D1) varZ.read();
-			
-			metadata = getHeader().selectMetadata(md, pattern);
-			spectrum.put("wavelength", wavelength.getStorage());
-			spectrum.put("value", cubeNetcdf.getStorage());
-			properties.put("metadata", metadata);
-			properties.put("spectrum", spectrum);
-
+			// read from the plane cache if kept, else the spectrum sidecar if built, else 3D array for that index => 1D
+			Object values = getCachedSpectrum(posX, posY);
+			if (values == null) {
+				values = sidecar.readSpectrum(posX, posY);
+			}
+			if (values == null) {
+				values = store.readSpectrum(posX, posY);
+			}
+			if (values == null) {
+				values = data.decode(cubeVar.read(cubeOrigin, cubeShape).copyTo1DJavaArray());
+			}
+			return values;
 		} catch (CubeExplorerException ce) {
 			throw ce;
 		} catch (Exception exc) {
 			logger.error("CubeExplorerException {}", exc.getMessage());
 			throw new CubeExplorerException(exc);
 		}
+	}
+
+	@Override
+	protected boolean isSpectrumIndexed() {
+		return sidecar.isReady() || store.isReady();
+	}
+
+	public float[] getWavelength() throws CubeExplorerException {
+		return descriptor.getZ();
+	}
+
+	public JSONObject getSpectrum(int posX, int posY, String pattern) throws CubeExplorerException {
+		JSONObject properties = new JSONObject();
+		JSONArray metadata = new JSONArray();
+		JSONObject spectrum = new JSONObject();
+
+		logger.trace("ENTER getSpectrum({}, {}, {})", posX, posY, pattern);
+
+		Object values = getCachedSpectrumValues(posX, posY);
+		float[] wavelength = getWavelength();
+
+		// Copy metadata without comment, NaN values are null
+		metadata = selectMetadata(pattern);
+		JSONArray jsonValues = new JSONArray();
+		for (int idx = 0; idx < wavelength.length; idx++) {
+			double value = (values instanceof float[]) ? ((float[]) values)[idx] : ((double[]) values)[idx];
+			jsonValues.put(Double.isNaN(value) ? JSONObject.NULL : value);
+		}
+		spectrum.put("wavelength", wavelength);
+		spectrum.put("value", jsonValues);
+		properties.put("metadata", metadata);
+		properties.put("spectrum", spectrum);
+
 		return properties;
 	}
 
 	@Override
-	public void close() {
+	public synchronized void close() {
+		PlaneCache.closed(this);
+		if (this.statistics != null) {
+			this.statistics.close();
+			this.statistics = null;
+		}
+		if (this.sidecar != null) {
+			this.sidecar.close();
+			this.sidecar = null;
+		}
+		if (this.store != null) {
+			this.store.close();
+			this.store = null;
+		}
 		try {
 			if (this.ncfile != null) {
 				this.ncfile.close();
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+
+package fr.cnes.cubeExplorer.resources.netcdf;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import common.exceptions.CubeExplorerException;
+import fr.cnes.cubeExplorer.resources.CubeData;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+/**
+ * Layout of the datacube of a netcdf file, resolved once when the file is
+ * opened.
+ * <p>
+ * Holds the variable of the cube, the variables of its X, Y and Z axes and
+ * their coordinates, the order of the dimensions of the cube and its chunking,
+ * so that the slides and spectra are read without looking up the variables nor
+ * reading the axes again. A descriptor is immutable, the arrays are returned
+ * as copies.
+ *
+ * @author vincent.cephirins
+ */
+public class NetcdfDescriptor {
+
+	// Initialise un logger (voir conf/log4j2.xml).
+	private static final Logger LOGGER = LogManager.getLogger("netcdfDescriptor");
+
+	private final Variable cubeVar;
+	private final Variable xVar;
+	private final Variable yVar;
+	private final Variable zVar;
+
+	// Shape and dimension names of the cube, as [z, y, x]
+	private final int[] shape;
+	private final String[] dimensions;
+
+	// Chunk shape of the cube, null if stored contiguous
+	private final int[] chunkShape;
+
+	// Coordinates along the axes
+	private final float[] x;
+	private final float[] y;
+	private final float[] z;
+
+	private final CubeData data;
+
+	/**
+	 * @param ncfile netcdf file opened
+	 * @throws CubeExplorerException if the cube or one of its axes is missing
+	 */
+	public NetcdfDescriptor(NetcdfFile ncfile) throws CubeExplorerException {
+		LOGGER.info("NEW NetcdfDescriptor({})", ncfile.getLocation());
+
+		this.cubeVar = findCubeVar(ncfile);
+		this.shape = cubeVar.getShape();
+		this.dimensions = new String[shape.length];
+		for (int idx = 0; idx < shape.length; idx++) {
+			this.dimensions[idx] = cubeVar.getDimension(idx).getShortName();
+		}
+		this.chunkShape = getChunkShape(cubeVar);
+
+		Number fillValue = getNumber(cubeVar, "_FillValue");
+		this.data = CubeData.forDataType(cubeVar.getDataType(), cubeVar.isUnsigned(), getNumber(cubeVar, "scale_factor"),
+				getNumber(cubeVar, "add_offset"), (fillValue == null) ? getNumber(cubeVar, "missing_value") : fillValue);
+
+		this.xVar = findVariable(ncfile, NetcdfHeader.getVarX());
+		this.yVar = findVariable(ncfile, NetcdfHeader.getVarY());
+		this.zVar = findVariable(ncfile, NetcdfHeader.getVarZ());
+		try {
+			this.x = readAxis(xVar);
+			this.y = readAxis(yVar);
+			this.z = readAxis(zVar);
+		} catch (IOException ioe) {
+			LOGGER.error("CubeExplorerException {}", ioe.getMessage());
+			throw new CubeExplorerException(ioe);
+		}
+
+		LOGGER.debug("{} : cube {}{}, chunks {}", ncfile.getLocation(), cubeVar.getShortName(),
+				Arrays.toString(dimensions), (chunkShape == null) ? "none" : Arrays.toString(chunkShape));
+	}
+
+	/**
+	 * Searches the last variable with 3 dimensions
+	 *
+	 * @return the last encountered {@link Variable} with a shape of length = 3
+	 * @throws CubeExplorerException if none is found.
+	 */
+	private static Variable findCubeVar(NetcdfFile ncfile) throws CubeExplorerException {
+		Variable cubeVar = null;
+		for (Variable variable : ncfile.getVariables()) {
+			if (variable.getRank() == 3) {
+				cubeVar = variable;
+			}
+		}
+
+		if (cubeVar == null) {
+			LOGGER.error("exception.notFound");
+			throw new CubeExplorerException("exception.notFound", "datacube");
+		}
+		return cubeVar;
+	}
+
+	private static Variable findVariable(NetcdfFile ncfile, String[] varNames) throws CubeExplorerException {
+		Variable var = null;
+		for (String varName : varNames) {
+			var = ncfile.findVariable(varName);
+			if (var != null) {
+				break;
+			}
+		}
+		if (var == null) {
+			throw new CubeExplorerException("exception.cube.dimMissing", "one of " + Arrays.toString(varNames));
+		}
+		return var;
+	}
+
+	/**
+	 * @return the coordinates of an axis of any numeric type
+	 */
+	private static float[] readAxis(Variable axis) throws IOException {
+		return (float[]) axis.read().get1DJavaArray(float.class);
+	}
+
+	/**
+	 * @return the chunk shape given by the attribute _ChunkSizes, null if not given
+	 */
+	private static int[] getChunkShape(Variable variable) {
+		Attribute attribute = variable.findAttribute("_ChunkSizes");
+		if (attribute == null || attribute.getLength() != variable.getRank()) {
+			return null;
+		}
+		int[] chunks = new int[attribute.getLength()];
+		for (int idx = 0; idx < chunks.length; idx++) {
+			chunks[idx] = attribute.getNumericValue(idx).intValue();
+		}
+		return chunks;
+	}
+
+	/**
+	 * @return the numeric value of an attribute of the variable, null if not given
+	 */
+	private static Number getNumber(Variable variable, String name) {
+		Attribute attribute = variable.findAttribute(name);
+		return (attribute == null) ? null : attribute.getNumericValue();
+	}
+
+	/**
+	 * @return the variable of the cube
+	 */
+	public Variable getCubeVar() {
+		return cubeVar;
+	}
+
+	/**
+	 * @return the variable of the X axis
+	 */
+	public Variable getXVar() {
+		return xVar;
+	}
+
+	/**
+	 * @return the variable of the Y axis
+	 */
+	public Variable getYVar() {
+		return yVar;
+	}
+
+	/**
+	 * @return the variable of the Z axis
+	 */
+	public Variable getZVar() {
+		return zVar;
+	}
+
+	/**
+	 * @return the shape of the cube, as [dimZ, dimY, dimX]
+	 */
+	public int[] getShape() {
+		return shape.clone();
+	}
+
+	/**
+	 * @return the names of the dimensions of the cube, in the order of its shape
+	 */
+	public String[] getDimensions() {
+		return dimensions.clone();
+	}
+
+	/**
+	 * @return the chunk shape of the cube, null if stored contiguous
+	 */
+	public int[] getChunkShape() {
+		return (chunkShape == null) ? null : chunkShape.clone();
+	}
+
+	/**
+	 * @return the coordinates along the X axis
+	 */
+	public float[] getX() {
+		return x.clone();
+	}
+
+	/**
+	 * @return the coordinates along the Y axis
+	 */
+	public float[] getY() {
+		return y.clone();
+	}
+
+	/**
+	 * @return the coordinates along the Z axis, the wavelengths of the spectra
+	 */
+	public float[] getZ() {
+		return z.clone();
+	}
+
+	/**
+	 * @return the decoder of the values of the cube
+	 */
+	public CubeData getData() {
+		return data;
+	}
+}
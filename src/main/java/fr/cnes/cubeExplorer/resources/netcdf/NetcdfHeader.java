@@ -6,7 +6,6 @@
 package fr.cnes.cubeExplorer.resources.netcdf;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
@@ -16,7 +15,6 @@ import org.json.JSONArray;
 import app.CubeExplorer;
 import common.exceptions.CubeExplorerException;
 import fr.cnes.cubeExplorer.resources.AbstractDataCubeHeader;
-import ucar.ma2.ArrayFloat;
 import ucar.nc2.Attribute;
 import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
@@ -97,16 +95,17 @@ public class NetcdfHeader extends AbstractDataCubeHeader {
 		logger.info("ENTER readNetcdfHeader()");
 		try {
 			// Get the cube values name and unit
-			Variable cubeVar = this.cube.findCubeVar();
+			NetcdfDescriptor descriptor = this.cube.getDescriptor();
+			Variable cubeVar = descriptor.getCubeVar();
 			String cubeVarUnit = cubeVar.getUnitsString();
 			String cubeVarType = cubeVar.getShortName();
 			 jsonDimensions.put("unitVal", (cubeVarUnit == null) ? " - " : cubeVarUnit);
              jsonDimensions.put("typeVal",  (cubeVarType == null) ? "Value" : cubeVarType);  
 			
 			// Get the 3D Variables.
-			Variable xVar = findVariable(ncfile, getVarX());
-			Variable yVar = findVariable(ncfile, getVarY());
-			Variable zVar = findVariable(ncfile, getVarZ());
+			Variable xVar = descriptor.getXVar();
+			Variable yVar = descriptor.getYVar();
+			Variable zVar = descriptor.getZVar();
 
 			jsonMetadata = parseMetadata(ncfile.getVariables());
 
@@ -136,18 +135,18 @@ public class NetcdfHeader extends AbstractDataCubeHeader {
 			jsonDimensions.put("typeZ", ( typeZ == null) ? "" : typeZ);
 
 			// Retrieve first and last values from each axis to compute step
-			ArrayFloat.D1 xArray = (ArrayFloat.D1) xVar.read();
-			ArrayFloat.D1 yArray = (ArrayFloat.D1) yVar.read();
-			ArrayFloat.D1 zArray = (ArrayFloat.D1) zVar.read();
+			float[] xArray = descriptor.getX();
+			float[] yArray = descriptor.getY();
+			float[] zArray = descriptor.getZ();
 
 			jsonDimensions.put("refX", 0.0);
 			jsonDimensions.put("refY", 0.0);
 			jsonDimensions.put("refZ", 0.0);
 
 			// Get array location of the reference point in pixels
-			Float xRef = xArray.get(0);
-			Float yRef = yArray.get(0);
-			Float zRef = zArray.get(0);
+			Float xRef = xArray[0];
+			Float yRef = yArray[0];
+			Float zRef = zArray[0];
 
 			// Get coordinate values at reference point
 			jsonDimensions.put("refLon", xRef);
@@ -155,9 +154,9 @@ public class NetcdfHeader extends AbstractDataCubeHeader {
 			jsonDimensions.put("refLevel", zRef);
 
 			// Step = (lastValue - firstValue) / (length - 1)
-			Float lonStep = ((xArray.get(xDim - 1) - xRef) / (xDim - 1));
-			Float latStep = ((yArray.get(yDim - 1) - yRef) / (yDim - 1));
-			Float levelStep = ((zArray.get(zDim - 1) - zRef) / (zDim - 1));
+			Float lonStep = ((xArray[xDim - 1] - xRef) / (xDim - 1));
+			Float latStep = ((yArray[yDim - 1] - yRef) / (yDim - 1));
+			Float levelStep = ((zArray[zDim - 1] - zRef) / (zDim - 1));
 
 			// Get coordinate increments at reference point
 			jsonDimensions.put("stepX", lonStep);
@@ -169,20 +168,6 @@ public class NetcdfHeader extends AbstractDataCubeHeader {
 		}
 	}
 
-	public Variable findVariable(NetcdfFile ncfile, String[] varNames) throws CubeExplorerException {
-		Variable var = null;
-		for (String varName : varNames) {
-			var = ncfile.findVariable(varName);
-			if(var != null){
-				break;
-			}
-		}
-		if (var == null) {
-			throw new CubeExplorerException("exception.cube.dimMissing", "one of " + Arrays.toString(varNames));
-		}
-		return var;
-	}
-	
 	public static String[] getVarX() {
 		String dim = "dimX";
 		String defaultName = "lon";
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import common.exceptions.CubeExplorerException;
+import ucar.ma2.DataType;
+
+/**
+ * Decoding of the stored values of each FITS BITPIX and NetCDF data type,
+ * with their scaling and blank values.
+ *
+ * @author vincent.cephirins
+ */
+public class CubeDataTest {
+
+	private static final double DELTA = 1e-6;
+
+	@Test
+	public void testBitpix8() throws CubeExplorerException {
+		CubeData data = CubeData.forBitpix(8, 2, 10, 255L);
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 0, 1, (byte) 200, (byte) 255 });
+		assertEquals(1, data.getBytesPerSample());
+		// FITS bytes are unsigned
+		assertArrayEquals(new float[] { 10, 12, 410, Float.NaN }, (float[]) data.decode(buffer, 4), (float) DELTA);
+	}
+
+	@Test
+	public void testBitpix16() throws CubeExplorerException {
+		CubeData data = CubeData.forBitpix(16, 1, 32768, -32768L);
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putShort((short) -32768).putShort((short) -1).putShort((short) 0).putShort((short) 32767).flip();
+		// BZERO 32768 stores unsigned shorts
+		assertArrayEquals(new float[] { Float.NaN, 32767, 32768, 65535 }, (float[]) data.decode(buffer, 4),
+				(float) DELTA);
+	}
+
+	@Test
+	public void testBitpix32() throws CubeExplorerException {
+		CubeData data = CubeData.forBitpix(32, 0.5, -1, -1L);
+		ByteBuffer buffer = ByteBuffer.allocate(12);
+		buffer.putInt(Integer.MAX_VALUE).putInt(-1).putInt(4).flip();
+		assertEquals(8, data.getBytesPerValue());
+		assertArrayEquals(new double[] { -1 + 0.5 * Integer.MAX_VALUE, Double.NaN, 1 },
+				(double[]) data.decode(buffer, 3), DELTA);
+	}
+
+	@Test
+	public void testBitpix64() throws CubeExplorerException {
+		CubeData data = CubeData.forBitpix(64, 3, 0, Long.MIN_VALUE);
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putLong(Long.MIN_VALUE).putLong(-5).flip();
+		assertArrayEquals(new double[] { Double.NaN, -15 }, (double[]) data.decode(buffer, 2), DELTA);
+	}
+
+	@Test
+	public void testBitpixFloat() throws CubeExplorerException {
+		CubeData data = CubeData.forBitpix(-32, 2, 1, null);
+		ByteBuffer buffer = ByteBuffer.allocate(12);
+		buffer.putFloat(1.5f).putFloat(Float.NaN).putFloat(-2).flip();
+		assertArrayEquals(new float[] { 4, Float.NaN, -3 }, (float[]) data.decode(buffer, 3), (float) DELTA);
+	}
+
+	@Test
+	public void testBitpixDouble() throws CubeExplorerException {
+		CubeData data = CubeData.forBitpix(-64, 1, 0, null);
+		ByteBuffer buffer = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putDouble(1e300).putDouble(Double.NaN).putDouble(-0.25).flip();
+		assertArrayEquals(new double[] { 1e300, Double.NaN, -0.25 }, (double[]) data.decode(buffer, 3), DELTA);
+	}
+
+	@Test(expected = CubeExplorerException.class)
+	public void testInvalidBitpix() throws CubeExplorerException {
+		CubeData.forBitpix(24, 1, 0, null);
+	}
+
+	@Test
+	public void testStride() throws CubeExplorerException {
+		CubeData data = CubeData.forBitpix(16, 1, 0, null);
+		ByteBuffer buffer = ByteBuffer.allocate(12);
+		for (short value = 0; value < 6; value++) {
+			buffer.putShort(value);
+		}
+		float[] values = new float[4];
+		// Every third short from the second one, into the end of the values
+		data.decode(buffer, 2, 6, values, 2, 2);
+		assertArrayEquals(new float[] { 0, 0, 1, 4 }, values, (float) DELTA);
+		assertEquals(12, buffer.position());
+	}
+
+	@Test
+	public void testUnsignedByte() throws CubeExplorerException {
+		// A _FillValue of -1 is 255 for unsigned bytes
+		CubeData data = CubeData.forDataType(DataType.BYTE, true, 0.1, 5, -1);
+		byte[] stored = { 0, 10, (byte) 254, (byte) 255 };
+		assertArrayEquals(new float[] { 5, 6, 30.4f, Float.NaN }, (float[]) data.decode(stored), (float) DELTA);
+	}
+
+	@Test
+	public void testSignedByte() throws CubeExplorerException {
+		CubeData data = CubeData.forDataType(DataType.BYTE, false, null, null, -128);
+		byte[] stored = { -128, -1, 127 };
+		assertArrayEquals(new float[] { Float.NaN, -1, 127 }, (float[]) data.decode(stored), (float) DELTA);
+	}
+
+	@Test
+	public void testUnsignedShort() throws CubeExplorerException {
+		CubeData data = CubeData.forDataType(DataType.SHORT, true, 2, null, -1);
+		short[] stored = { -2, -1, 1 };
+		assertArrayEquals(new float[] { 131068, Float.NaN, 2 }, (float[]) data.decode(stored), (float) DELTA);
+	}
+
+	@Test
+	public void testUnsignedInt() throws CubeExplorerException {
+		CubeData data = CubeData.forDataType(DataType.INT, true, null, 1, -1);
+		int[] stored = { -2, -1, 0 };
+		assertArrayEquals(new double[] { 4294967295.0, Double.NaN, 1 }, (double[]) data.decode(stored), DELTA);
+	}
+
+	@Test
+	public void testLong() throws CubeExplorerException {
+		CubeData data = CubeData.forDataType(DataType.LONG, false, 0.5, null, 7);
+		long[] stored = { 7, 8 };
+		assertArrayEquals(new double[] { Double.NaN, 4 }, (double[]) data.decode(stored), DELTA);
+	}
+
+	@Test
+	public void testFloat() throws CubeExplorerException {
+		CubeData data = CubeData.forDataType(DataType.FLOAT, false, 10, -1, -999f);
+		float[] stored = { -999, 0.5f, Float.NaN };
+		assertArrayEquals(new float[] { Float.NaN, 4, Float.NaN }, (float[]) data.decode(stored), (float) DELTA);
+	}
+
+	@Test
+	public void testDouble() throws CubeExplorerException {
+		CubeData data = CubeData.forDataType(DataType.DOUBLE, false, null, null, 1e20);
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putDouble(1e20).putDouble(3).flip();
+		assertArrayEquals(new double[] { Double.NaN, 3 }, (double[]) data.decode(buffer, 2), DELTA);
+	}
+
+	@Test
+	public void testUnchanged() throws CubeExplorerException {
+		// The values neither scaled nor filled are not copied
+		float[] floats = { 1, 2 };
+		assertSame(floats, CubeData.forDataType(DataType.FLOAT, false, null, null, null).decode(floats));
+		double[] doubles = { 1, 2 };
+		assertSame(doubles, CubeData.forDataType(DataType.DOUBLE, false, 1, 0, Double.NaN).decode(doubles));
+	}
+
+	@Test(expected = CubeExplorerException.class)
+	public void testInvalidDataType() throws CubeExplorerException {
+		CubeData.forDataType(DataType.STRING, false, null, null, null);
+	}
+}
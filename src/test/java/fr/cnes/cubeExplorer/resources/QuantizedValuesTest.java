@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ ******************************************************************************/
+package fr.cnes.cubeExplorer.resources;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import common.enums.Encoding;
+
+/**
+ * Half precision floats and quantized integers of the reduced encodings.
+ *
+ * @author vincent.cephirins
+ */
+public class QuantizedValuesTest {
+
+	// Range whose half precision scale is 1
+	private static final double[] UNIT_RANGE = { 0, 16384 };
+
+	@Test
+	public void testHalfNormal() {
+		assertArrayEquals(new int[] { 0x0000, 0x3c00, 0xc000, 0x3555, 0x0400, 0x7bff },
+				toHalf(0, 1, -2, 1 / 3.0, Math.scalb(1.0, -14), 65504));
+	}
+
+	@Test
+	public void testHalfRounding() {
+		double ulp = Math.scalb(1.0, -10);
+		// Half of an ulp rounds away from zero, less rounds down
+		assertArrayEquals(new int[] { 0x3c01, 0x3c00, 0x3c01, 0xbc01 },
+				toHalf(1 + ulp / 2, 1 + ulp / 4, 1 + ulp * 3 / 4, -1 - ulp / 2));
+		// The mantissa carries into the exponent
+		assertArrayEquals(new int[] { 0x4000 }, toHalf(2 - ulp / 2));
+	}
+
+	@Test
+	public void testHalfSubnormal() {
+		double min = Math.scalb(1.0, -24);
+		assertArrayEquals(new int[] { 0x0001, 0x0001, 0x0000, 0x0003, 0x03ff, 0x8001, 0x0400 },
+				toHalf(min, min / 2, min / 4, min * 2.5, Math.scalb(1.0, -14) - min, -min,
+						Math.scalb(1.0, -14) - min / 2));
+	}
+
+	@Test
+	public void testHalfOverflow() {
+		assertArrayEquals(new int[] { 0x7bff, 0x7c00, 0x7c00, 0xfc00, 0x7c00, 0x7e00 },
+				toHalf(65519, 65520, 1e10, -70000, Double.POSITIVE_INFINITY, Double.NaN));
+	}
+
+	@Test
+	public void testHalfScale() {
+		QuantizedValues quantized = new QuantizedValues(new float[] { 1, -0.5f }, Encoding.F16,
+				new double[] { -0.5, 1 });
+		JSONObject properties = new JSONObject();
+		quantized.putProperties(properties);
+		// The largest value is below 2^15 once scaled
+		assertEquals(Math.scalb(1.0, -14), properties.getDouble("scale"), 0);
+		assertArrayEquals(new int[] { 0x7400, 0xf000 }, toUnsigned(quantized.getBytes(), 2));
+	}
+
+	@Test
+	public void testU8() {
+		QuantizedValues quantized = new QuantizedValues(new double[] { 10, 137, 264, Double.NaN, 300, 0 },
+				Encoding.U8, new double[] { 10, 264 });
+		JSONObject properties = new JSONObject();
+		quantized.putProperties(properties);
+		assertEquals(10, properties.getDouble("offset"), 0);
+		assertEquals(1, properties.getDouble("scale"), 0);
+		assertEquals(255, properties.getInt("nan"));
+		// The values out of the range are clamped below the NaN sentinel
+		assertArrayEquals(new int[] { 0, 127, 254, 255, 254, 0 }, toUnsigned(quantized.getBytes(), 1));
+	}
+
+	@Test
+	public void testU16() {
+		QuantizedValues quantized = new QuantizedValues(new float[] { Float.NaN, -1, 1, 0 }, Encoding.U16, null);
+		JSONObject properties = new JSONObject();
+		quantized.putProperties(properties);
+		assertEquals(-1, properties.getDouble("offset"), 0);
+		assertEquals(2 / 65534.0, properties.getDouble("scale"), 1e-12);
+		assertEquals(65535, properties.getInt("nan"));
+		assertArrayEquals(new int[] { 65535, 0, 65534, 32767 }, toUnsigned(quantized.getBytes(), 2));
+	}
+
+	@Test
+	public void testEmpty() {
+		// Values all NaN are stored as the sentinel
+		QuantizedValues quantized = new QuantizedValues(new float[] { Float.NaN, Float.NaN }, Encoding.U8, null);
+		assertArrayEquals(new int[] { 255, 255 }, toUnsigned(quantized.getBytes(), 1));
+	}
+
+	@Test
+	public void testRange() {
+		assertArrayEquals(new double[] { -2, 5 }, QuantizedValues.getRange(new float[] { Float.NaN, 5, -2, 0 }),
+				0);
+		double[] range = QuantizedValues.getRange(new double[] { Double.NaN });
+		assertEquals(Double.NaN, range[0], 0);
+		assertEquals(Double.NaN, range[1], 0);
+	}
+
+	/**
+	 * @return the half precision floats of values whose scale is 1
+	 */
+	private static int[] toHalf(double... values) {
+		QuantizedValues quantized = new QuantizedValues(values, Encoding.F16, UNIT_RANGE);
+		return toUnsigned(quantized.getBytes(), 2);
+	}
+
+	/**
+	 * @return the unsigned little endian integers of bytes
+	 */
+	private static int[] toUnsigned(byte[] bytes, int size) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		int[] values = new int[bytes.length / size];
+		for (int idx = 0; idx < values.length; idx++) {
+			values[idx] = (size == 1) ? buffer.get() & 0xff : buffer.getShort() & 0xffff;
+		}
+		return values;
+	}
+}